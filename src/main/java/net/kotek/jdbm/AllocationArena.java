@@ -0,0 +1,75 @@
+package net.kotek.jdbm;
+
+import java.util.Arrays;
+
+/**
+ * Space and recids reserved for writers, so they can allocate without taking store write lock.
+ * Arena owns single region of free space in data file and allocates from it by increasing offset.
+ * It also holds batch of free recids.
+ * <p/>
+ * Released space and recids are not reused immediately, but collected in arena.
+ * Readers may still use old index value, so space is returned into store only
+ * under store write lock, when there are no readers.
+ * <p/>
+ * All methods must be called while holding monitor on arena.
+ *
+ * @author Jan Kotek
+ */
+class AllocationArena {
+
+    /** offset of free space owned by arena */
+    long regionOffset;
+    /** size of free space owned by arena */
+    int regionSize;
+
+    final long[] recids;
+    int recidsCount = 0;
+
+    /** index values of released physical records */
+    long[] releasedPhys = new long[16];
+    int releasedPhysCount = 0;
+
+    long[] releasedRecids = new long[16];
+    int releasedRecidsCount = 0;
+
+    AllocationArena(int recidBatchSize) {
+        recids = new long[recidBatchSize];
+    }
+
+    /** @return true if arena has free recid and space for record with given size */
+    boolean canAllocate(int size){
+        return recidsCount>0 && size<=regionSize;
+    }
+
+    long takeRecid(){
+        if(CC.ASSERT && recidsCount==0) throw new InternalError();
+        return recids[--recidsCount];
+    }
+
+    /** @return index value with size and offset of allocated space, or 0 if region is too small */
+    long take(int size){
+        if(size>regionSize) return 0;
+        final long ret = (((long)size)<<48) | regionOffset;
+        regionOffset+=size;
+        regionSize-=size;
+        return ret;
+    }
+
+    void releasePhys(long indexValue){
+        if(releasedPhysCount == releasedPhys.length)
+            releasedPhys = Arrays.copyOf(releasedPhys, releasedPhys.length*2);
+        releasedPhys[releasedPhysCount++] = indexValue;
+    }
+
+    void releaseRecid(long recid){
+        if(releasedRecidsCount == releasedRecids.length)
+            releasedRecids = Arrays.copyOf(releasedRecids, releasedRecids.length*2);
+        releasedRecids[releasedRecidsCount++] = recid;
+    }
+
+    /** @return number of released physical records and recids, which were not returned into store yet*/
+    int releasedCount(){
+        return releasedPhysCount + releasedRecidsCount;
+    }
+
+}
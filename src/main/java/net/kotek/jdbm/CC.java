@@ -25,5 +25,5 @@ interface CC {
 
 
 
-    short STORE_FORMAT_VERSION = 10000 + 1;
+    short STORE_FORMAT_VERSION = 10000 + 2;
 }
@@ -1,8 +1,12 @@
 package net.kotek.jdbm;
 
+import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.*;
 import java.util.*;
+import java.util.logging.Level;
 
 /**
  * A database with easy access to named maps and other collections.
@@ -13,8 +17,39 @@ public class DB {
     protected RecordManager recman;
     protected Map<String, WeakReference<?>> collections = new HashMap<String, WeakReference<?>>();
 
+    /** forces store to disk periodically, null if sync is left to OS */
+    protected ScheduledExecutorService syncExecutor;
+
     public DB(RecordManager recman){
+        this(recman, 0);
+    }
+
+    /**
+     * @param recman underlying store
+     * @param syncInterval store is forced to disk every N milliseconds, zero disables periodic sync
+     */
+    public DB(final RecordManager recman, long syncInterval){
         this.recman = recman;
+        if(syncInterval>0){
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "JDBM sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            syncExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        recman.sync();
+                    }catch(Throwable e){
+                        JdbmUtil.LOG.log(Level.SEVERE, "An exception in JDBM sync thread", e);
+                    }
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -131,13 +166,111 @@ public class DB {
         return ret;
     }
 
+    /**
+     * Commits all changes made since previous commit.
+     * Committed changes are durable and survive JVM crash.
+     * If transactions are disabled, this method does nothing.
+     * <p/>
+     * This method is not synchronized, so commits from concurrent threads can be grouped into single disk sync.
+     */
+    public void commit(){
+        final RecordManager recman = this.recman;
+        if(recman == null) throw new IllegalAccessError("DB was already closed");
+        recman.commit();
+    }
+
+    /**
+     * Forces all changes written into store to disk, only modified regions are written.
+     * With transactions, committed changes are already durable and this only speeds up log replay.
+     */
+    public void sync(){
+        final RecordManager recman = this.recman;
+        if(recman == null) throw new IllegalAccessError("DB was already closed");
+        recman.sync();
+    }
+
+    /**
+     * Returns read-only view of database as it was when this method was called.
+     * Collections opened from snapshot do not see later modifications and can not be modified.
+     * With transactions snapshot contains only committed changes.
+     * <p/>
+     * Store keeps old versions of modified records until snapshot is closed,
+     * so snapshot should be closed as soon as it is no longer needed.
+     *
+     * @return read-only database, must be closed
+     */
+    public DB snapshot(){
+        final RecordManager recman = this.recman;
+        if(recman == null) throw new IllegalAccessError("DB was already closed");
+        return new DB(recman.snapshot());
+    }
+
+    /**
+     * Writes consistent copy of database into stream, while database is in use.
+     * Writers are blocked only for short time at the end of backup.
+     * With transactions copy contains only committed changes.
+     * <p/>
+     * Copy is restored by {@link RecordStore#restoreBackup(java.nio.channels.ReadableByteChannel, Volume.Factory)}.
+     *
+     * @param out stream where copy is written, it is not closed
+     */
+    public void backup(OutputStream out){
+        backup(Channels.newChannel(out));
+    }
+
+    /**
+     * Writes consistent copy of database into channel, while database is in use.
+     * Files are transferred by kernel where possible, without copying data through Java heap.
+     *
+     * @param out channel where copy is written, it is not closed
+     * @see #backup(OutputStream)
+     */
+    public void backup(WritableByteChannel out){
+        final RecordManager recman = this.recman;
+        if(recman == null) throw new IllegalAccessError("DB was already closed");
+        recman.backup(out);
+    }
+
+    /**
+     * Compacts store and shrinks its file. Database can be used while compaction runs,
+     * store is locked in 10 ms steps, with 10 ms pauses between them.
+     */
+    public void compact(){
+        compact(10, 10);
+    }
+
+    /**
+     * Compacts store and shrinks its file. Database can be used while compaction runs.
+     * Compaction is throttled, so it does not block other threads for too long.
+     *
+     * @param stepTime maximal time in milliseconds store is locked by single compaction step
+     * @param pauseTime time in milliseconds between compaction steps
+     */
+    public void compact(long stepTime, long pauseTime){
+        final RecordManager recman = this.recman;
+        if(recman == null) throw new IllegalAccessError("DB was already closed");
+        recman.compact(stepTime, pauseTime);
+    }
+
     /**
      * Closes database.
+     * If transactions are enabled, changes which were not committed are discarded.
      * All other methods will throw 'IllegalAccessError' after this method was called.
      * <p/>
      * !! it is necessary to call this method before JVM exits!!
      */
     synchronized public void close(){
+        if(syncExecutor!=null){
+            syncExecutor.shutdown();
+            try {
+                syncExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            syncExecutor = null;
+            //last changes are forced even if there is no flush on close
+            recman.sync();
+        }
         recman.close();
         //dereference db to prevent memory leaks
         recman = null;
@@ -1,5 +1,9 @@
 package net.kotek.jdbm;
 
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+
 /**
  * A builder class for creating and opening a database.
  */
@@ -12,6 +16,21 @@ public class DBMaker {
     protected boolean cacheEnabled = true;
     protected boolean asyncWriteEnabled = true;
     protected boolean asyncSerializationEnabled = true;
+    protected int asyncWriteQueueSize = RecordStoreAsyncWrite.DEFAULT_MAX_PENDING_WRITES;
+    protected int asyncSerializationThreads = 1;
+    protected long commitSyncInterval = 0;
+    protected long fileSyncInterval = 0;
+    protected boolean freeSpaceCoalescingEnabled = true;
+    protected boolean concurrentAllocationEnabled = true;
+    protected boolean optimisticReadEnabled = false;
+    protected boolean directMemory = false;
+    protected boolean mmapFileEnabled = true;
+    protected long fileInitialSize = 0;
+    protected int fileSizeIncrement = RecordStore.BUF_GROWTH;
+    protected boolean fileGeometricGrowthEnabled = false;
+    protected boolean filePreallocateEnabled = false;
+    protected boolean readOnly = false;
+    protected boolean recordHeadroomEnabled = false;
 
 
     /** use static factory methods, or make subclass */
@@ -24,6 +43,19 @@ public class DBMaker {
         return  m;
     }
 
+    /**
+     * Creates new in-memory database, which keeps data outside of Java heap in direct ByteBuffers.
+     * Large store does not slow down GC and is not limited by heap size,
+     * use <code>-XX:MaxDirectMemorySize</code> to set its limit.
+     * Changes are lost after JVM exits.
+     */
+    public static DBMaker newDirectMemoryDB(){
+        DBMaker m = new DBMaker();
+        m.file = null;
+        m.directMemory = true;
+        return  m;
+    }
+
     /** Creates or open database stored in file. */
     public static DBMaker newFileDB(String file){
         DBMaker m = new DBMaker();
@@ -33,8 +65,12 @@ public class DBMaker {
 
 
     /**
-     * Transactions are enabled by default (but not implemented yet).
+     * Transactions are enabled by default.
      * You must call <db>DB.commit()</db> to save your changes.
+     * Committed changes are written into Write-Ahead-Log and survive JVM crash.
+     * With transactions enabled, all modifications are written by committing thread,
+     * so Async Writes and Async Serialization settings are ignored.
+     * <p/>
      * It is possible to disable transactions for better write performance
      * In this case all integrity checks are sacrificed for faster speed.
      * If transactions are disabled, you must call DB.close() method before exit,
@@ -47,6 +83,38 @@ public class DBMaker {
         return this;
     }
 
+    /**
+     * By default each commit forces log to disk immediately.
+     * Commits from concurrent threads are still grouped, if they arrive while log is being forced.
+     * <p/>
+     * With sync interval commit waits given time before log is forced, so more concurrent commits
+     * are grouped into single disk sync. This improves throughput with many small commits,
+     * but increases latency of each commit.
+     *
+     * @param millis how long to wait before log is forced to disk
+     * @return this builder
+     */
+    public DBMaker commitSyncInterval(long millis){
+        this.commitSyncInterval = millis;
+        return this;
+    }
+
+    /**
+     * By default store is not forced to disk, OS writes modified pages when it decides to.
+     * Data may be lost if OS crashes, even if JVM was closed correctly. Use {@link DB#sync()} to force store on demand.
+     * <p/>
+     * With sync interval background thread forces store to disk every N milliseconds,
+     * and once more when DB is closed. Only modified regions of file are forced.
+     *
+     * @param millis how often store is forced to disk, zero disables periodic sync
+     * @return this builder
+     */
+    public DBMaker fileSyncInterval(long millis){
+        if(millis<0) throw new IllegalArgumentException("Negative sync interval");
+        this.fileSyncInterval = millis;
+        return this;
+    }
+
     /**
      * Instance cache is enabled by default.
      * This greatly decreases serialization overhead and improves performance.
@@ -78,6 +146,20 @@ public class DBMaker {
         return this;
     }
 
+    /**
+     * Sets how many records may wait for Background Writer Thread.
+     * When queue is full, threads which modify store are blocked until writer catches up.
+     * This prevents fast producers from running out of memory. Zero means unbounded queue.
+     *
+     * @param size maximal number of pending writes
+     * @return this builder
+     */
+    public DBMaker asyncWriteQueueSize(int size){
+        if(size<0) throw new IllegalArgumentException("Queue size is negative");
+        this.asyncWriteQueueSize = size;
+        return this;
+    }
+
     /**
      * By default all objects are serialized in Background Writer Thread.
      * <p/>
@@ -112,20 +194,188 @@ public class DBMaker {
     }
 
 
+    /**
+     * Sets number of threads which serialize records with Async Serialization.
+     * By default all records are serialized by Background Writer Thread.
+     * With more threads, records are serialized in parallel and writer thread
+     * only allocates space and copies data into store.
+     *
+     * @param threads number of serializer threads, including writer thread
+     * @return this builder
+     */
+    public DBMaker asyncSerializationThreads(int threads){
+        if(threads<1) throw new IllegalArgumentException("At least one thread is needed");
+        this.asyncSerializationThreads = threads;
+        return this;
+    }
+
+    /**
+     * By default free space in store is tracked in memory. Neighbouring free records are merged together
+     * and new records are allocated using best-fit strategy. This keeps fragmentation and file growth low.
+     * Free space is loaded when store is opened and saved when store is closed.
+     * <p/>
+     * Call this method to use older allocator, which keeps free records in lists by their size and never merges them.
+     *
+     * @return this builder
+     */
+    public DBMaker freeSpaceCoalescingDisable(){
+        this.freeSpaceCoalescingEnabled = false;
+        return this;
+    }
+
+    /**
+     * By default, when both transactions and async writes are disabled, writers allocate space and recids
+     * from per-thread arenas and do not block each other. Only structural changes, such as growing file,
+     * take exclusive lock.
+     * <p/>
+     * Call this method to serialize all modifications with single write lock.
+     *
+     * @return this builder
+     */
+    public DBMaker concurrentAllocationDisable(){
+        this.concurrentAllocationEnabled = false;
+        return this;
+    }
+
+    /**
+     * By default reads take shared lock, which is blocked while store is modified.
+     * <p/>
+     * With optimistic reads enabled, record is copied without taking lock and read is validated afterwards.
+     * Read is retried only if record was modified concurrently. This scales better with many readers.
+     * It is used only when both transactions and async writes are disabled.
+     *
+     * @return this builder
+     */
+    public DBMaker optimisticReadEnable(){
+        this.optimisticReadEnabled = true;
+        return this;
+    }
+
+    /**
+     * By default store file is memory mapped. This is fastest, but it consumes address space
+     * and large file may not fit into it on 32bit JVM.
+     * <p/>
+     * Call this method to access file by positional reads and writes on FileChannel instead.
+     * Caching is then left on OS page cache.
+     *
+     * @return this builder
+     */
+    public DBMaker mmapFileDisable(){
+        this.mmapFileEnabled = false;
+        return this;
+    }
+
+    /**
+     * Sets size of data file when new store is created. Large import then does not need to grow file.
+     * By default file starts small.
+     *
+     * @param size initial size of data file in bytes
+     * @return this builder
+     */
+    public DBMaker fileInitialSize(long size){
+        this.fileInitialSize = size;
+        return this;
+    }
+
+    /**
+     * Sets minimal size by which store file grows. By default it is 8MB.
+     * Memory mapped file is remapped each time it grows, so larger increment means less remapping.
+     *
+     * @param size size increment in bytes
+     * @return this builder
+     */
+    public DBMaker fileSizeIncrement(int size){
+        if(size<=0) throw new IllegalArgumentException("size must be positive");
+        this.fileSizeIncrement = size;
+        return this;
+    }
+
+    /**
+     * By default store file grows by fixed increment.
+     * With geometric growth its size (or size of mapped 1GB chunk) is at least doubled each time it grows,
+     * so number of remaps is logarithmic to file size.
+     *
+     * @return this builder
+     */
+    public DBMaker fileGeometricGrowthEnable(){
+        this.fileGeometricGrowthEnabled = true;
+        return this;
+    }
+
+    /**
+     * By default file is extended without writing data, so filesystem may allocate disk space lazily.
+     * With preallocation zeros are written when file grows, so disk space is allocated up front.
+     * This avoids running out of disk space while mapped buffer is written, and reduces file fragmentation.
+     *
+     * @return this builder
+     */
+    public DBMaker filePreallocateEnable(){
+        this.filePreallocateEnabled = true;
+        return this;
+    }
+
+    /**
+     * By default record is allocated with exactly its size, and it is moved to new location when its size changes.
+     * <p/>
+     * With headroom enabled, records are allocated with some free space (at least 16 bytes or quarter of its size),
+     * so record which grows within this space, such as BTree node, is updated in place.
+     * This costs some disk space, but reduces relocations and free list churn.
+     *
+     * @return this builder
+     */
+    public DBMaker recordHeadroomEnable(){
+        this.recordHeadroomEnabled = true;
+        return this;
+    }
+
+    /**
+     * Opens existing file store for reading only. Files are opened in read-only mode and mapped READ_ONLY,
+     * so several processes can share single copy of store in OS page cache.
+     * There is no background writer thread, free space is not loaded and recids are not preallocated.
+     * Any modification throws {@link UnsupportedOperationException}.
+     * <p/>
+     * Store must be closed cleanly before it is opened read-only, uncommitted transaction log is not replayed.
+     * Transaction, async write and concurrent allocation settings are ignored.
+     *
+     * @return this builder
+     */
+    public DBMaker readOnly(){
+        this.readOnly = true;
+        return this;
+    }
+
     /** constructs DB using current settings */
     public DB make(){
-        if(transactionsEnabled)
-            throw new IllegalAccessError(
-                    "Transactions are not implemented yet, please call 'DBMaker.transactionDisable()'");
-
-        RecordManager recman = asyncWriteEnabled ?
-                new RecordStoreAsyncWrite(file, asyncSerializationEnabled) :
-                new RecordStore(file);
+        RecordManager recman = readOnly? makeReadOnly() : makeRecordManager();
 
         if(cacheEnabled)
             recman = new RecordHardCache(recman);
 
-        return new DB(recman);
+        return new DB(recman, readOnly? 0 : fileSyncInterval);
+    }
+
+    protected RecordManager makeReadOnly(){
+        if(file == null) throw new IllegalArgumentException("Read-only mode needs file store");
+        final File log = new File(file+".t");
+        if(log.length()>8)
+            throw new IOError(new IOException("Store has transaction log which was not replayed, open it read-write first: "+log));
+        return new RecordStore(Volume.readOnlyFileFactory(file, mmapFileEnabled), false, 0, optimisticReadEnabled);
+    }
+
+    protected RecordManager makeRecordManager(){
+        final Volume.Factory volumeFactory = file==null?
+                Volume.memoryFactory(directMemory):
+                Volume.fileFactory(file, mmapFileEnabled, fileInitialSize, fileSizeIncrement,
+                        fileGeometricGrowthEnabled, filePreallocateEnabled);
+        return transactionsEnabled ?
+                new RecordStoreWAL(file, commitSyncInterval, freeSpaceCoalescingEnabled, volumeFactory,
+                        recordHeadroomEnabled) :
+                asyncWriteEnabled ?
+                new RecordStoreAsyncWrite(volumeFactory, asyncSerializationEnabled, freeSpaceCoalescingEnabled,
+                        recordHeadroomEnabled, asyncWriteQueueSize, asyncSerializationThreads) :
+                new RecordStore(volumeFactory, freeSpaceCoalescingEnabled,
+                        concurrentAllocationEnabled ? Runtime.getRuntime().availableProcessors() : 0,
+                        optimisticReadEnabled, recordHeadroomEnabled);
     }
 
 
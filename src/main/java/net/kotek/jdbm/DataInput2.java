@@ -1,6 +1,7 @@
 package net.kotek.jdbm;
 
 import java.io.DataInput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
@@ -24,11 +25,16 @@ public class DataInput2 implements DataInput {
 
     @Override
     public void readFully(byte[] b, int off, int len) throws IOException {
-        //naive, but only thread safe way
-        //TODO investigate
-        for(int i=off;i<off+len;i++){
-            b[i] = readByte();
+        if(pos+len>buf.limit()) throw new EOFException();
+        if(buf.hasArray()){
+            System.arraycopy(buf.array(), buf.arrayOffset()+pos, b, off, len);
+        }else{
+            //buffer is shared between threads, so bulk get uses its own duplicate to not change shared position
+            final ByteBuffer b2 = buf.duplicate();
+            b2.position(pos);
+            b2.get(b, off, len);
         }
+        pos+=len;
     }
 
     @Override
@@ -61,8 +67,9 @@ public class DataInput2 implements DataInput {
 
     @Override
     public int readUnsignedShort() throws IOException {
-        return (( (buf.get(pos++) & 0xff) << 8) |
-                ( (buf.get(pos++) & 0xff)));
+        final int ret = buf.getShort(pos) & 0xffff;
+        pos+=2;
+        return ret;
     }
 
     @Override
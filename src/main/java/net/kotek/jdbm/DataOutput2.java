@@ -12,12 +12,44 @@ import java.util.Arrays;
  */
 public final class DataOutput2 implements DataOutput {
 
+    /** initial size of buffer, large enough for most records so buffer does not have to grow */
+    static final int INITIAL_SIZE = 128;
+
+    /** buffers larger than this are not kept for reuse, to not waste memory after large record */
+    static final int MAX_REUSED_SIZE = 64 * 1024;
+
+    /** reusable instance for each thread, null while it is borrowed */
+    private static final ThreadLocal<DataOutput2> REUSED = new ThreadLocal<DataOutput2>();
+
     byte[] buf;
     int pos;
 
     DataOutput2(){
+        this(INITIAL_SIZE);
+    }
+
+    DataOutput2(final int initialSize){
         pos = 0;
-        buf = new byte[16];
+        buf = new byte[initialSize];
+    }
+
+    /**
+     * Returns empty DataOutput2 reused by current thread.
+     * It must be returned with {@link #release(DataOutput2)} once its data are no longer needed.
+     * Nested borrow (for example from serializer) gets new instance.
+     */
+    static DataOutput2 borrow(){
+        final DataOutput2 out = REUSED.get();
+        if(out==null) return new DataOutput2();
+        REUSED.set(null);
+        out.pos = 0;
+        return out;
+    }
+
+    /** returns instance obtained by {@link #borrow()} for reuse, its buffer must not be used after this call */
+    static void release(final DataOutput2 out){
+        if(out.buf.length<=MAX_REUSED_SIZE)
+            REUSED.set(out);
     }
 
     byte[] copyBytes(){
@@ -28,7 +60,7 @@ public final class DataOutput2 implements DataOutput {
      * make sure there will be enought space in buffer to write N bytes
      */
     private void ensureAvail(final int n) {
-        if (pos + n >= buf.length) {
+        if (pos + n > buf.length) {
             int newSize = Math.max(pos + n, buf.length * 2);
             buf = Arrays.copyOf(buf, newSize);
         }
@@ -101,13 +133,11 @@ public final class DataOutput2 implements DataOutput {
 
     @Override
     public void writeFloat(final float v) throws IOException {
-        ensureAvail(4);
         writeInt(Float.floatToIntBits(v));
     }
 
     @Override
     public void writeDouble(final double v) throws IOException {
-        ensureAvail(8);
         writeLong(Double.doubleToLongBits(v));
     }
 
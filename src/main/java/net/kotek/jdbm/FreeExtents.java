@@ -0,0 +1,208 @@
+package net.kotek.jdbm;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of free space in data file.
+ * Neighbouring free extents are merged together and allocation uses best-fit strategy.
+ * <p/>
+ * Extents never cross segment boundary (ByteBuffer size), as records can not be split between two buffers.
+ * <p/>
+ * This class is not thread safe, RecordStore write lock must be held while it is used.
+ *
+ * @author Jan Kotek
+ */
+class FreeExtents {
+
+    static final class Extent implements Comparable<Extent>{
+        final long offset;
+        final long size;
+
+        Extent(long offset, long size) {
+            this.offset = offset;
+            this.size = size;
+        }
+
+        /** order by size and offset, so best fit is first extent greater or equal to required size */
+        @Override
+        public int compareTo(Extent o) {
+            if(size<o.size) return -1;
+            if(size>o.size) return 1;
+            if(offset<o.offset) return -1;
+            if(offset>o.offset) return 1;
+            return 0;
+        }
+    }
+
+    protected final long segmentSize;
+
+    protected final TreeMap<Long,Extent> byOffset = new TreeMap<Long, Extent>();
+    protected final TreeSet<Extent> bySize = new TreeSet<Extent>();
+
+    /** total size of free space */
+    protected long freeSize = 0;
+
+    FreeExtents(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Marks space as free and merges it with neighbouring free extents.
+     */
+    void free(long offset, long size){
+        if(CC.ASSERT && size<=0) throw new IllegalArgumentException("size: "+size);
+        if(CC.ASSERT && offset/segmentSize != (offset+size-1)/segmentSize)
+            throw new IllegalArgumentException("extent crosses segment boundary");
+        freeSize+=size;
+
+        //merge with previous extent, if it ends at our offset and it is in the same segment
+        if(offset%segmentSize!=0){
+            final Map.Entry<Long,Extent> prev = byOffset.lowerEntry(offset);
+            if(prev!=null){
+                final Extent p = prev.getValue();
+                if(CC.ASSERT && p.offset+p.size>offset) throw new InternalError("overlapping free extents");
+                if(p.offset+p.size==offset){
+                    remove(p);
+                    offset = p.offset;
+                    size += p.size;
+                }
+            }
+        }
+
+        //merge with next extent
+        if((offset+size)%segmentSize!=0){
+            final Extent n = byOffset.get(offset+size);
+            if(n!=null){
+                remove(n);
+                size+=n.size;
+            }
+        }
+        add(new Extent(offset,size));
+    }
+
+    /**
+     * Takes space from smallest free extent, which is large enough.
+     *
+     * @return offset of allocated space, or 0 if there is no large enough extent
+     */
+    long take(long size){
+        final Extent e = bySize.ceiling(new Extent(0,size));
+        if(e==null) return 0;
+        remove(e);
+        if(e.size!=size){
+            //return remaining space
+            add(new Extent(e.offset+size, e.size - size));
+        }
+        freeSize-=size;
+        return e.offset;
+    }
+
+    /**
+     * Takes space from smallest free extent, which is large enough and where allocated space ends bellow given limit.
+     * Used by compaction to move records towards beginning of file.
+     *
+     * @return offset of allocated space, or 0 if there is no such extent
+     */
+    long takeBellow(long size, long limit){
+        for(Extent e:bySize.tailSet(new Extent(0,size))){
+            if(e.offset+size>limit) continue;
+            remove(e);
+            if(e.size!=size){
+                add(new Extent(e.offset+size, e.size - size));
+            }
+            freeSize-=size;
+            return e.offset;
+        }
+        return 0;
+    }
+
+    /**
+     * Takes space from free extent with lowest offset, which is large enough and where allocated space ends bellow given limit.
+     * Used by compaction to move records towards beginning of file.
+     *
+     * @return offset of allocated space, or 0 if there is no such extent
+     */
+    long takeFirst(long size, long limit){
+        for(Extent e:byOffset.values()){
+            if(e.offset+size>limit) return 0;
+            if(e.size<size) continue;
+            remove(e);
+            if(e.size!=size){
+                add(new Extent(e.offset+size, e.size - size));
+            }
+            freeSize-=size;
+            return e.offset;
+        }
+        return 0;
+    }
+
+    /**
+     * If there is free extent at the end of file, it is removed so file can be shrinked.
+     * File end never moves into previous segment.
+     *
+     * @param end current end of file
+     * @return new end of file
+     */
+    long trimTail(long end){
+        while(!byOffset.isEmpty()){
+            final Extent e = byOffset.lastEntry().getValue();
+            if(e.offset+e.size!=end || e.offset%segmentSize==0)
+                break;
+            remove(e);
+            freeSize-=e.size;
+            end = e.offset;
+        }
+        return end;
+    }
+
+    /**
+     * Same as {@link #trimTail(long)}, but file end may also move into previous segments,
+     * if last segments are completely free. Caller must release buffers of those segments.
+     *
+     * @param end current end of file
+     * @return new end of file
+     */
+    long trimSegments(long end){
+        for(;;){
+            end = trimTail(end);
+            //is whole last segment free?
+            final long segmentStart = end%segmentSize==0? end-segmentSize : end - end%segmentSize;
+            final Extent e = byOffset.get(segmentStart);
+            if(e==null || e.offset+e.size!=end || e.offset==0) return end;
+            remove(e);
+            freeSize-=e.size;
+            end = e.offset;
+        }
+    }
+
+    /** removes and returns extent with lowest offset, or null if there is no free space*/
+    Extent poll(){
+        final Map.Entry<Long,Extent> e = byOffset.firstEntry();
+        if(e == null) return null;
+        remove(e.getValue());
+        freeSize-=e.getValue().size;
+        return e.getValue();
+    }
+
+    boolean isEmpty(){
+        return byOffset.isEmpty();
+    }
+
+    int extentCount(){
+        return byOffset.size();
+    }
+
+    private void add(Extent e){
+        byOffset.put(e.offset, e);
+        bySize.add(e);
+    }
+
+    private void remove(Extent e){
+        byOffset.remove(e.offset);
+        bySize.remove(e);
+    }
+
+
+}
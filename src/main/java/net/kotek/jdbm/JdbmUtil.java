@@ -4,6 +4,8 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOError;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -162,4 +164,91 @@ final public class JdbmUtil {
         return ret;
     }
 
+
+    /** sun.misc.Unsafe instance, null if it is not available */
+    static final Object UNSAFE = unsafe();
+
+    /** {@code Unsafe.invokeCleaner(ByteBuffer)}, available since Java 9 */
+    private static final Method INVOKE_CLEANER = unsafeMethod("invokeCleaner", ByteBuffer.class);
+
+    /** {@code Unsafe.loadFence()}, available since Java 8 */
+    private static final Method LOAD_FENCE = unsafeMethod("loadFence");
+
+    /** {@code DirectByteBuffer.cleaner()} and {@code Cleaner.clean()}, used on Java 6 to 8 */
+    private static final Method BUFFER_CLEANER = INVOKE_CLEANER!=null? null : accessibleMethod("java.nio.DirectByteBuffer", "cleaner");
+    private static final Method CLEANER_CLEAN = INVOKE_CLEANER!=null? null : accessibleMethod("sun.misc.Cleaner", "clean");
+
+    private static Object unsafe(){
+        try{
+            final Field theUnsafe = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return theUnsafe.get(null);
+        }catch(Exception e){
+            return null;
+        }
+    }
+
+    private static Method unsafeMethod(String name, Class<?>... params){
+        if(UNSAFE == null) return null;
+        try{
+            return UNSAFE.getClass().getMethod(name, params);
+        }catch(Exception e){
+            return null;
+        }
+    }
+
+    private static Method accessibleMethod(String className, String name){
+        try{
+            final Method m = Class.forName(className).getMethod(name);
+            m.setAccessible(true);
+            return m;
+        }catch(Exception e){
+            return null;
+        }
+    }
+
+    /**
+     * Loads before fence are not reordered with loads after it, {@code StampedLock.validate} uses the same fence.
+     * Unsafe.loadFence is used on Java 8 and newer. Older JVMs do nothing here, stamp validation then relies
+     * on CPU which does not reorder loads with other loads (x86).
+     */
+    static void loadFence(){
+        if(LOAD_FENCE == null) return;
+        try{
+            LOAD_FENCE.invoke(UNSAFE);
+        }catch(Exception e){
+            throw new InternalError(e.toString());
+        }
+    }
+
+    /**
+     * Releases memory of direct (or memory mapped) ByteBuffer immediately, without waiting for GC.
+     * Buffer must not be accessed after this call, otherwise JVM may crash.
+     * <p/>
+     * There is no public API for this, so JVM internals are used by reflection.
+     * They are resolved once, if they are not available, buffer is left for GC.
+     *
+     * @return true if buffer was released
+     */
+    static boolean freeDirectBuffer(ByteBuffer buf){
+        if(!buf.isDirect()) return false;
+        try{
+            if(INVOKE_CLEANER!=null){
+                //Java 9 and newer
+                INVOKE_CLEANER.invoke(UNSAFE, buf);
+                return true;
+            }
+            if(BUFFER_CLEANER!=null && CLEANER_CLEAN!=null){
+                //Java 6 to 8
+                final Object cleaner = BUFFER_CLEANER.invoke(buf);
+                if(cleaner == null) return false;
+                CLEANER_CLEAN.invoke(cleaner);
+                return true;
+            }
+        }catch(Exception e){
+            LOG.fine("Could not free direct buffer, leaving it for GC: "+e);
+        }
+        return false;
+    }
+
 }
@@ -1,5 +1,7 @@
 package net.kotek.jdbm;
 
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 
 /**
@@ -68,6 +70,76 @@ public class RecordHardCache implements RecordManager{
         return v;
     }
 
+    @Override
+    public <A> A recordGetBuffer(long recid, RecordReader<A> reader) {
+        //cache holds deserialized objects, so binary form is always read from store
+        return recman.recordGetBuffer(recid, reader);
+    }
+
+    @Override
+    public <A> long[] recordPutBatch(A[] values, Serializer<A> serializer) {
+        final long[] recids = recman.recordPutBatch(values, serializer);
+        for(int i=0;i<recids.length;i++)
+            cache.put(recids[i], values[i]!=null?values[i]:NULL);
+        return recids;
+    }
+
+    @Override
+    public <A> void recordUpdateBatch(long[] recids, A[] values, Serializer<A> serializer) {
+        for(int i=0;i<recids.length;i++)
+            cache.put(recids[i], values[i]!=null?values[i]:NULL);
+        recman.recordUpdateBatch(recids, values, serializer);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A> void recordGetBatch(long[] recids, A[] values, Serializer<A> serializer) {
+        //cache misses are forwarded to underlying store as single batch
+        final int[] missPos = new int[recids.length];
+        int misses = 0;
+        for(int i=0;i<recids.length;i++){
+            final Object v = cache.get(recids[i]);
+            if(v==null) missPos[misses++] = i;
+            else values[i] = v==NULL? null : (A) v;
+        }
+        if(misses==0) return;
+        final long[] missRecids = new long[misses];
+        for(int i=0;i<misses;i++) missRecids[i] = recids[missPos[i]];
+        final A[] missValues = Arrays.copyOf(values, misses);
+        recman.recordGetBatch(missRecids, missValues, serializer);
+        for(int i=0;i<misses;i++){
+            final A v = missValues[i];
+            values[missPos[i]] = v;
+            cache.put(missRecids[i], v!=null?v:NULL);
+        }
+    }
+
+    @Override
+    public void sync() {
+        recman.sync();
+    }
+
+    @Override
+    public void commit() {
+        recman.commit();
+    }
+
+    /** snapshot bypasses cache, it would contain newer versions of records */
+    @Override
+    public RecordManager snapshot() {
+        return recman.snapshot();
+    }
+
+    @Override
+    public void backup(WritableByteChannel out) {
+        recman.backup(out);
+    }
+
+    @Override
+    public void compact(long stepTime, long pauseTime) {
+        recman.compact(stepTime, pauseTime);
+    }
+
     @Override
     public void close() {
         MemoryLowWarningSystem.removeListener(lowMemoryListener);
@@ -1,5 +1,7 @@
 package net.kotek.jdbm;
 
+import java.nio.channels.WritableByteChannel;
+
 /**
  * RecordManager is center-piece for managing records in JDBM.
  * It is responsible for retrieving and storing records
@@ -34,6 +36,17 @@ public interface RecordManager {
      */
     <A> A recordGet(long recid, Serializer<A> serializer);
 
+    /**
+     * Get record from store/cache and pass its binary form to reader without copying.
+     * Store holds its read lock while reader runs, so reader should not block.
+     *
+     * @param recid (record identifier) under which record was persisted
+     * @param reader used to deserialize record from read-only buffer, valid only during the call
+     * @param <A> record type
+     * @return record matching given recid, or null if record is not found under given recid.
+     */
+    <A> A recordGetBuffer(long recid, RecordReader<A> reader);
+
     /**
      * Update existing record with new value.
      *
@@ -47,6 +60,38 @@ public interface RecordManager {
     <A> void recordUpdate(long recid, A value, Serializer<A> serializer);
 
 
+    /**
+     * Adds multiple records into store/cache at once.
+     * Store may take its lock only once for whole batch.
+     *
+     * @param values records to be added
+     * @param serializer used to serialize records into binary form
+     * @param <A> type of record
+     * @return recids under which records are stored, in the same order as values
+     */
+    <A> long[] recordPutBatch(A[] values, Serializer<A> serializer);
+
+    /**
+     * Get multiple records from store/cache at once.
+     * Store may take its lock only once and read records in order of their position on disk.
+     *
+     * @param recids (record identifiers) under which records were persisted
+     * @param values array filled with records, at the same position as their recid. Missing records are null.
+     * @param serializer used to deserialize records from binary form
+     * @param <A> record type
+     */
+    <A> void recordGetBatch(long[] recids, A[] values, Serializer<A> serializer);
+
+    /**
+     * Update multiple existing records at once.
+     *
+     * @param recids (record identifiers) under which records were persisted
+     * @param values new record values, at the same position as their recid
+     * @param serializer used to serialize records into binary form
+     * @param <A> record type
+     */
+    <A> void recordUpdateBatch(long[] recids, A[] values, Serializer<A> serializer);
+
     /**
      * Remove existing record from store/cache
      *
@@ -80,6 +125,44 @@ public interface RecordManager {
      */
     void close();
 
-    //TODO commit method
+    /**
+     * Makes all changes made since previous commit durable.
+     * Stores without transactions write changes directly, in this case commit does nothing.
+     */
+    void commit();
+
+    /**
+     * Forces changes written into store to disk.
+     * Only regions modified since previous sync are written, so it is cheap if little was modified.
+     * Stores with transactions make changes durable on commit, this does not affect uncommitted changes.
+     */
+    void sync();
+
+    /**
+     * Returns read-only view of records as they were when snapshot was taken.
+     * Modifications made after this call are not visible in snapshot,
+     * so long reads get consistent data without blocking writers.
+     * Store keeps superseded records until snapshot is closed, so it should not stay open for too long.
+     *
+     * @return read-only snapshot, must be closed by {@link #close()} when it is no longer needed
+     */
+    RecordManager snapshot();
+
+    /**
+     * Streams consistent copy of store into channel, while store is in use.
+     * Writers are blocked only for short time at the end of backup.
+     *
+     * @param out channel where copy is written, it is not closed
+     */
+    void backup(WritableByteChannel out);
+
+    /**
+     * Moves records from end of store into free space and shrinks store.
+     * Store can be used by other threads while compaction runs.
+     *
+     * @param stepTime maximal time in milliseconds store is locked by single compaction step
+     * @param pauseTime time in milliseconds between compaction steps
+     */
+    void compact(long stepTime, long pauseTime);
 
 }
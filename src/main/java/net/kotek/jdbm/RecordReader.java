@@ -0,0 +1,49 @@
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Deserializes record directly from buffer, without copying it into DataInput first.
+ * Used by {@link RecordManager#recordGetBuffer(long, RecordReader)}.
+ *
+ * @author Jan Kotek
+ */
+public interface RecordReader<A> {
+
+    /**
+     * Deserialize record from read-only buffer.
+     * Buffer starts at position zero and its limit is record size.
+     * It may be view of memory mapped file, so it is valid only for duration of this call
+     * and must not be kept after method returns.
+     *
+     * @param buf read-only view of record data
+     * @return deserialized object
+     * @throws IOException
+     */
+    public A read(ByteBuffer buf) throws IOException;
+
+
+    /** Copies record into byte[] with single bulk get */
+    RecordReader<byte[]> BYTE_ARRAY_READER = new RecordReader<byte[]>() {
+        @Override
+        public byte[] read(ByteBuffer buf) throws IOException {
+            final byte[] ret = new byte[buf.remaining()];
+            buf.get(ret);
+            return ret;
+        }
+    };
+
+    /** Decodes UTF8 string directly from buffer, counterpart of {@link Serializer#STRING_SERIALIZER} */
+    RecordReader<String> STRING_READER = new RecordReader<String>() {
+
+        private final Charset utf8 = Charset.forName(JdbmUtil.UTF8);
+
+        @Override
+        public String read(ByteBuffer buf) throws IOException {
+            return utf8.decode(buf).toString();
+        }
+    };
+
+}
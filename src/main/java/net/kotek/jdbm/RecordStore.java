@@ -1,33 +1,85 @@
 package net.kotek.jdbm;
 
 
-import java.io.File;
+import java.io.DataInput;
+import java.io.EOFException;
 import java.io.IOError;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class RecordStore implements RecordManager {
 
     protected final boolean inMemory;
 
-    private FileChannel dataFileChannel;
-    private FileChannel indexFileChannel;
-
-    protected ByteBuffer[] dataBufs = new ByteBuffer[8];
-    protected ByteBuffer[] indexBufs = new ByteBuffer[8];
+    protected final Volume dataVol;
+    protected final Volume indexVol;
 
     static final int  BUF_SIZE = 1<<30;
-    static final int BUF_SIZE_RECID = BUF_SIZE/8;
 
     static final int BUF_GROWTH = 1<<23;
 
-    static final long PHYS_OFFSET_MASK = 0x0000FFFFFFFFFFFFL;
+    /**
+     * Segment size of direct memory store. Each segment is allocated with full capacity,
+     * so store grows by adding new chunks and existing data are never copied.
+     */
+    static final int DIRECT_CHUNK_SIZE = 1<<20;
+
+    /** segment size of data volume, records never cross segment boundary */
+    protected final int bufSize;
+
+    static final long PHYS_OFFSET_MASK = 0x00003FFFFFFFFFFFL;
+
+    /**
+     * Index value with this bit set points to record larger than {@link #MAX_RECORD_SIZE}.
+     * Such record is stored as linked chain of physical records, see {@link #physRecWrite(byte[], int)}
+     */
+    static final long MASK_LARGE = 0x0000800000000000L;
+
+    /**
+     * Index value with this bit set points to physical record with headroom.
+     * Size in index value is capacity of physical record, record starts with
+     * {@link #SLACK_HEADER_SIZE} bytes of used length, followed by data.
+     * Record which grows within its capacity is updated in place.
+     */
+    static final long MASK_SLACK = 0x0000400000000000L;
+
+    /** size of used length header in record with headroom */
+    static final int SLACK_HEADER_SIZE = 2;
+
+    /** minimal headroom reserved for record, see {@link #allocationSize(int, int)} */
+    static final int SLACK_MIN_HEADROOM = 16;
+
+    /**
+     * Records up to this size are stored directly in index value, without physical record.
+     * Size is in top 16 bits as usual and data are in remaining 48 bits, see {@link #inlineValue(byte[], int)}.
+     * Physical records and chunks of large records are never this small, so size alone identifies inline record.
+     */
+    static final int MAX_INLINE_SIZE = 6;
+
+    /**
+     * Index value of recid which is free, or was allocated but has no record written yet.
+     * Size and offset are zero, so it reads as null. Empty record has index value zero,
+     * so free recids can be told apart when free lists are rebuilt by {@link #recover()}.
+     */
+    static final long FREE_RECID = MASK_SLACK;
 
 
 
@@ -44,8 +96,17 @@ public class RecordStore implements RecordManager {
     /** offset in index file which points to FREEINDEX list (free slots in index file) */
     static final int RECID_FREE_INDEX_SLOTS = 3;
 
-    //TODO slots 4 to 18 are currently unused
     static final int RECID_NAMED_RECODS = 4;
+
+    /**
+     * {@link #STORE_OPEN} while store is opened for writing, zero after it was closed correctly.
+     * If store is opened with this flag set, free lists are rebuilt, see {@link #recover()}.
+     */
+    static final int RECID_STORE_STATE = 5;
+
+    static final long STORE_OPEN = 1L;
+
+    //TODO slots 6 to 18 are currently unused
     /**
      * This recid is reserved for user usage. You may put whatever you want here
      * It is only used by JDBM during unit tests, not at production
@@ -63,6 +124,12 @@ public class RecordStore implements RecordManager {
 
     static final int MAX_RECORD_SIZE = 65535;
 
+    /** each physical record in large record chain starts with 8 byte link to next physical record */
+    static final int LARGE_RECORD_LINK_SIZE = 8;
+
+    /** how many bytes of record data fits into single physical record in large record chain */
+    static final int LARGE_RECORD_CHUNK_DATA = MAX_RECORD_SIZE - LARGE_RECORD_LINK_SIZE;
+
 
 
 
@@ -74,80 +141,207 @@ public class RecordStore implements RecordManager {
     /** offset in index file from which normal physid starts */
     static final int INDEX_OFFSET_START = RECID_FREE_PHYS_RECORDS_START +NUMBER_OF_PHYS_FREE_SLOT;
 
+    /** size of free space region reserved by allocation arena at once */
+    static final int ARENA_REGION_SIZE = MAX_RECORD_SIZE;
+    /** records larger than this are not allocated from arenas, but under write lock */
+    static final int ARENA_MAX_RECORD_SIZE = ARENA_REGION_SIZE/4;
+    /** number of recids reserved by allocation arena at once */
+    static final int ARENA_RECID_BATCH = 64;
+    /** when arena has this many released records and recids, they are returned into store */
+    static final int ARENA_MAX_RELEASED = 1024;
+    /** number of locks which protect index values when arenas are used, must be power of two */
+    static final int RECID_LOCKS = 64;
 
+    /** how many times optimistic read is retried, before it falls back to read lock */
+    static final int OPTIMISTIC_READ_RETRIES = 3;
 
+    /** hot backup copies volumes in pieces of this size, read lock is held only while single piece is copied */
+    static final int BACKUP_PIECE_SIZE = 1<<22;
+    /** final pass of hot backup, which blocks writers, starts once fewer pages than this remain modified */
+    static final int BACKUP_FINAL_PAGES = 256;
+    /** maximal number of passes over modified pages, before final pass is forced */
+    static final int BACKUP_MAX_PASSES = 16;
 
+    protected static final byte BACKUP_END = 0;
+    protected static final byte BACKUP_INDEX = 1;
+    protected static final byte BACKUP_DATA = 2;
 
 
-    public RecordStore(String fileName) {
 
 
-        this.inMemory = fileName ==null;
-        try{
-            writeLock_lock();
 
 
-            File dataFile = inMemory? null : new File(fileName+".d");
-            File indexFile = inMemory? null : new File(fileName+".i");
+    /**
+     * Free space in data file when coalescing allocator is used, otherwise null.
+     * Free space is loaded from long stacks when store is opened and written back on close.
+     */
+    protected FreeExtents freeExtents;
 
-            if(inMemory){
-                dataBufs[0] = ByteBuffer.allocate(1<<16);
-                indexBufs[0] = ByteBuffer.allocate(1<<16);
-                writeInitValues();
+    /** true while free space is written back into long stacks */
+    private boolean freeExtentsFlush = false;
 
-            }else if(!dataFile.exists() || dataFile.length()==0){
-                //store does not exist, create files
-                dataFileChannel = new RandomAccessFile(dataFile, "rw").getChannel();
-                indexFileChannel =new RandomAccessFile(indexFile, "rw").getChannel();
+    /**
+     * Allocation arenas, writers allocate space and recids from them under shared lock, so they do not block each other.
+     * Null if all modifications are done under write lock.
+     */
+    protected final AllocationArena[] arenas;
 
-                dataBufs[0] =  dataFileChannel.map(FileChannel.MapMode.READ_WRITE, 0, BUF_GROWTH);
-                indexBufs[0] =  indexFileChannel.map(FileChannel.MapMode.READ_WRITE, 0,BUF_GROWTH);
-                writeInitValues();
-            }else{
-                dataFileChannel = new RandomAccessFile(dataFile, "rw").getChannel();
-                indexFileChannel =new RandomAccessFile(indexFile, "rw").getChannel();
-
-                //store exists, open
-                final long dataFileSize = dataFileChannel.size();
-                final long indexFileSize = indexFileChannel.size();
-                //map zero buffers to check header
-                dataBufs[0] =  dataFileChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(BUF_SIZE, dataFileSize));
-                indexBufs[0] =  indexFileChannel.map(FileChannel.MapMode.READ_WRITE, 0,Math.min(BUF_SIZE, indexFileSize));
-
-                //check headers
-                if(CC.ASSERT){
-                    if(dataFileSize<8 || indexFileSize<8 ||
-                            dataBufs[0].getLong(0)!=HEADER ||
-                            indexBufs[0].getLong(0)!=HEADER ){
-                         throw new IOException("Wrong file header, probably not JDBM store.");
-                    }
-                }
+    /**
+     * Locks for index values, used together with arenas.
+     * Writer must hold write lock for given recid, reader holds read lock.
+     */
+    protected final ReentrantReadWriteLock[] recidLocks;
 
-                //now map remaining buffers
-                long pos = 1;
-                while(pos*BUF_SIZE<dataFileSize){
-                    if(pos == dataBufs.length){
-                        dataBufs = Arrays.copyOf(dataBufs, dataBufs.length*2);
-                    }
+    /**
+     * Incremented when write lock is taken and again when it is released, so it is odd while write lock is held.
+     * Optimistic reader validates that it did not change while record was copied.
+     */
+    protected final AtomicLong writeLockStamp = new AtomicLong();
 
-                    long remSize = Math.min(dataFileSize-pos*BUF_SIZE, BUF_SIZE) ;
-                    dataBufs[((int) pos)] = dataFileChannel.map(FileChannel.MapMode.READ_WRITE, pos*BUF_SIZE, remSize);
-                    pos++;
-                }
+    /**
+     * Stamps for {@link #recidLocks}, odd while writer holds given lock. Null if arenas are not used.
+     */
+    protected final AtomicLongArray recidStamps;
 
-                pos = 1;
-                while(pos*BUF_SIZE<indexFileSize){
-                    if(pos == indexBufs.length){
-                        indexBufs = Arrays.copyOf(indexBufs, indexBufs.length*2);
-                    }
+    /** if true, records are read without lock and validated using stamps, see {@link #optimisticRead(long)} */
+    protected final boolean optimisticReads;
 
-                    long remSize = Math.min(indexFileSize-pos*BUF_SIZE, BUF_SIZE) ;
-                    indexBufs[((int) pos)] = indexFileChannel.map(FileChannel.MapMode.READ_WRITE, pos*BUF_SIZE, remSize);
-                    pos++;
-                }
+    /**
+     * True if volumes are read-only. Store must already exist, free space is not loaded
+     * and all modifications fail with {@link UnsupportedOperationException}.
+     */
+    protected final boolean readOnly;
+
+    /** only one hot backup runs at the time */
+    protected final Object backupLock = new Object();
+
+    /** open snapshots, array is replaced under write lock */
+    protected volatile Snapshot[] snapshots = new Snapshot[0];
+
+    /** true if store was not closed correctly and free lists were rebuilt when it was opened */
+    protected boolean recovered = false;
+
+    /** if true, records are allocated with headroom, so they can grow in place. See {@link #MASK_SLACK} */
+    protected final boolean recordHeadroom;
+
+    /** space of records moved by compaction, which was not released yet. Guarded by write lock */
+    private long[] compactReleased = new long[16];
+    private int compactReleasedCount = 0;
+
+
+    public RecordStore(String fileName) {
+        this(fileName, false);
+    }
+
+    /**
+     * @param fileName file to open, null for in-memory store
+     * @param freeSpaceCoalescing if true free space is tracked in memory by {@link FreeExtents},
+     *                            otherwise free records are kept in long stacks by their size
+     */
+    public RecordStore(String fileName, boolean freeSpaceCoalescing) {
+        this(fileName, freeSpaceCoalescing, 0);
+    }
+
+    /**
+     * @param fileName file to open, null for in-memory store
+     * @param freeSpaceCoalescing if true free space is tracked in memory by {@link FreeExtents},
+     *                            otherwise free records are kept in long stacks by their size
+     * @param allocationArenas number of arenas writers allocate from concurrently,
+     *                         0 if all modifications should be done under write lock
+     */
+    public RecordStore(String fileName, boolean freeSpaceCoalescing, int allocationArenas) {
+        this(fileName, freeSpaceCoalescing, allocationArenas, false);
+    }
+
+    /**
+     * @param fileName file to open, null for in-memory store
+     * @param freeSpaceCoalescing if true free space is tracked in memory by {@link FreeExtents},
+     *                            otherwise free records are kept in long stacks by their size
+     * @param allocationArenas number of arenas writers allocate from concurrently,
+     *                         0 if all modifications should be done under write lock
+     * @param optimisticReads if true records are read without lock and validated afterwards
+     */
+    public RecordStore(String fileName, boolean freeSpaceCoalescing, int allocationArenas, boolean optimisticReads) {
+        this(Volume.factory(fileName, true, false), freeSpaceCoalescing, allocationArenas, optimisticReads);
+    }
+
+    /**
+     * @param volumeFactory creates volumes where data and index are stored
+     * @param freeSpaceCoalescing if true free space is tracked in memory by {@link FreeExtents},
+     *                            otherwise free records are kept in long stacks by their size
+     * @param allocationArenas number of arenas writers allocate from concurrently,
+     *                         0 if all modifications should be done under write lock
+     * @param optimisticReads if true records are read without lock and validated afterwards
+     */
+    public RecordStore(Volume.Factory volumeFactory, boolean freeSpaceCoalescing, int allocationArenas, boolean optimisticReads) {
+        this(volumeFactory, freeSpaceCoalescing, allocationArenas, optimisticReads, false);
+    }
+
+    /**
+     * @param volumeFactory creates volumes where data and index are stored
+     * @param freeSpaceCoalescing if true free space is tracked in memory by {@link FreeExtents},
+     *                            otherwise free records are kept in long stacks by their size
+     * @param allocationArenas number of arenas writers allocate from concurrently,
+     *                         0 if all modifications should be done under write lock
+     * @param optimisticReads if true records are read without lock and validated afterwards
+     * @param recordHeadroom if true records are allocated with free space, so they can grow in place
+     */
+    public RecordStore(Volume.Factory volumeFactory, boolean freeSpaceCoalescing, int allocationArenas,
+                       boolean optimisticReads, boolean recordHeadroom) {
+        this.optimisticReads = optimisticReads;
+        this.recordHeadroom = recordHeadroom;
+        dataVol = volumeFactory.createDataVolume();
+        indexVol = volumeFactory.createIndexVolume();
+        this.readOnly = dataVol.isReadOnly();
+        //there are no writers in read-only store, so no arenas
+        if(allocationArenas>0 && !readOnly){
+            arenas = new AllocationArena[allocationArenas];
+            for(int i=0;i<arenas.length;i++){
+                arenas[i] = new AllocationArena(ARENA_RECID_BATCH);
+            }
+            recidLocks = new ReentrantReadWriteLock[RECID_LOCKS];
+            for(int i=0;i<recidLocks.length;i++){
+                recidLocks[i] = new ReentrantReadWriteLock();
+            }
+            recidStamps = new AtomicLongArray(RECID_LOCKS);
+        }else{
+            arenas = null;
+            recidLocks = null;
+            recidStamps = null;
+        }
+
+        //optimistic readers do not take lock and may still use superseded buffers, so leave them for GC
+        dataVol.setReleaseBuffers(!optimisticReads);
+        indexVol.setReleaseBuffers(!optimisticReads);
+        this.inMemory = dataVol instanceof Volume.MemoryVol;
+        this.bufSize = dataVol.chunkSize;
+        try{
+            writeLock_lock();
 
+            if(dataVol.isEmpty()){
+                if(readOnly) throw new IOException("Store does not exist, can not open it read-only.");
+                //store does not exist, create it
+                writeInitValues();
+            }else if(indexVol.isEmpty() ||
+                    dataVol.getLong(0)!=HEADER ||
+                    indexVol.getLong(0)!=HEADER ){
+                throw new IOException("Wrong file header, probably not JDBM store.");
+            }
+
+            if(!readOnly){
+                if(indexValGet(RECID_STORE_STATE)==STORE_OPEN){
+                    JdbmUtil.LOG.warning("Store was not closed correctly, rebuilding free space and free recids");
+                    recover();
+                    recovered = true;
+                }
+                //flag must be on disk before any modification
+                indexValPut(RECID_STORE_STATE, STORE_OPEN);
+                indexVol.sync();
             }
 
+            if(freeSpaceCoalescing && !readOnly)
+                freeSpaceLoad();
+
 
         }catch (IOException e){
             throw new IOError(e);
@@ -158,8 +352,10 @@ public class RecordStore implements RecordManager {
     }
 
     private void writeInitValues() {
+        dataVol.ensureAvailable(8);
+        indexVol.ensureAvailable(INDEX_OFFSET_START * 8);
         //write headers
-        dataBufs[0].putLong(0, HEADER);
+        dataVol.putLong(0, HEADER);
         indexValPut(0L,HEADER);
 
         //and set current sizes
@@ -172,34 +368,67 @@ public class RecordStore implements RecordManager {
 
     @Override
     public <A> long recordPut(A value, Serializer<A> serializer) {
+        checkWritable();
         try{
-            DataOutput2 out = new DataOutput2();
+            final DataOutput2 out = DataOutput2.borrow();
             serializer.serialize(out,value);
-            if(CC.ASSERT && out.pos>1<<16) throw new InternalError("Record bigger then 64KB");
+
+            if(arenas!=null && out.pos<=ARENA_MAX_RECORD_SIZE){
+                final long recid = arenaRecordPut(out);
+                DataOutput2.release(out);
+                return recid;
+            }
 
             try{
                 writeLock_lock();
-                //update index file
-                long recid = freeRecidTake();
-
-                //get physical record
-                // first 16 bites is record size, remaining 48 bytes is record offset in phys file
-                final long indexValue = out.pos!=0?
-                        freePhysRecTake(out.pos):
-                        0L;
-
-                indexValPut(recid, indexValue);
-
-                final long dataPos = indexValue & PHYS_OFFSET_MASK;
-
-                final ByteBuffer dataBuf = dataBufs[((int) (dataPos / BUF_SIZE))];
-
-                //set data cursor to desired position
-                dataBuf.position((int) (dataPos%BUF_SIZE));
-                //write data
-                dataBuf.put(out.buf,0,out.pos);
+                return recordPutLocked(out.buf, out.pos);
+            }finally {
+                writeLock_unlock();
+                DataOutput2.release(out);
+            }
+        }catch(IOException e){
+            throw new IOError(e);
+        }
+    }
 
-                return recid;
+    @Override
+    public <A> long[] recordPutBatch(A[] values, Serializer<A> serializer) {
+        checkWritable();
+        final long[] recids = new long[values.length];
+        if(arenas!=null){
+            //arenas do not take global lock for small records
+            for(int i=0;i<values.length;i++)
+                recids[i] = recordPut(values[i], serializer);
+            return recids;
+        }
+        try{
+            //serialize outside of lock
+            final byte[][] data = serializeBatch(values, serializer);
+            try{
+                writeLock_lock();
+                //allocate space for all records first, so data file is written sequentially in order of offsets
+                final long[] indexValues = new long[data.length];
+                final long[] offsets = new long[data.length];
+                for(int i=0;i<data.length;i++){
+                    recids[i] = freeRecidTake();
+                    //record did not exist when snapshot was taken
+                    snapshotRetain(recids[i], FREE_RECID);
+                    final int size = data[i].length;
+                    if(size>MAX_INLINE_SIZE && size<=MAX_RECORD_SIZE){
+                        indexValues[i] = freePhysRecTake(allocationSize(size, MAX_RECORD_SIZE));
+                        offsets[i] = indexValues[i] & PHYS_OFFSET_MASK;
+                    }
+                }
+                //inline, empty and large records go first
+                for(int i:sortedOrder(offsets, offsets.length)){
+                    final int size = data[i].length;
+                    final long indexValue =
+                            indexValues[i]!=0? physRecWriteAt(indexValues[i], data[i], size):
+                            size!=0? physRecWrite(data[i], size):
+                            0L;
+                    indexValPut(recids[i], indexValue);
+                }
+                return recids;
             }finally {
                 writeLock_unlock();
             }
@@ -208,6 +437,41 @@ public class RecordStore implements RecordManager {
         }
     }
 
+    /** serializes values into pooled buffer, each value is then copied into array of exact size */
+    protected <A> byte[][] serializeBatch(A[] values, Serializer<A> serializer) throws IOException {
+        final byte[][] data = new byte[values.length][];
+        final DataOutput2 out = DataOutput2.borrow();
+        try{
+            for(int i=0;i<values.length;i++){
+                out.pos = 0;
+                serializer.serialize(out, values[i]);
+                data[i] = out.copyBytes();
+            }
+        }finally {
+            DataOutput2.release(out);
+        }
+        return data;
+    }
+
+    /** inserts new record, caller must hold write lock */
+    protected long recordPutLocked(final byte[] data, final int size) throws IOException {
+        writeLock_checkLocked();
+        //update index file
+        long recid = freeRecidTake();
+        //record did not exist when snapshot was taken
+        snapshotRetain(recid, FREE_RECID);
+
+        //get physical record and write data
+        // first 16 bites is record size, remaining 48 bytes is record offset in phys file
+        final long indexValue = size!=0?
+                physRecWrite(data, size):
+                0L;
+
+        indexValPut(recid, indexValue);
+
+        return recid;
+    }
+
     protected long freeRecidTake() throws IOException {
         writeLock_checkLocked();
         long recid = longStackTake(RECID_FREE_INDEX_SLOTS);
@@ -219,50 +483,17 @@ public class RecordStore implements RecordManager {
 
             indexValPut(RECID_CURRENT_INDEX_FILE_SIZE, indexSize+8);
 
-            //grow buffer if necessary
-            final int indexSlot = (int) (indexSize/BUF_SIZE);
-            ByteBuffer indexBuf =
-                    indexSlot==indexBufs.length?
-                            null:
-                            indexBufs[indexSlot];
-            if(indexBuf == null){
-                //nothing was yet allocated at this position, so create new ByteBuffer
-                if(CC.ASSERT && indexSize%BUF_SIZE!=0) throw new InternalError();
-                indexBuf = indexFileChannel.map(FileChannel.MapMode.READ_WRITE, indexSize, BUF_GROWTH);
-                //make sure array is big enough for new item
-                if(indexSlot == indexBufs.length){
-                    indexBufs = Arrays.copyOf(indexBufs, indexBufs.length * 2);
-                }
-
-                indexBufs[indexSlot] =  indexBuf;
-            }else if(indexSize%BUF_SIZE>=indexBuf.capacity()){
-                //grow buffer
-                if(inMemory){
-                    int newSize = Math.min(BUF_SIZE, indexBuf.capacity()*2);
-                    ByteBuffer newBuf = ByteBuffer.allocate(newSize);
-                    indexBuf.rewind();
-                    newBuf.put(indexBuf);
-                    indexBuf = newBuf;
-                }else{
-                    indexBuf = indexFileChannel.map(
-                        FileChannel.MapMode.READ_WRITE,
-                        (indexSize/BUF_SIZE)*BUF_SIZE,
-                        indexBuf.capacity() + BUF_GROWTH);
-                }
-                if(CC.ASSERT && indexBuf.capacity()>BUF_SIZE) throw new InternalError();
-//                        //force old buffer to be written
-//                        if(indexBuf instanceof MappedByteBuffer){
-//                            ((MappedByteBuffer)indexBuf).force();
-//                        }
-                indexBufs[indexSlot] =  indexBuf;
-            }
-
+            //grow volume if necessary
+            indexVol.ensureAvailable(indexSize+8);
         }
+        //recid stays free until record is written, so it is reclaimed if store crashes meanwhile
+        indexValPut(recid, FREE_RECID);
         return recid;
     }
 
 
     protected void freeRecidPut(long recid) {
+        indexValPut(recid, FREE_RECID);
         longStackPut(RECID_FREE_INDEX_SLOTS, recid);
     }
 
@@ -270,69 +501,188 @@ public class RecordStore implements RecordManager {
     @Override
     public <A> A  recordGet(long recid, Serializer<A> serializer) {
         try{
+            if(optimisticReads){
+                for(int i=0;i<OPTIMISTIC_READ_RETRIES;i++){
+                    final Object data = optimisticRead(recid);
+                    if(data == NULL_RECORD) return null;
+                    if(data == READ_LOCKED) break;
+                    if(data != null){
+                        final byte[] b = (byte[]) data;
+                        final DataInput2 in = new DataInput2(ByteBuffer.wrap(b), 0);
+                        final A value = serializer.deserialize(in, b.length);
+                        if(CC.ASSERT && in.pos != b.length)
+                            throw new InternalError("Data were not fully read, recid:"+recid+", serializer:"+serializer);
+                        return value;
+                    }
+                }
+                //too many concurrent modifications, use lock
+            }
+
+            final Lock recidLock = recidLocks==null? null : recidLock(recid).readLock();
             try{
                 readLock_lock();
+                if(recidLock!=null) recidLock.lock();
+                return recordRead(recid, serializer);
+            }finally{
+                if(recidLock!=null) recidLock.unlock();
+                readLock_unlock();
+            }
 
-                final long indexValue = indexValGet(recid) ;
-                final long dataPos = indexValue & PHYS_OFFSET_MASK;
-                final int dataSize = (int) (indexValue>>>48);
-                if(dataPos == 0) return null;
-
-                final ByteBuffer dataBuf = dataBufs[((int) (dataPos / BUF_SIZE))];
 
-                DataInput2 in = new DataInput2(dataBuf, (int) (dataPos%BUF_SIZE));
-                final A value = serializer.deserialize(in,dataSize);
+        }catch(IOException e){
+            throw new IOError(e);
+        }
+    }
 
-                if(CC.ASSERT &&  in.pos != dataPos%BUF_SIZE + dataSize)
-                        throw new InternalError("Data were not fully read, recid:"+recid+", serializer:"+serializer);
 
-                return value;
-            }finally{
-                readLock_unlock();
-            }
+    @Override
+    public <A> A recordGetBuffer(long recid, RecordReader<A> reader) {
+        final Lock recidLock = recidLocks==null? null : recidLock(recid).readLock();
+        try{
+            readLock_lock();
+            if(recidLock!=null) recidLock.lock();
+            return recordReadBuffer(indexValGet(recid), reader);
+        }catch(IOException e){
+            throw new IOError(e);
+        }finally{
+            if(recidLock!=null) recidLock.unlock();
+            readLock_unlock();
+        }
+    }
 
+    /** passes record data to reader, caller must hold read lock and recid lock if arenas are used */
+    protected <A> A recordReadBuffer(final long indexValue, RecordReader<A> reader) throws IOException {
+        if(isInline(indexValue))
+            return reader.read(ByteBuffer.wrap(inlineData(indexValue)).asReadOnlyBuffer());
+        if((indexValue & MASK_LARGE)!=0){
+            //record is split into multiple physical records, so it must be copied
+            final LargeRecordInput in = new LargeRecordInput(indexValue);
+            final byte[] b = new byte[in.size];
+            in.readFully(b);
+            return reader.read(ByteBuffer.wrap(b).asReadOnlyBuffer());
+        }
+        final long dataPos = indexValue & PHYS_OFFSET_MASK;
+        int dataSize = (int) (indexValue>>>48);
+        if(dataPos == 0) return null;
+
+        final DataInput2 in = dataVol.getDataInput(dataPos, dataSize);
+        if((indexValue & MASK_SLACK)!=0)
+            dataSize = in.readUnsignedShort();
+        //view of volume buffer, valid only while lock is held
+        final ByteBuffer view = in.buf.duplicate();
+        view.position(in.pos);
+        view.limit(in.pos + dataSize);
+        return reader.read(view.slice().asReadOnlyBuffer());
+    }
 
+    @Override
+    public <A> void recordGetBatch(long[] recids, A[] values, Serializer<A> serializer) {
+        try{
+            readLock_lock();
+            //read records in order of their offset, so data file is traversed sequentially
+            for(int i:offsetOrder(recids)){
+                final Lock recidLock = recidLocks==null? null : recidLock(recids[i]).readLock();
+                if(recidLock!=null) recidLock.lock();
+                try{
+                    values[i] = recordRead(recids[i], serializer);
+                }finally {
+                    if(recidLock!=null) recidLock.unlock();
+                }
+            }
         }catch(IOException e){
             throw new IOError(e);
+        }finally {
+            readLock_unlock();
         }
     }
 
+    /**
+     * Returns positions in given array, sorted by offset of physical record. Caller must hold read lock.
+     * Inline and empty records go first.
+     */
+    protected int[] offsetOrder(final long[] recids){
+        final long[] offsets = new long[recids.length];
+        for(int i=0;i<recids.length;i++){
+            final long indexValue = indexValGet(recids[i]);
+            offsets[i] = isInline(indexValue)? 0L : indexValue & PHYS_OFFSET_MASK;
+        }
+        return sortedOrder(offsets, offsets.length);
+    }
+
+    /** @return positions of first {@code count} keys, in ascending order of keys */
+    static int[] sortedOrder(final long[] keys, final int count){
+        final Integer[] order = new Integer[count];
+        for(int i=0;i<count;i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override public int compare(Integer o1, Integer o2) {
+                final long v1 = keys[o1], v2 = keys[o2];
+                return v1<v2 ? -1 : (v1==v2 ? 0 : 1);
+            }
+        });
+        final int[] ret = new int[count];
+        for(int i=0;i<count;i++) ret[i] = order[i];
+        return ret;
+    }
+
+    /** reads record, caller must hold read lock and recid lock if arenas are used */
+    protected <A> A recordRead(long recid, Serializer<A> serializer) throws IOException {
+        return recordRead(recid, indexValGet(recid), serializer);
+    }
+
+    /** reads record pointed by given index value, recid is used only in error messages */
+    protected <A> A recordRead(final long recid, final long indexValue, Serializer<A> serializer) throws IOException {
+        if(isInline(indexValue)){
+            final byte[] b = inlineData(indexValue);
+            final DataInput2 in = new DataInput2(ByteBuffer.wrap(b), 0);
+            final A value = serializer.deserialize(in, b.length);
+            if(CC.ASSERT && in.pos != b.length)
+            throw new InternalError("Data were not fully read, recid:"+recid+", serializer:"+serializer);
+            return value;
+        }
+        if((indexValue & MASK_LARGE)!=0){
+            //record is split into multiple physical records
+            final LargeRecordInput in = new LargeRecordInput(indexValue);
+            final A value = serializer.deserialize(in, in.size);
+            if(CC.ASSERT && in.remaining()!=0)
+            throw new InternalError("Data were not fully read, recid:"+recid+", serializer:"+serializer);
+            return value;
+        }
+        final long dataPos = indexValue & PHYS_OFFSET_MASK;
+        int dataSize = (int) (indexValue>>>48);
+        if(dataPos == 0) return null;
+
+        final DataInput2 in = dataVol.getDataInput(dataPos, dataSize);
+        if((indexValue & MASK_SLACK)!=0)
+            dataSize = in.readUnsignedShort();
+        final int start = in.pos;
+        final A value = serializer.deserialize(in,dataSize);
+
+        if(CC.ASSERT &&  in.pos != start + dataSize)
+            throw new InternalError("Data were not fully read, recid:"+recid+", serializer:"+serializer);
+
+        return value;
+    }
+
 
     @Override
     public <A> void recordUpdate(long recid, A value, Serializer<A> serializer){
+       checkWritable();
        try{
-           DataOutput2 out = new DataOutput2();
+           final DataOutput2 out = DataOutput2.borrow();
            serializer.serialize(out,value);
 
-           //TODO special handling for zero size records
-           if(CC.ASSERT && out.pos>1<<16) throw new InternalError("Record bigger then 64KB");
+           if(arenas!=null && out.pos<=ARENA_MAX_RECORD_SIZE){
+               arenaRecordUpdate(recid, out);
+               DataOutput2.release(out);
+               return;
+           }
+
            try{
                writeLock_lock();
-
-               //check if size has changed
-               final long oldIndexVal = indexValGet(recid);
-               if(oldIndexVal >>>48 == out.pos ){
-                   //size is the same, so just write new data
-                   final long dataPos = oldIndexVal&PHYS_OFFSET_MASK;
-                   final ByteBuffer dataBuf = dataBufs[((int) (dataPos / BUF_SIZE))];
-                   dataBuf.position((int) (dataPos%BUF_SIZE));
-                   dataBuf.put(out.buf,0,out.pos);
-               }else{
-                   //size has changed, so write into new location
-                   final long newIndexValue = freePhysRecTake(out.pos);
-                   final long dataPos = newIndexValue&PHYS_OFFSET_MASK;
-                   final ByteBuffer dataBuf = dataBufs[((int) (dataPos / BUF_SIZE))];
-                   dataBuf.position((int) (dataPos%BUF_SIZE));
-                   dataBuf.put(out.buf,0,out.pos);
-                   //update index file with new location
-                   indexValPut(recid,newIndexValue);
-
-                   //and set old phys record as free
-                   if(oldIndexVal!=0)
-                        freePhysRecPut(oldIndexVal);
-               }
+               recordUpdateLocked(recid, out.buf, out.pos);
            }finally {
                writeLock_unlock();
+               DataOutput2.release(out);
            }
        }catch(IOException e){
            throw new IOError(e);
@@ -340,157 +690,1131 @@ public class RecordStore implements RecordManager {
 
    }
 
-   @Override
-   public void recordDelete(long recid){
+    @Override
+    public <A> void recordUpdateBatch(long[] recids, A[] values, Serializer<A> serializer) {
+        checkWritable();
+        if(arenas!=null){
+            for(int i=0;i<recids.length;i++)
+                recordUpdate(recids[i], values[i], serializer);
+            return;
+        }
         try{
-            writeLock_lock();
-            final long oldIndexVal = indexValGet(recid);
-            indexValPut(recid, 0L);
-            freeRecidPut(recid);
-            if(oldIndexVal!=0)
-                freePhysRecPut(oldIndexVal);
-        }finally {
-            writeLock_unlock();
+            final byte[][] data = serializeBatch(values, serializer);
+            try{
+                writeLock_lock();
+                //write in order of existing offsets, sort is stable so duplicate recid is updated in given order
+                for(int i:offsetOrder(recids))
+                    recordUpdateLocked(recids[i], data[i], data[i].length);
+            }finally {
+                writeLock_unlock();
+            }
+        }catch(IOException e){
+            throw new IOError(e);
         }
     }
 
-    @Override
-    @SuppressWarnings("unchecked")
-    public Long getNamedRecid(String name) {
-        Map<String, Long> recids = (Map<String, Long>) recordGet(RECID_NAMED_RECODS, Serializer.BASIC_SERIALIZER);
-        if(recids == null) return null;
-        return recids.get(name);
-    }
-
-    protected final Object nameRecidLock = new Object();
+    /** updates existing record, caller must hold write lock */
+    protected void recordUpdateLocked(final long recid, final byte[] data, final int size) throws IOException {
+        writeLock_checkLocked();
+        final long oldIndexVal = indexValGet(recid);
+        final boolean retained = snapshotRetain(recid, oldIndexVal);
+        if(retained || !physRecUpdateInPlace(oldIndexVal, data, size)){
+            //size has changed, so write into new location
+            final long newIndexValue = physRecWrite(data, size);
+            //update index file with new location
+            indexValPut(recid,newIndexValue);
 
-    @Override
-    @SuppressWarnings("unchecked")
-   public void setNamedRecid(String name, Long recid) {
-        synchronized (nameRecidLock){
-            Map<String, Long> recids = (Map<String, Long>) recordGet(RECID_NAMED_RECODS, Serializer.BASIC_SERIALIZER);
-            if(recids == null) recids = new HashMap<String, Long>();
-            if(recid!=null)
-                recids.put(name, recid);
-            else
-                recids.remove(name);
-            recordUpdate(RECID_NAMED_RECODS, recids, Serializer.BASIC_SERIALIZER);
+            //and set old phys record as free
+            if(!retained)
+                physRecFree(oldIndexVal);
         }
     }
 
-
-    @Override
-    public void close() {
+   @Override
+   public void recordDelete(long recid){
+        checkWritable();
+        if(arenas!=null){
+            arenaRecordDelete(recid);
+            return;
+        }
         try{
             writeLock_lock();
-//            for(ByteBuffer b : dataBufs){
-//                if(b instanceof MappedByteBuffer){
-//                    ((MappedByteBuffer)b).force();
-//                }
-//            }
-//            for(ByteBuffer b : indexBufs){
-//                if(b instanceof MappedByteBuffer){
-//                    ((MappedByteBuffer)b).force();
-//                }
-//            }
-
-            dataBufs = null;
-            indexBufs = null;
-
-//            dataFileChannel.force(true);
-            if(dataFileChannel!=null)
-                dataFileChannel.close();
-            dataFileChannel = null;
-//            indexFileChannel.force(true);
-            if(indexFileChannel!=null)
-                indexFileChannel.close();
-            indexFileChannel = null;
-
-        }catch(IOException e){
-            throw new IOError(e);
+            final long oldIndexVal = indexValGet(recid);
+            final boolean retained = snapshotRetain(recid, oldIndexVal);
+            freeRecidPut(recid);
+            if(!retained)
+                physRecFree(oldIndexVal);
         }finally {
             writeLock_unlock();
         }
     }
 
+    protected final void checkWritable(){
+        if(readOnly) throw new UnsupportedOperationException("Store is read-only");
+    }
 
-    long longStackTake(final long listRecid) {
-        final long listPhysid = indexValGet(listRecid) &PHYS_OFFSET_MASK;
-        if(listPhysid == 0)
-            return 0; //there is no such list, so just return 0
-
-        writeLock_checkLocked();
-
-        final int bufOffset = (int) (listPhysid%BUF_SIZE);
-       final ByteBuffer dataBuf = dataBufs[((int) (listPhysid / BUF_SIZE))];
-
-        final byte numberOfRecordsInPage = dataBuf.get(bufOffset);
-        final long ret = dataBuf.getLong (bufOffset+numberOfRecordsInPage*8);
+    /** returned by {@link #optimisticRead(long)} if there is no record */
+    protected static final Object NULL_RECORD = new Object();
+    /**
+     * returned by {@link #optimisticRead(long)} if record must be read under lock.
+     * Large records are always read under lock.
+     */
+    protected static final Object READ_LOCKED = new Object();
 
-        //was it only record at that page?
-        if(numberOfRecordsInPage == 1){
-            //yes, delete this page
-            final long previousListPhysid =dataBuf.getLong(bufOffset) &PHYS_OFFSET_MASK;
-            if(previousListPhysid !=0){
-                //update index so it points to previous page
-                indexValPut(listRecid, previousListPhysid | (((long) LONG_STACK_PAGE_SIZE) << 48));
+    /**
+     * Copies record data without taking lock. Stamps are checked before and after copy,
+     * if write lock was taken or recid was modified in meantime, copied data may be broken and read fails.
+     *
+     * @return copy of record data, {@link #NULL_RECORD}, {@link #READ_LOCKED} or null if read failed
+     */
+    protected Object optimisticRead(final long recid){
+        final long stamp = writeLockStamp.get();
+        if((stamp&1)!=0) return null;
+        final int stripe = (int) (recid & (RECID_LOCKS - 1));
+        final long recidStamp = recidStamps==null? 0 : recidStamps.get(stripe);
+        if((recidStamp&1)!=0) return null;
+
+        Object ret;
+        try{
+            final long indexValue = indexValGet(recid);
+            final long dataPos = indexValue & PHYS_OFFSET_MASK;
+            if(isInline(indexValue)){
+                ret = inlineData(indexValue);
+            }else if((indexValue & MASK_LARGE)!=0){
+                ret = READ_LOCKED;
+            }else if(dataPos == 0){
+                ret = NULL_RECORD;
+            }else if((indexValue & MASK_SLACK)!=0){
+                final byte[] b = new byte[slackUsedSize(dataPos)];
+                dataVol.getData(dataPos+SLACK_HEADER_SIZE, b, 0, b.length);
+                ret = b;
             }else{
-                //zero out index
-                indexValPut(listRecid, 0L);
+                final byte[] b = new byte[(int) (indexValue>>>48)];
+                dataVol.getData(dataPos, b, 0, b.length);
+                ret = b;
             }
-            //put space used by this page into free list
-            freePhysRecPut(listPhysid | (((long)LONG_STACK_PAGE_SIZE)<<48));
-        }else{
-            //no, it was not last record at this page, so just decrement the counter
-            dataBuf.put(bufOffset, (byte)(numberOfRecordsInPage-1));
+        }catch(RuntimeException e){
+            //buffers were remapped or index value is broken, this is detected by stamps bellow
+            ret = null;
         }
+
+        //data loads above must not move after stamp validation
+        JdbmUtil.loadFence();
+        if(writeLockStamp.get()!=stamp) return null;
+        if(recidStamps!=null && recidStamps.get(stripe)!=recidStamp) return null;
+        if(ret == null)
+            return READ_LOCKED; //exception was not caused by concurrent modification, read under lock and throw it there
         return ret;
+    }
 
+    protected final ReentrantReadWriteLock recidLock(final long recid){
+        return recidLocks[((int) (recid & (RECID_LOCKS - 1)))];
     }
 
-   void longStackPut(final long listRecid, final long offset) {
-       writeLock_checkLocked();
+    /** takes write lock for index value and makes its stamp odd, so optimistic readers fail */
+    protected final void recidWriteLock(final long recid){
+        recidLock(recid).writeLock().lock();
+        recidStamps.incrementAndGet((int) (recid & (RECID_LOCKS - 1)));
+    }
 
-       //index position was cleared, put into free index list
-        final long listPhysid2 = indexValGet(listRecid) &PHYS_OFFSET_MASK;
+    protected final void recidWriteUnlock(final long recid){
+        recidStamps.incrementAndGet((int) (recid & (RECID_LOCKS - 1)));
+        recidLock(recid).writeLock().unlock();
+    }
 
-        if(listPhysid2 == 0){ //empty list?
-            //yes empty, create new page and fill it with values
-            final long listPhysid = freePhysRecTake(LONG_STACK_PAGE_SIZE) &PHYS_OFFSET_MASK;
-            if(CC.ASSERT && listPhysid == 0) throw new InternalError();
-            ByteBuffer dataBuf = dataBufs[((int) (listPhysid / BUF_SIZE))];
-            //set previous Free Index List page to zero as this is first page
-            dataBuf.putLong((int) (listPhysid%BUF_SIZE ), 0L);
-            //set number of free records in this page to 1
-            dataBuf.put((int)(listPhysid%BUF_SIZE),(byte)1);
+    protected final AllocationArena arenaForCurrentThread(){
+        return arenas[((int) (Thread.currentThread().getId() % arenas.length))];
+    }
 
-            //set  record
-            dataBuf.putLong((int) (listPhysid%BUF_SIZE  + 8), offset);
-            //and update index file with new page location
+    /**
+     * Inserts new record, space and recid are allocated from arena.
+     * Store is locked by shared lock, so other writers can run in parallel.
+     */
+    protected long arenaRecordPut(final DataOutput2 out){
+        final AllocationArena arena = arenaForCurrentThread();
+        //zero size and inline records do not occupy any space
+        final boolean inline = out.pos<=MAX_INLINE_SIZE;
+        final int allocSize = inline? 0 : allocationSize(out.pos, ARENA_MAX_RECORD_SIZE);
+        for(;;){
+            try{
+                sharedLock_lock();
+                long recid = 0;
+                long indexValue = 0;
+                synchronized (arena){
+                    if(arena.canAllocate(allocSize)){
+                        recid = arena.takeRecid();
+                        indexValue = inline? inlineValue(out.buf, out.pos) : arena.take(allocSize);
+                    }
+                }
+                if(recid!=0){
+                    if(!inline)
+                        indexValue = physRecWriteAt(indexValue, out.buf, out.pos);
+                    recidWriteLock(recid);
+                    try{
+                        snapshotRetain(recid, FREE_RECID);
+                        indexValPut(recid, indexValue);
+                    }finally {
+                        recidWriteUnlock(recid);
+                    }
+                    return recid;
+                }
+            }finally {
+                sharedLock_unlock();
+            }
+            //arena is empty, refill it and try again
+            arenaRefill(arena);
+        }
+    }
+
+    /**
+     * Updates record, new space is allocated from arena.
+     * Store is locked by shared lock, so other writers can run in parallel.
+     */
+    protected void arenaRecordUpdate(final long recid, final DataOutput2 out){
+        final AllocationArena arena = arenaForCurrentThread();
+        for(;;){
+            boolean updated = false;
+            int released = 0;
+            try{
+                sharedLock_lock();
+                recidWriteLock(recid);
+                try{
+                    final long oldIndexVal = indexValGet(recid);
+                    final boolean retained = snapshotRetain(recid, oldIndexVal);
+                    if(!retained && physRecUpdateInPlace(oldIndexVal, out.buf, out.pos))
+                        return;
+                    final boolean inline = out.pos<=MAX_INLINE_SIZE;
+                    long newIndexValue;
+                    if(inline){
+                        newIndexValue = inlineValue(out.buf, out.pos);
+                    }else synchronized (arena){
+                        newIndexValue = arena.take(allocationSize(out.pos, ARENA_MAX_RECORD_SIZE));
+                    }
+                    if(newIndexValue!=0 || inline){
+                        if(!inline)
+                            newIndexValue = physRecWriteAt(newIndexValue, out.buf, out.pos);
+                        indexValPut(recid, newIndexValue);
+                        //space retained by snapshot is released when snapshot is closed
+                        released = arenaRelease(arena, retained? 0L : oldIndexVal);
+                        updated = true;
+                    }
+                }finally {
+                    recidWriteUnlock(recid);
+                }
+            }finally {
+                sharedLock_unlock();
+            }
+            if(updated){
+                if(released>=ARENA_MAX_RELEASED)
+                    arenaRefill(arena);
+                return;
+            }
+            //arena is empty, refill it and try again
+            arenaRefill(arena);
+        }
+    }
+
+    /**
+     * Deletes record, recid and space are released into arena.
+     * Store is locked by shared lock, so other writers can run in parallel.
+     */
+    protected void arenaRecordDelete(final long recid){
+        final AllocationArena arena = arenaForCurrentThread();
+        final int released;
+        try{
+            sharedLock_lock();
+            recidWriteLock(recid);
+            try{
+                final long oldIndexVal = indexValGet(recid);
+                final boolean retained = snapshotRetain(recid, oldIndexVal);
+                indexValPut(recid, FREE_RECID);
+                synchronized (arena){
+                    arena.releaseRecid(recid);
+                }
+                released = arenaRelease(arena, retained? 0L : oldIndexVal);
+            }finally {
+                recidWriteUnlock(recid);
+            }
+        }finally {
+            sharedLock_unlock();
+        }
+        if(released>=ARENA_MAX_RELEASED)
+            arenaRefill(arena);
+    }
+
+    /**
+     * Releases record into arena, it will be returned into store at next refill.
+     * @return number of released records in arena
+     */
+    protected int arenaRelease(final AllocationArena arena, final long indexValue){
+        if(isInline(indexValue))
+            return arena.releasedCount();
+        final long[] chunks = (indexValue&MASK_LARGE)!=0? largeRecordChunks(indexValue) : null;
+        synchronized (arena){
+            if(chunks!=null){
+                for(long chunk:chunks)
+                    arena.releasePhys(chunk);
+            }else if(indexValue>>>48 != 0){
+                //zero size records do not occupy any space
+                arena.releasePhys(indexValue);
+            }
+            return arena.releasedCount();
+        }
+    }
+
+    /**
+     * Returns released space and recids from arena into store.
+     * Reserves new recids and new region of free space, if remaining region is too small.
+     */
+    protected void arenaRefill(final AllocationArena arena){
+        try{
+            writeLock_lock();
+            synchronized (arena){
+                arenaReturn(arena, false);
+                if(arena.regionSize<ARENA_MAX_RECORD_SIZE){
+                    if(arena.regionSize>0)
+                        freePhysRecPut((((long)arena.regionSize)<<48) | arena.regionOffset);
+                    final long region = freePhysRecTake(ARENA_REGION_SIZE);
+                    arena.regionOffset = region&PHYS_OFFSET_MASK;
+                    arena.regionSize = ARENA_REGION_SIZE;
+                }
+                while(arena.recidsCount<arena.recids.length){
+                    arena.recids[arena.recidsCount++] = freeRecidTake();
+                }
+            }
+        }catch(IOException e){
+            throw new IOError(e);
+        }finally {
+            writeLock_unlock();
+        }
+    }
+
+    /**
+     * Returns released space and recids from arena into store.
+     * There are no readers under write lock, so released space can be reused.
+     *
+     * @param all if true also unused region and reserved recids are returned
+     */
+    protected void arenaReturn(final AllocationArena arena, final boolean all){
+        writeLock_checkLocked();
+        //space is returned first, so long stack pages for recids can reuse it
+        for(int i=0;i<arena.releasedPhysCount;i++){
+            freePhysRecPut(arena.releasedPhys[i]);
+        }
+        arena.releasedPhysCount = 0;
+        if(all){
+            if(arena.regionSize>0)
+                freePhysRecPut((((long)arena.regionSize)<<48) | arena.regionOffset);
+            arena.regionSize = 0;
+            arena.regionOffset = 0;
+        }
+
+        for(int i=0;i<arena.releasedRecidsCount;i++){
+            freeRecidPut(arena.releasedRecids[i]);
+        }
+        arena.releasedRecidsCount = 0;
+        if(all){
+            for(int i=0;i<arena.recidsCount;i++){
+                freeRecidPut(arena.recids[i]);
+            }
+            arena.recidsCount = 0;
+        }
+    }
+
+    /** returns all space and recids from arenas into store */
+    protected void arenasReturn(){
+        writeLock_checkLocked();
+        if(arenas == null) return;
+        for(AllocationArena arena:arenas){
+            synchronized (arena){
+                arenaReturn(arena, true);
+            }
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Long getNamedRecid(String name) {
+        Map<String, Long> recids = (Map<String, Long>) recordGet(RECID_NAMED_RECODS, Serializer.BASIC_SERIALIZER);
+        if(recids == null) return null;
+        return recids.get(name);
+    }
+
+    protected final Object nameRecidLock = new Object();
+
+    @Override
+    @SuppressWarnings("unchecked")
+   public void setNamedRecid(String name, Long recid) {
+        synchronized (nameRecidLock){
+            Map<String, Long> recids = (Map<String, Long>) recordGet(RECID_NAMED_RECODS, Serializer.BASIC_SERIALIZER);
+            if(recids == null) recids = new HashMap<String, Long>();
+            if(recid!=null)
+                recids.put(name, recid);
+            else
+                recids.remove(name);
+            recordUpdate(RECID_NAMED_RECODS, recids, Serializer.BASIC_SERIALIZER);
+        }
+    }
+
+
+    /**
+     * Changes are written directly into store, so there is nothing to commit.
+     * Transactions are implemented in {@link RecordStoreWAL}.
+     */
+    @Override
+    public void commit() {
+    }
+
+    /**
+     * Forces modified data and index regions to disk. Read lock is held, so buffers are not remapped meanwhile,
+     * but readers and writers using allocation arenas are not blocked.
+     */
+    @Override
+    public void sync() {
+        if(readOnly) return;
+        try{
+            readLock_lock();
+            dataVol.sync();
+            indexVol.sync();
+        }finally {
+            readLock_unlock();
+        }
+    }
+
+    /**
+     * Forces all modified data and index buffers to be written to disk.
+     * Write lock must be held by caller.
+     */
+    protected void forceBuffers(){
+        writeLock_checkLocked();
+        dataVol.sync();
+        indexVol.sync();
+    }
+
+    /**
+     * Streams copy of store into channel, writers are not blocked for most of the time.
+     * Volumes are copied while writers run, pages modified meanwhile are tracked and copied again,
+     * until only few remain. Those are copied by final pass under write lock, so copy is consistent.
+     * <p/>
+     * Copy is marked as opened, so free space is rebuilt when restored store is opened for the first time.
+     * It is restored by {@link #restoreBackup(ReadableByteChannel, Volume.Factory)}.
+     * <p/>
+     * Copy format:
+     * <pre>
+     *     8 bytes  - header, same as store header
+     *     followed by pieces of volumes, later pieces overwrite earlier ones:
+     *     1 byte   - {@link #BACKUP_INDEX} or {@link #BACKUP_DATA}
+     *     8 bytes  - offset in volume
+     *     4 bytes  - size of piece, followed by its data
+     *     and end of copy:
+     *     1 byte   - {@link #BACKUP_END}
+     *     8 bytes  - size of index volume
+     *     8 bytes  - size of data volume
+     * </pre>
+     */
+    @Override
+    public void backup(WritableByteChannel out) {
+        synchronized (backupLock){
+            indexVol.backupStart();
+            dataVol.backupStart();
+            try{
+                final Backup backup = new Backup(out);
+                final ByteBuffer header = ByteBuffer.allocate(8);
+                header.putLong(0, HEADER);
+                backup.write(header);
+                //first pass copies whole volumes
+                backup.copyPass();
+                int modified = indexVol.backupModifiedCount()+dataVol.backupModifiedCount();
+                for(int pass=0;pass<BACKUP_MAX_PASSES && modified>BACKUP_FINAL_PAGES;pass++){
+                    backup.copyPass();
+                    final int prevModified = modified;
+                    modified = indexVol.backupModifiedCount()+dataVol.backupModifiedCount();
+                    //writers modify pages as fast as they are copied, more passes would not help
+                    if(modified*4>prevModified*3) break;
+                }
+                backupFinalPass(backup);
+            }catch(IOException e){
+                throw new IOError(e);
+            }finally {
+                indexVol.backupStop();
+                dataVol.backupStop();
+            }
+        }
+    }
+
+    /** copies remaining modified pages under write lock and finishes backup */
+    protected void backupFinalPass(final Backup backup) throws IOException {
+        try{
+            writeLock_lock();
+            backup.copyPass();
+            backup.finish();
+        }finally {
+            writeLock_unlock();
+        }
+    }
+
+    /** running hot backup, keeps track of copied regions */
+    protected final class Backup{
+
+        protected final WritableByteChannel out;
+        /** volume regions bellow these offsets were copied, later modifications are tracked */
+        protected long indexCopied = 0;
+        protected long dataCopied = 0;
+
+        protected final ByteBuffer entry = ByteBuffer.allocate(1+8+8);
+
+        protected Backup(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        protected void write(final ByteBuffer buf) throws IOException {
+            while(buf.remaining()>0)
+                out.write(buf);
+        }
+
+        /** copies pages modified since previous pass and regions volumes grew by */
+        protected void copyPass() throws IOException {
+            copyPages(BACKUP_INDEX, indexVol.backupTakeModified());
+            copyPages(BACKUP_DATA, dataVol.backupTakeModified());
+
+            final long indexSize = indexValGet(RECID_CURRENT_INDEX_FILE_SIZE);
+            if(indexSize>indexCopied)
+                copy(BACKUP_INDEX, indexCopied, indexSize-indexCopied);
+            indexCopied = indexSize;
+            final long dataSize = indexValGet(RECID_CURRENT_PHYS_FILE_SIZE);
+            if(dataSize>dataCopied)
+                copy(BACKUP_DATA, dataCopied, dataSize-dataCopied);
+            dataCopied = dataSize;
+        }
+
+        /** copies pages in ascending order, adjacent pages are copied as single piece */
+        protected void copyPages(final byte type, final long[] pages) throws IOException {
+            int i=0;
+            while(i<pages.length){
+                int j=i+1;
+                while(j<pages.length && pages[j]==pages[j-1]+1) j++;
+                copy(type, pages[i]*Volume.BACKUP_PAGE_SIZE, (j-i)*(long)Volume.BACKUP_PAGE_SIZE);
+                i=j;
+            }
+        }
+
+        /** copies volume region, part after end of volume is skipped */
+        protected void copy(final byte type, long offset, long size) throws IOException {
+            final Volume vol = type==BACKUP_INDEX? indexVol : dataVol;
+            while(size>0){
+                final int len = (int) Math.min(size, BACKUP_PIECE_SIZE);
+                try{
+                    //volume is not remapped nor truncated while piece is copied,
+                    //shared lock excludes writers also where read lock does not (async store)
+                    sharedLock_lock();
+                    final long volSize = indexValGet(type==BACKUP_INDEX?
+                            RECID_CURRENT_INDEX_FILE_SIZE : RECID_CURRENT_PHYS_FILE_SIZE);
+                    final int copySize = (int) Math.min(len, volSize-offset);
+                    if(copySize<=0) return;
+                    entry.clear();
+                    entry.put(type);
+                    entry.putLong(offset);
+                    entry.putInt(copySize);
+                    entry.flip();
+                    write(entry);
+                    vol.transferTo(offset, copySize, out);
+                }finally {
+                    sharedLock_unlock();
+                }
+                offset+=len;
+                size-=len;
+            }
+        }
+
+        /** marks copy as opened and writes final volume sizes, caller must hold write lock */
+        protected void finish() throws IOException {
+            writeLock_checkLocked();
+            entry.clear();
+            entry.put(BACKUP_INDEX);
+            entry.putLong(RECID_STORE_STATE*8);
+            entry.putInt(8);
+            entry.flip();
+            write(entry);
+            final ByteBuffer state = ByteBuffer.allocate(8);
+            state.putLong(0, STORE_OPEN);
+            write(state);
+
+            entry.clear();
+            entry.put(BACKUP_END);
+            entry.putLong(indexValGet(RECID_CURRENT_INDEX_FILE_SIZE));
+            entry.putLong(indexValGet(RECID_CURRENT_PHYS_FILE_SIZE));
+            entry.flip();
+            write(entry);
+        }
+    }
+
+    /**
+     * Restores store from copy created by {@link #backup(WritableByteChannel)}.
+     * Volumes should be empty, they are closed after copy is restored.
+     *
+     * @param in channel with copy of store
+     * @param volumeFactory creates volumes where store is restored
+     */
+    public static void restoreBackup(final ReadableByteChannel in, final Volume.Factory volumeFactory){
+        final Volume indexVol = volumeFactory.createIndexVolume();
+        final Volume dataVol = volumeFactory.createDataVolume();
+        try{
+            final ByteBuffer entry = ByteBuffer.allocate(8+8);
+            entry.limit(8);
+            backupReadFully(in, entry);
+            if(entry.getLong(0)!=HEADER) throw new IOException("Wrong backup header, probably not JDBM backup.");
+
+            final byte[] buf = new byte[1<<16];
+            for(;;){
+                entry.clear();
+                entry.limit(1);
+                backupReadFully(in, entry);
+                final byte type = entry.get(0);
+                if(type==BACKUP_END){
+                    entry.clear();
+                    backupReadFully(in, entry);
+                    final long indexSize = entry.getLong(0);
+                    final long dataSize = entry.getLong(8);
+                    indexVol.ensureAvailable(indexSize);
+                    indexVol.truncate(indexSize);
+                    dataVol.ensureAvailable(dataSize);
+                    dataVol.truncate(dataSize);
+                    break;
+                }
+                if(type!=BACKUP_INDEX && type!=BACKUP_DATA)
+                    throw new IOException("Unknown backup entry type: "+type);
+                entry.clear();
+                entry.limit(12);
+                backupReadFully(in, entry);
+                long offset = entry.getLong(0);
+                int size = entry.getInt(8);
+                final Volume vol = type==BACKUP_INDEX? indexVol : dataVol;
+                vol.ensureAvailable(offset+size);
+                while(size>0){
+                    //records never cross chunk boundary, so volume does not support such writes
+                    final int len = (int) Math.min(Math.min(size, buf.length), vol.chunkSize - offset%vol.chunkSize);
+                    backupReadFully(in, ByteBuffer.wrap(buf, 0, len));
+                    vol.putData(offset, buf, 0, len);
+                    offset+=len;
+                    size-=len;
+                }
+            }
+            indexVol.sync();
+            dataVol.sync();
+        }catch(IOException e){
+            throw new IOError(e);
+        }finally {
+            indexVol.close(true);
+            dataVol.close(true);
+        }
+    }
+
+    private static void backupReadFully(final ReadableByteChannel in, final ByteBuffer buf) throws IOException {
+        while(buf.remaining()>0){
+            if(in.read(buf)<0) throw new EOFException("Backup is not complete");
+        }
+    }
+
+    /**
+     * Takes snapshot under write lock, so it does not see half of modification.
+     * Records modified after snapshot was taken are not freed nor updated in place,
+     * until snapshot is closed.
+     */
+    @Override
+    public RecordManager snapshot() {
+        try{
+            writeLock_lock();
+            final Snapshot snapshot = new Snapshot();
+            final Snapshot[] snapshots2 = Arrays.copyOf(snapshots, snapshots.length+1);
+            snapshots2[snapshots.length] = snapshot;
+            snapshots = snapshots2;
+            return snapshot;
+        }finally {
+            writeLock_unlock();
+        }
+    }
+
+    /**
+     * Called before index value of recid is replaced. If snapshots are open,
+     * old index value is kept for those which do not have older value of this recid.
+     * Caller must hold write lock, or shared lock and recid write lock.
+     *
+     * @return true if old record is used by snapshot, so it must not be freed nor updated in place
+     */
+    protected final boolean snapshotRetain(final long recid, final long oldIndexValue){
+        final Snapshot[] snapshots = this.snapshots;
+        if(snapshots.length==0) return false;
+        boolean ret = false;
+        RetainedRecord retained = null;
+        for(Snapshot snapshot:snapshots){
+            final RetainedRecord r = snapshot.retained.get(recid);
+            if(r!=null){
+                //modification may be retried after arena refill, old value is then already retained
+                if(r.indexValue==oldIndexValue) ret = true;
+                continue;
+            }
+            if(retained==null) retained = new RetainedRecord(oldIndexValue);
+            //snapshots are added and removed under write lock, so counter is not modified concurrently
+            retained.snapshots++;
+            snapshot.retained.put(recid, retained);
+            ret = true;
+        }
+        return ret;
+    }
+
+    /** old index value of record modified after snapshot was taken */
+    protected static final class RetainedRecord{
+        final long indexValue;
+        /** number of snapshots which use this value, record is freed when it drops to zero */
+        int snapshots = 0;
+
+        RetainedRecord(long indexValue) {
+            this.indexValue = indexValue;
+        }
+    }
+
+    /**
+     * Read-only view of store as it was when snapshot was taken.
+     * Reads current index value, unless record was inserted, modified or deleted after snapshot was taken.
+     */
+    protected final class Snapshot implements RecordManager{
+
+        /** old values of records modified after snapshot was taken, guarded by recid lock */
+        protected final LongConcurrentHashMap<RetainedRecord> retained = new LongConcurrentHashMap<RetainedRecord>();
+
+        protected volatile boolean closed = false;
+
+        protected long indexValue(final long recid){
+            if(closed) throw new IllegalAccessError("Snapshot was closed");
+            RetainedRecord r = retained.get(recid);
+            if(r!=null) return r.indexValue;
+            final long indexValue = indexValGet(recid);
+            //read lock may not exclude writer (async store), so record could be modified meanwhile.
+            //old value is retained before index is updated, so second check finds it
+            JdbmUtil.loadFence();
+            r = retained.get(recid);
+            return r!=null? r.indexValue : indexValue;
+        }
+
+        @Override
+        public <A> A recordGet(long recid, Serializer<A> serializer) {
+            final Lock recidLock = recidLocks==null? null : recidLock(recid).readLock();
+            try{
+                readLock_lock();
+                if(recidLock!=null) recidLock.lock();
+                return recordRead(recid, indexValue(recid), serializer);
+            }catch(IOException e){
+                throw new IOError(e);
+            }finally{
+                if(recidLock!=null) recidLock.unlock();
+                readLock_unlock();
+            }
+        }
+
+        @Override
+        public <A> A recordGetBuffer(long recid, RecordReader<A> reader) {
+            final Lock recidLock = recidLocks==null? null : recidLock(recid).readLock();
+            try{
+                readLock_lock();
+                if(recidLock!=null) recidLock.lock();
+                return recordReadBuffer(indexValue(recid), reader);
+            }catch(IOException e){
+                throw new IOError(e);
+            }finally{
+                if(recidLock!=null) recidLock.unlock();
+                readLock_unlock();
+            }
+        }
+
+        @Override
+        public <A> void recordGetBatch(long[] recids, A[] values, Serializer<A> serializer) {
+            for(int i=0;i<recids.length;i++)
+                values[i] = recordGet(recids[i], serializer);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Long getNamedRecid(String name) {
+            Map<String, Long> recids = (Map<String, Long>) recordGet(RECID_NAMED_RECODS, Serializer.BASIC_SERIALIZER);
+            if(recids == null) return null;
+            return recids.get(name);
+        }
+
+        /** releases records retained for this snapshot, caller must hold write lock */
+        protected void release(){
+            writeLock_checkLocked();
+            if(closed) return;
+            closed = true;
+            final Snapshot[] snapshots2 = new Snapshot[snapshots.length-1];
+            int pos = 0;
+            for(Snapshot s:snapshots){
+                if(s!=this) snapshots2[pos++] = s;
+            }
+            snapshots = snapshots2;
+            final Iterator<RetainedRecord> iter = retained.valuesIterator();
+            while(iter.hasNext()){
+                final RetainedRecord r = iter.next();
+                if(--r.snapshots==0)
+                    physRecFree(r.indexValue);
+            }
+            retained.clear();
+        }
+
+        /** closes snapshot and releases old records, which are not used by other snapshots */
+        @Override
+        public void close() {
+            try{
+                writeLock_lock();
+                release();
+            }finally {
+                writeLock_unlock();
+            }
+        }
+
+        @Override
+        public void commit() {
+        }
+
+        @Override
+        public void sync() {
+        }
+
+        @Override
+        public RecordManager snapshot() {
+            throw new UnsupportedOperationException("Snapshot of snapshot is not supported");
+        }
+
+        @Override
+        public void backup(WritableByteChannel out) {
+            throw new UnsupportedOperationException("Backup of snapshot is not supported");
+        }
+
+        @Override
+        public <A> long recordPut(A value, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public <A> void recordUpdate(long recid, A value, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public <A> long[] recordPutBatch(A[] values, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public <A> void recordUpdateBatch(long[] recids, A[] values, Serializer<A> serializer) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public void recordDelete(long recid) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public void setNamedRecid(String name, Long recid) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+
+        @Override
+        public void compact(long stepTime, long pauseTime) {
+            throw new UnsupportedOperationException("Snapshot is read-only");
+        }
+    }
+
+    /**
+     * Online compaction. Records from end of data file are moved into free space bellow,
+     * and data file is truncated at the end.
+     * <p/>
+     * Compaction runs in steps, store is locked only during single step, so it can be used concurrently.
+     * After each step compaction sleeps, so other threads can access store.
+     * Compaction uses {@link FreeExtents}, if coalescing allocator is not enabled,
+     * free space is loaded from long stacks for duration of compaction.
+     *
+     * @param stepTime maximal time in milliseconds store is locked by single step
+     * @param pauseTime time in milliseconds between two steps
+     */
+    @Override
+    public void compact(final long stepTime, final long pauseTime){
+        checkWritable();
+        final boolean loadFreeSpace;
+        final long threshold;
+        try{
+            writeLock_lock();
+            arenasReturn();
+            loadFreeSpace = freeExtents==null;
+            if(loadFreeSpace)
+                freeSpaceLoad();
+            //if there would be no fragmentation, data file would end here
+            threshold = indexValGet(RECID_CURRENT_PHYS_FILE_SIZE) - freeExtents.freeSize;
+            compactLongStack(RECID_FREE_INDEX_SLOTS, threshold);
+        }finally {
+            writeLock_unlock();
+        }
+
+        long recid = RECID_NAMED_RECODS;
+        boolean interrupted = false;
+        while(!interrupted){
+            try{
+                writeLock_lock();
+                compactReleaseFlush();
+                final long endRecid = indexValGet(RECID_CURRENT_INDEX_FILE_SIZE)/8;
+                final long deadline = System.nanoTime() + stepTime*1000000;
+                do{
+                    compactRecord(recid, threshold);
+                    recid = recid==RECID_NAMED_RECODS? INDEX_OFFSET_START : recid+1;
+                }while(recid<endRecid && System.nanoTime()<deadline);
+                if(recid>=endRecid) break;
+            }finally {
+                writeLock_unlock();
+            }
+
+            if(pauseTime>0){
+                try {
+                    Thread.sleep(pauseTime);
+                } catch (InterruptedException e) {
+                    //stop compaction, but still truncate file.
+                    //interrupt is restored after that, FileChannel would be closed by interrupt while doing IO
+                    interrupted = true;
+                }
+            }
+        }
+
+        try{
+            writeLock_lock();
+            arenasReturn();
+            //long stack may have new pages since it was compacted
+            compactLongStack(RECID_FREE_INDEX_SLOTS, threshold);
+            compactReleaseFlush();
+            final long physFileSize = indexValGet(RECID_CURRENT_PHYS_FILE_SIZE);
+            final long newPhysFileSize = freeExtents.trimSegments(physFileSize);
+            if(newPhysFileSize!=physFileSize)
+                indexValPut(RECID_CURRENT_PHYS_FILE_SIZE, newPhysFileSize);
+            dataFileTruncate(newPhysFileSize);
+            if(loadFreeSpace)
+                freeSpaceFlush();
+        }finally {
+            writeLock_unlock();
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Moves record which ends above threshold into free space bellow.
+     * Large records have each physical record in chain moved separately.
+     */
+    protected void compactRecord(final long recid, final long threshold){
+        writeLock_checkLocked();
+        final long indexValue = indexValGet(recid);
+        //inline records do not occupy any space
+        if(isInline(indexValue)) return;
+        if((indexValue&MASK_LARGE)==0){
+            //zero size records do not occupy any space
+            if(indexValue>>>48 == 0) return;
+            final long newIndexValue = compactMove(indexValue, threshold);
+            if(newIndexValue!=0){
+                indexValPut(recid, newIndexValue);
+                compactRelease(indexValue);
+            }
+            return;
+        }
+
+        //link to physical record is either in index, or in previous physical record in chain
+        long prevPos = 0;
+        long chunk = indexValue & ~MASK_LARGE;
+        while(chunk!=0){
+            final long chunkPos = chunk&PHYS_OFFSET_MASK;
+            final long next = dataVol.getLong(chunkPos);
+            final long newChunk = compactMove(chunk, threshold);
+            if(newChunk!=0){
+                if(prevPos == 0)
+                    indexValPut(recid, newChunk | MASK_LARGE);
+                else
+                    dataVol.putLong(prevPos, newChunk);
+                compactRelease(chunk);
+                chunk = newChunk;
+            }
+            prevPos = chunk&PHYS_OFFSET_MASK;
+            chunk = next;
+        }
+    }
+
+    /** moves long stack pages which end above threshold into free space bellow */
+    protected void compactLongStack(final long listRecid, final long threshold){
+        writeLock_checkLocked();
+        //link to page is either in index, or in previous page. First byte in link is number of records in page
+        long prevPos = 0;
+        long page = indexValGet(listRecid)&PHYS_OFFSET_MASK;
+        while(page!=0){
+            final long next = dataVol.getLong(page)&PHYS_OFFSET_MASK;
+            final long pageIndexValue = (((long) LONG_STACK_PAGE_SIZE) << 48) | page;
+            final long newPageIndexValue = compactMove(pageIndexValue, threshold);
+            if(newPageIndexValue!=0){
+                if(prevPos == 0){
+                    indexValPut(listRecid, newPageIndexValue);
+                }else{
+                    final byte numberOfRecordsInPage = dataVol.getByte(prevPos);
+                    dataVol.putLong(prevPos, newPageIndexValue&PHYS_OFFSET_MASK);
+                    dataVol.putByte(prevPos, numberOfRecordsInPage);
+                }
+                compactRelease(pageIndexValue);
+                page = newPageIndexValue&PHYS_OFFSET_MASK;
+            }
+            prevPos = page;
+            page = next;
+        }
+    }
+
+    /**
+     * Space of moved record is released at next compaction step.
+     * Some stores do not lock reads, so reader may still use old index value.
+     */
+    protected void compactRelease(final long indexValue){
+        if(compactReleasedCount == compactReleased.length)
+            compactReleased = Arrays.copyOf(compactReleased, compactReleasedCount*2);
+        compactReleased[compactReleasedCount++] = indexValue;
+    }
+
+    /** releases space of records moved in previous compaction step */
+    protected void compactReleaseFlush(){
+        writeLock_checkLocked();
+        for(int i=0;i<compactReleasedCount;i++){
+            freePhysRecPut(compactReleased[i]);
+        }
+        compactReleasedCount = 0;
+    }
+
+    /**
+     * Copies physical record which ends above threshold into free space bellow threshold.
+     * If there is no such space, it is at least moved into lowest free space bellow its current location.
+     * Old space is not released.
+     *
+     * @return index value of new location, or 0 if record was not moved
+     */
+    protected long compactMove(final long indexValue, final long threshold){
+        final long offset = indexValue&PHYS_OFFSET_MASK;
+        final int size = (int) (indexValue>>>48);
+        if(offset+size<=threshold) return 0;
+        long newOffset = freeExtents.takeBellow(size, threshold);
+        if(newOffset == 0)
+            newOffset = freeExtents.takeFirst(size, offset);
+        if(newOffset == 0) return 0;
+
+        final byte[] b = new byte[size];
+        dataVol.getData(offset, b, 0, size);
+        dataVol.putData(newOffset, b, 0, size);
+        return (((long)size)<<48) | (indexValue&MASK_SLACK) | newOffset;
+    }
+
+    /**
+     * Shrinks data volume after its end was decreased.
+     */
+    protected void dataFileTruncate(final long physFileSize){
+        writeLock_checkLocked();
+        dataVol.truncate(physFileSize);
+    }
+
+    @Override
+    public void close() {
+        try{
+            writeLock_lock();
+            if(!readOnly){
+                arenasReturn();
+                //space retained for snapshots is released, they can not be used after store is closed
+                for(Snapshot snapshot:snapshots)
+                    snapshot.release();
+                if(freeExtents!=null)
+                    freeSpaceFlush();
+                //store is forced before it is marked as closed correctly,
+                //so the flag never reaches disk ahead of free lists
+                forceBuffers();
+                indexValPut(RECID_STORE_STATE, 0L);
+            }
+            //optimistic readers do not take lock and may still be reading, so leave memory for GC
+            dataVol.close(!optimisticReads);
+            indexVol.close(!optimisticReads);
+        }finally {
+            writeLock_unlock();
+        }
+    }
+
+
+    long longStackTake(final long listRecid) {
+        final long listPhysid = indexValGet(listRecid) &PHYS_OFFSET_MASK;
+        if(listPhysid == 0)
+            return 0; //there is no such list, so just return 0
+
+        writeLock_checkLocked();
+
+        final byte numberOfRecordsInPage = dataVol.getByte(listPhysid);
+        final long ret = dataVol.getLong(listPhysid+numberOfRecordsInPage*8);
+
+        //was it only record at that page?
+        if(numberOfRecordsInPage == 1){
+            //yes, delete this page
+            final long previousListPhysid =dataVol.getLong(listPhysid) &PHYS_OFFSET_MASK;
+            if(previousListPhysid !=0){
+                //update index so it points to previous page
+                indexValPut(listRecid, previousListPhysid | (((long) LONG_STACK_PAGE_SIZE) << 48));
+            }else{
+                //zero out index
+                indexValPut(listRecid, 0L);
+            }
+            //put space used by this page into free list
+            freePhysRecPut(listPhysid | (((long)LONG_STACK_PAGE_SIZE)<<48));
+        }else{
+            //no, it was not last record at this page, so just decrement the counter
+            dataVol.putByte(listPhysid, (byte)(numberOfRecordsInPage-1));
+        }
+        return ret;
+
+    }
+
+   void longStackPut(final long listRecid, final long offset) {
+       writeLock_checkLocked();
+
+       //index position was cleared, put into free index list
+        final long listPhysid2 = indexValGet(listRecid) &PHYS_OFFSET_MASK;
+
+        if(listPhysid2 == 0){ //empty list?
+            //yes empty, create new page and fill it with values
+            final long listPhysid = freePhysRecTake(LONG_STACK_PAGE_SIZE) &PHYS_OFFSET_MASK;
+            if(CC.ASSERT && listPhysid == 0) throw new InternalError();
+            //set previous Free Index List page to zero as this is first page.
+            //Page allocation may release space into this list recursively, so read its head again
+            dataVol.putLong(listPhysid, indexValGet(listRecid) &PHYS_OFFSET_MASK);
+            //set number of free records in this page to 1
+            dataVol.putByte(listPhysid, (byte)1);
+
+            //set  record
+            dataVol.putLong(listPhysid + 8, offset);
+            //and update index file with new page location
             indexValPut(listRecid, (((long) LONG_STACK_PAGE_SIZE) << 48) | listPhysid);
         }else{
 
-            final ByteBuffer dataBuf2 = dataBufs[((int) (listPhysid2 / BUF_SIZE))];
-            final byte numberOfRecordsInPage = dataBuf2.get((int) (listPhysid2%BUF_SIZE));
+            final byte numberOfRecordsInPage = dataVol.getByte(listPhysid2);
             if(numberOfRecordsInPage == LONG_STACK_NUM_OF_RECORDS_PER_PAGE){ //is current page full?
                 //yes it is full, so we need to allocate new page and write our number there
 
                 final long listPhysid = freePhysRecTake(LONG_STACK_PAGE_SIZE) &PHYS_OFFSET_MASK;
                 if(CC.ASSERT && listPhysid == 0) throw new InternalError();
-                final ByteBuffer dataBuf = dataBufs[((int) (listPhysid / BUF_SIZE))];
-                final int buffOffset =(int) (listPhysid%BUF_SIZE);
-                //set location to previous page
-                dataBuf.putLong(buffOffset, listPhysid2);
+                //set location to previous page,
+                //page allocation may modify this list recursively, so read its head again
+                dataVol.putLong(listPhysid, indexValGet(listRecid) &PHYS_OFFSET_MASK);
                 //set number of free records in this page to 1
-                dataBuf.put(buffOffset,(byte)1);
+                dataVol.putByte(listPhysid, (byte)1);
                 //set free record
-                dataBuf.putLong(buffOffset +  8, offset);
+                dataVol.putLong(listPhysid +  8, offset);
                 //and update index file with new page location
                 indexValPut(listRecid, (((long) LONG_STACK_PAGE_SIZE) << 48) | listPhysid);
             }else{
                 //there is space on page, so just write released recid and increase the counter
-                dataBuf2.putLong((int) (listPhysid2%BUF_SIZE +  8 + 8 * numberOfRecordsInPage), offset);
-                dataBuf2.put((int) (listPhysid2%BUF_SIZE), (byte) (numberOfRecordsInPage+1));
+                dataVol.putLong(listPhysid2 +  8 + 8 * numberOfRecordsInPage, offset);
+                dataVol.putByte(listPhysid2, (byte) (numberOfRecordsInPage+1));
             }
         }
    }
@@ -509,155 +1833,508 @@ public class RecordStore implements RecordManager {
     }
 
 
-    final long freePhysRecTake(final int requiredSize){
+    /** loads free space from long stacks into {@link FreeExtents} */
+    protected void freeSpaceLoad(){
         writeLock_checkLocked();
+        freeExtents = new FreeExtents(bufSize);
+        for(int slot = 0; slot<NUMBER_OF_PHYS_FREE_SLOT;slot++){
+            long v;
+            while((v=longStackTake(RECID_FREE_PHYS_RECORDS_START+slot))!=0){
+                //emptied long stack pages are also released into FreeExtents
+                freePhysRecPut(v);
+            }
+        }
+    }
 
+    /** writes free space from {@link FreeExtents} back into long stacks */
+    protected void freeSpaceFlush(){
+        writeLock_checkLocked();
+        freeExtentsFlush = true;
+        //long stack pages are still allocated from FreeExtents, until it is empty
+        FreeExtents.Extent e;
+        while((e = freeExtents.poll())!=null){
+            long offset = e.offset;
+            long size = e.size;
+            while(size>0){
+                final int s = (int) Math.min(size, MAX_RECORD_SIZE);
+                freePhysRecPut((((long)s)<<48) | offset);
+                offset+=s;
+                size-=s;
+            }
+        }
+        freeExtents = null;
+        freeExtentsFlush = false;
+    }
 
-        int slot = freePhysRecSize2FreeSlot(requiredSize);
-        //check if this slot can contain smaller records,
-        if(requiredSize>1 && slot==freePhysRecSize2FreeSlot(requiredSize-1))
-            slot ++; //yes, in this case we have to start at next slot with bigger record and divide it
-
-        while(slot< NUMBER_OF_PHYS_FREE_SLOT){
+    /** number of index values read at once by recovery scan, blocks are aligned so they never cross chunk boundary */
+    static final int RECOVERY_BLOCK_SIZE = 8*1024;
 
-            final long v = longStackTake(RECID_FREE_PHYS_RECORDS_START +slot);
-            if(v!=0){
-                //we found it, check if we need to split record
-                final int foundRecSize = (int) (v>>>48);
-                if(foundRecSize!=requiredSize){
+    /** recovery scan is not split between threads if index has less recids than this */
+    static final int RECOVERY_MIN_RECIDS_PER_THREAD = 1<<16;
 
-                    //yes we need split
-                    final long newIndexValue =
-                            ((long)(foundRecSize - requiredSize)<<48) | //encode size into new free record
-                            (v & PHYS_OFFSET_MASK) +   requiredSize; //and encode new free record phys offset
-                    freePhysRecPut(newIndexValue);
+    /**
+     * Rebuilds free recids and free space after store was not closed correctly.
+     * Free lists, space reserved by arenas or compaction and recids preallocated by writers
+     * may be lost or half-written after crash, so they are discarded.
+     * Index is scanned in parallel, recids with {@link #FREE_RECID} are free
+     * and space not referenced from any index value is free.
+     */
+    protected void recover(){
+        writeLock_checkLocked();
+        final long indexSize = indexValGet(RECID_CURRENT_INDEX_FILE_SIZE);
+        final long endRecid = indexSize/8;
+
+        //split index into ranges scanned by separate threads
+        final int threads = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                (endRecid-INDEX_OFFSET_START)/RECOVERY_MIN_RECIDS_PER_THREAD));
+        final long rangeSize = ((endRecid-INDEX_OFFSET_START)/threads/RECOVERY_BLOCK_SIZE+1)*RECOVERY_BLOCK_SIZE;
+        final List<RecoveryScan> scans = new ArrayList<RecoveryScan>();
+        final RecoveryScan reserved = new RecoveryScan(RECID_NAMED_RECODS, RECID_NAMED_RECODS+1);
+        scans.add(reserved);
+        for(long start = INDEX_OFFSET_START;start<endRecid;start+=rangeSize){
+            scans.add(new RecoveryScan(start, Math.min(endRecid, start+rangeSize)));
+        }
+        if(threads==1){
+            for(RecoveryScan scan:scans) scan.run();
+        }else{
+            final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override public Thread newThread(Runnable r) {
+                    final Thread t = new Thread(r, "JDBM recovery");
+                    t.setDaemon(true);
+                    return t;
                 }
-
-                //return offset combined with required size
-                return (v & PHYS_OFFSET_MASK) |
-                        (((long)requiredSize)<<48);
-            }else{
-                slot++;
+            });
+            try{
+                final List<Future<?>> futures = new ArrayList<Future<?>>();
+                for(RecoveryScan scan:scans)
+                    futures.add(executor.submit(scan));
+                for(Future<?> f:futures)
+                    f.get();
+            }catch(InterruptedException e){
+                throw new RuntimeException(e);
+            }catch(ExecutionException e){
+                if(e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }finally {
+                executor.shutdown();
             }
         }
 
-        try{
+        //discard old free lists, their pages are not referenced from index, so they become free space
+        indexValPut(RECID_FREE_INDEX_SLOTS, 0L);
+        for(int slot = 0; slot<NUMBER_OF_PHYS_FREE_SLOT;slot++)
+            indexValPut(RECID_FREE_PHYS_RECORDS_START+slot, 0L);
+
+        //merge used space from all scans in offset order, gaps between records are free
+        freeExtents = new FreeExtents(bufSize);
+        final int[] pos = new int[scans.size()];
+        long end = 8; //data file header
+        for(;;){
+            int next = -1;
+            long min = Long.MAX_VALUE;
+            for(int i=0;i<pos.length;i++){
+                final RecoveryScan scan = scans.get(i);
+                if(pos[i]<scan.usedCount && scan.used[pos[i]]<min){
+                    min = scan.used[pos[i]];
+                    next = i;
+                }
+            }
+            if(next==-1) break;
+            pos[next]++;
+            final long offset = min>>>16;
+            recoverFree(end, offset);
+            end = Math.max(end, offset + (min & 0xFFFF));
+        }
+        long physFileSize = Math.max(end, indexValGet(RECID_CURRENT_PHYS_FILE_SIZE));
+        dataVol.ensureAvailable(physFileSize);
+        recoverFree(end, physFileSize);
+        indexValPut(RECID_CURRENT_PHYS_FILE_SIZE, freeExtents.trimTail(physFileSize));
+
+        //free recids are pushed in reverse order, so lowest recids are reused first
+        for(int i=scans.size()-1;i>=0;i--){
+            final RecoveryScan scan = scans.get(i);
+            for(int j=scan.freeRecidsCount-1;j>=0;j--)
+                freeRecidPut(scan.freeRecids[j]);
+        }
 
-        //No free records found, so lets increase the file size.
-        //We need to take case of growing ByteBuffers.
-        // Also max size of ByteBuffer is 2GB, so we need to use multiple ones
+        //and write free space into long stacks
+        freeSpaceFlush();
+    }
 
-        final long physFileSize = indexValGet(RECID_CURRENT_PHYS_FILE_SIZE);
-        if(CC.ASSERT && physFileSize <=0) throw new InternalError();
+    /** marks space between two offsets as free, extents are split on segment boundaries */
+    private void recoverFree(long offset, final long end){
+        while(offset<end){
+            final long segmentEnd = Math.min(end, (offset/bufSize+1)*bufSize);
+            freeExtents.free(offset, segmentEnd-offset);
+            offset = segmentEnd;
+        }
+    }
 
-        if(physFileSize%BUF_SIZE+requiredSize<BUF_SIZE){
-            //there is no need to overflow into new 2GB ByteBuffer.
-            //so just increase file size
-            indexValPut(RECID_CURRENT_PHYS_FILE_SIZE, physFileSize + requiredSize);
+    /**
+     * Scans range of index for {@link #recover()}. Collects free recids and space used by records,
+     * each used physical record is encoded as {@code offset<<16 | size} and sorted by offset.
+     */
+    protected final class RecoveryScan implements Runnable{
+
+        final long startRecid;
+        final long endRecid;
+
+        long[] used = new long[16];
+        int usedCount = 0;
+        long[] freeRecids = new long[16];
+        int freeRecidsCount = 0;
+
+        RecoveryScan(long startRecid, long endRecid) {
+            this.startRecid = startRecid;
+            this.endRecid = endRecid;
+        }
 
-            //check that current mapped ByteBuffer is large enough, if not we need to grow and remap it
-            //check that current mapped ByteBuffer is large enought, if not we need to grow and remap it
-            final ByteBuffer dataBuf = dataBufs[((int) (physFileSize / BUF_SIZE))];
-            if(physFileSize%BUF_SIZE+requiredSize>dataBuf.capacity()){
-                //TODO optimize remap to grow slower
-                int newCapacity = dataBuf.capacity();
-                while(physFileSize%BUF_SIZE+requiredSize>newCapacity){
-                    if(inMemory)
-                        newCapacity*=2;
-                    else
-                        newCapacity+=BUF_GROWTH;
+        @Override
+        public void run() {
+            final byte[] block = new byte[RECOVERY_BLOCK_SIZE*8];
+            final ByteBuffer b = ByteBuffer.wrap(block);
+            long recid = startRecid;
+            while(recid<endRecid){
+                //read until next block boundary
+                final long blockEnd = Math.min(endRecid, (recid/RECOVERY_BLOCK_SIZE+1)*RECOVERY_BLOCK_SIZE);
+                final int count = (int) (blockEnd-recid);
+                indexVol.getData(recid*8, block, 0, count*8);
+                for(int i=0;i<count;i++){
+                    scan(recid+i, b.getLong(i*8));
                 }
+                recid = blockEnd;
+            }
+            Arrays.sort(used, 0, usedCount);
+        }
+
+        private void scan(final long recid, final long indexValue){
+            if(indexValue == FREE_RECID){
+                //reserved recids are never released
+                if(recid<INDEX_OFFSET_START) return;
+                if(freeRecidsCount == freeRecids.length)
+                    freeRecids = Arrays.copyOf(freeRecids, freeRecids.length*2);
+                freeRecids[freeRecidsCount++] = recid;
+                return;
+            }
+            //empty and inline records do not occupy any space
+            if(isInline(indexValue) || (indexValue&PHYS_OFFSET_MASK)==0) return;
+            if((indexValue&MASK_LARGE)==0){
+                addUsed(indexValue);
+                return;
+            }
+            long chunk = indexValue & ~MASK_LARGE;
+            while((chunk&PHYS_OFFSET_MASK)!=0){
+                addUsed(chunk);
+                chunk = dataVol.getLong(chunk&PHYS_OFFSET_MASK);
+            }
+        }
+
+        private void addUsed(final long indexValue){
+            if(usedCount == used.length)
+                used = Arrays.copyOf(used, used.length*2);
+            used[usedCount++] = ((indexValue&PHYS_OFFSET_MASK)<<16) | (indexValue>>>48);
+        }
+    }
+
+    final long freePhysRecTake(final int requiredSize){
+        writeLock_checkLocked();
 
-                newCapacity = Math.min(BUF_SIZE, newCapacity);
+        if(freeExtents!=null){
+            final long offset = freeExtents.take(requiredSize);
+            if(offset!=0)
+                return (((long)requiredSize)<<48) | offset;
+        }
 
+        if(freeExtents==null || freeExtentsFlush){
+            //search long stacks for free record
+            int slot = freePhysRecSize2FreeSlot(requiredSize);
+            //check if this slot can contain smaller records,
+            if(requiredSize>1 && slot==freePhysRecSize2FreeSlot(requiredSize-1))
+                slot ++; //yes, in this case we have to start at next slot with bigger record and divide it
+
+            while(slot< NUMBER_OF_PHYS_FREE_SLOT){
+
+                final long v = longStackTake(RECID_FREE_PHYS_RECORDS_START +slot);
+                if(v!=0){
+                    //we found it, check if we need to split record
+                    final int foundRecSize = (int) (v>>>48);
+                    if(foundRecSize!=requiredSize){
+
+                        //yes we need split
+                        final long newIndexValue =
+                                ((long)(foundRecSize - requiredSize)<<48) | //encode size into new free record
+                                (v & PHYS_OFFSET_MASK) +   requiredSize; //and encode new free record phys offset
+                        freePhysRecPut(newIndexValue);
+                    }
 
-                ByteBuffer dataBuf2;
-                if(inMemory){
-                    dataBuf2 = ByteBuffer.allocate(newCapacity);
-                    dataBuf.rewind();
-                    dataBuf2.put(dataBuf);
+                    //return offset combined with required size
+                    return (v & PHYS_OFFSET_MASK) |
+                            (((long)requiredSize)<<48);
                 }else{
-                    dataBuf2 = dataFileChannel.map(FileChannel.MapMode.READ_WRITE,
-                            ((physFileSize/BUF_SIZE)*BUF_SIZE),
-                            newCapacity);
+                    slot++;
                 }
-                dataBufs[((int) (physFileSize / BUF_SIZE))]  = dataBuf2;
+            }
+        }
 
-//                //force old buffer to be written
-//                if(dataBuf instanceof MappedByteBuffer){
-//                    ((MappedByteBuffer)dataBuf).force();
-//                }
+        //No free records found, so lets increase the file size.
+        //Records can not cross segment boundary, so remaining space in segment may be skipped
 
-            }
+        final long physFileSize = indexValGet(RECID_CURRENT_PHYS_FILE_SIZE);
+        if(CC.ASSERT && physFileSize <=0) throw new InternalError();
 
-            //and return this
+        if(physFileSize%bufSize+requiredSize<bufSize){
+            //there is no need to overflow into new segment,
+            //so just increase file size
+            indexValPut(RECID_CURRENT_PHYS_FILE_SIZE, physFileSize + requiredSize);
+            dataVol.ensureAvailable(physFileSize + requiredSize);
             return (((long)requiredSize)<<48) | physFileSize;
         }else{
-            //new size is overlapping 2GB ByteBuffer, so map second ByteBuffer
-            final ByteBuffer dataBuf1 = dataBufs[((int) (physFileSize / BUF_SIZE))];
-            if(CC.ASSERT && dataBuf1.capacity()!=BUF_SIZE) throw new InternalError();
-
-            //required size does not fit into remaining chunk at dataBuf1, so lets create an free records
-            final long  freeSizeToCreate = BUF_SIZE -  physFileSize%BUF_SIZE;
+            //required size does not fit into remaining space in segment, so lets create an free record
+            final long  freeSizeToCreate = bufSize -  physFileSize%bufSize;
             if(CC.ASSERT && freeSizeToCreate == 0) throw new InternalError();
 
             final long nextBufferStartOffset = physFileSize + freeSizeToCreate;
-            if(CC.ASSERT && nextBufferStartOffset%BUF_SIZE!=0) throw new InternalError();
-            if(CC.ASSERT && dataBufs[((int) (nextBufferStartOffset / BUF_SIZE))]!=null) throw new InternalError();
-
-            //allocate next ByteBuffer in row
-            final ByteBuffer dataBuf2 = dataFileChannel.map(
-                    FileChannel.MapMode.READ_WRITE,
-                    nextBufferStartOffset,
-                    BUF_GROWTH
-            );
-
-            //grow array if necessary
-            final int bufSlot = (int) (nextBufferStartOffset / BUF_SIZE);
-            if(dataBufs.length == bufSlot){
-                dataBufs = Arrays.copyOf(dataBufs,dataBufs.length*2);
-            }
-            dataBufs[bufSlot] =  dataBuf2;
-
+            if(CC.ASSERT && nextBufferStartOffset%bufSize!=0) throw new InternalError();
 
             //increase the disk size
-            indexValPut(RECID_CURRENT_PHYS_FILE_SIZE, physFileSize + freeSizeToCreate + requiredSize);
+            indexValPut(RECID_CURRENT_PHYS_FILE_SIZE, nextBufferStartOffset + requiredSize);
+            dataVol.ensureAvailable(nextBufferStartOffset + requiredSize);
 
-            //previous buffer was not fully filled, so mark it as free record
+            //previous segment was not fully filled, so mark it as free record
             freePhysRecPut(freeSizeToCreate<<48|physFileSize);
 
-            //and finally return position at beginning of new buffer
+            //and finally return position at beginning of new segment
             return (((long)requiredSize)<<48) | nextBufferStartOffset;
         }
-        }catch(IOException e){
-            throw new IOError(e);
+    }
+
+
+    /**
+     * Allocates space for new record and writes its data.
+     * Records up to {@link #MAX_INLINE_SIZE} are stored in index value and do not allocate any space.
+     * Records larger than {@link #MAX_RECORD_SIZE} are split into chain of physical records.
+     * Each physical record in chain starts with 8 byte link (size and offset) to next physical record,
+     * last record in chain has zero link. Space for each chunk is taken from free lists as any other record.
+     *
+     * @param data record data
+     * @param size number of bytes from data to write
+     * @return index value pointing to newly written record
+     */
+    final long physRecWrite(final byte[] data, final int size){
+        writeLock_checkLocked();
+
+        if(size<=MAX_INLINE_SIZE)
+            return inlineValue(data, size);
+
+        if(size<=MAX_RECORD_SIZE){
+            //fits into single physical record
+            return physRecWriteAt(freePhysRecTake(allocationSize(size, MAX_RECORD_SIZE)), data, size);
+        }
+
+        //allocate all chunks first, so links are known when data are written
+        final long[] chunks = new long[(size + LARGE_RECORD_CHUNK_DATA - 1)/LARGE_RECORD_CHUNK_DATA];
+        int remaining = size;
+        for(int i=0;i<chunks.length;i++){
+            final int chunkData = Math.min(remaining, LARGE_RECORD_CHUNK_DATA);
+            chunks[i] = freePhysRecTake(chunkData + LARGE_RECORD_LINK_SIZE);
+            remaining-=chunkData;
+        }
+
+        int dataOffset = 0;
+        for(int i=0;i<chunks.length;i++){
+            final int chunkData = (int) (chunks[i]>>>48) - LARGE_RECORD_LINK_SIZE;
+            final long dataPos = chunks[i]&PHYS_OFFSET_MASK;
+            //link to next chunk, last chunk has zero
+            dataVol.putLong(dataPos, i+1<chunks.length? chunks[i+1] : 0L);
+            dataVol.putData(dataPos+LARGE_RECORD_LINK_SIZE, data,dataOffset,chunkData);
+            dataOffset+=chunkData;
+        }
+        if(CC.ASSERT && dataOffset!=size) throw new InternalError();
+
+        return chunks[0] | MASK_LARGE;
+    }
+
+    /**
+     * @param size size of record data
+     * @param maxSize maximal size of allocated space
+     * @return size of space to allocate for record, larger than record size if record gets headroom
+     */
+    final int allocationSize(final int size, final int maxSize){
+        if(!recordHeadroom || size+SLACK_HEADER_SIZE>maxSize)
+            return size;
+        return Math.min(maxSize, size + SLACK_HEADER_SIZE + Math.max(SLACK_MIN_HEADROOM, size/4));
+    }
+
+    /**
+     * Writes record data into allocated space. Space larger than data gets used length header.
+     * Does not require write lock, space may be allocated by arena.
+     *
+     * @param indexValue allocated space
+     * @return index value pointing to record, with {@link #MASK_SLACK} if record has headroom
+     */
+    final long physRecWriteAt(long indexValue, final byte[] data, final int size){
+        final long dataPos = indexValue&PHYS_OFFSET_MASK;
+        if(indexValue>>>48 != size){
+            if(CC.ASSERT && size+SLACK_HEADER_SIZE>indexValue>>>48) throw new InternalError();
+            slackPut(dataPos, data, size);
+            indexValue |= MASK_SLACK;
+        }else{
+            dataVol.putData(dataPos, data, 0, size);
+        }
+        return indexValue;
+    }
+
+    /**
+     * Overwrites record data in place, if they fit into space allocated for record.
+     * Record without headroom must have the same size. Record with headroom is not reused
+     * if data are small enough to be inline, or if it would waste more than half of its space.
+     * Does not require write lock, caller must lock recid.
+     *
+     * @return true if data were written, false if record must be relocated
+     */
+    final boolean physRecUpdateInPlace(final long indexValue, final byte[] data, final int size){
+        if(!physRecFitsInPlace(indexValue, size))
+            return false;
+        physRecPutInPlace(indexValue, data, size);
+        return true;
+    }
+
+    /** @return true if data with given size can be written into space of existing record */
+    final boolean physRecFitsInPlace(final long indexValue, final int size){
+        if(isInline(indexValue) || (indexValue&MASK_LARGE)!=0)
+            return false;
+        final int capacity = (int) (indexValue>>>48);
+        if((indexValue&MASK_SLACK)==0)
+            return capacity==size;
+        return size>MAX_INLINE_SIZE && size+SLACK_HEADER_SIZE<=capacity && capacity<=2*allocationSize(size, MAX_RECORD_SIZE);
+    }
+
+    /** overwrites data of existing record, {@link #physRecFitsInPlace(long, int)} must be checked first */
+    final void physRecPutInPlace(final long indexValue, final byte[] data, final int size){
+        final long dataPos = indexValue&PHYS_OFFSET_MASK;
+        if((indexValue&MASK_SLACK)!=0)
+            slackPut(dataPos, data, size);
+        else if(size!=0)
+            dataVol.putData(dataPos, data, 0, size);
+    }
+
+    /** writes used length header and data of record with headroom */
+    final void slackPut(final long dataPos, final byte[] data, final int size){
+        dataVol.putByte(dataPos, (byte) (size>>>8));
+        dataVol.putByte(dataPos+1, (byte) size);
+        dataVol.putData(dataPos+SLACK_HEADER_SIZE, data, 0, size);
+    }
+
+    /** @return used length of record with headroom */
+    final int slackUsedSize(final long dataPos){
+        return ((dataVol.getByte(dataPos)&0xFF)<<8) | (dataVol.getByte(dataPos+1)&0xFF);
+    }
+
+    /**
+     * Releases space occupied by record, so it can be reused.
+     * Large records have all physical records in chain released.
+     *
+     * @param indexValue pointing to record, zero, zero sized or inline record is ignored
+     */
+    final void physRecFree(final long indexValue){
+        writeLock_checkLocked();
+        if(isInline(indexValue))
+            return;
+        if((indexValue&MASK_LARGE)==0){
+            //zero size records do not occupy any space
+            if(indexValue>>>48 == 0)
+                return;
+            freePhysRecPut(indexValue);
+            return;
         }
 
+        //read whole chain first. Released space may be reused for long stack pages,
+        //which would overwrite links we did not read yet
+        final long[] chunks = largeRecordChunks(indexValue);
+        for(long chunk:chunks){
+            freePhysRecPut(chunk);
+        }
     }
 
+    /** walks chain of physical records in large record and returns their index values (without flags) */
+    final long[] largeRecordChunks(long indexValue){
+        if(CC.ASSERT && (indexValue&MASK_LARGE)==0) throw new InternalError("not large record");
+        long[] chunks = new long[16];
+        int count = 0;
+        indexValue &= ~MASK_LARGE;
+        while(indexValue!=0){
+            if(count == chunks.length)
+                chunks = Arrays.copyOf(chunks, chunks.length*2);
+            chunks[count++] = indexValue;
+            final long dataPos = indexValue&PHYS_OFFSET_MASK;
+            indexValue = dataVol.getLong(dataPos);
+        }
+        return Arrays.copyOf(chunks, count);
+    }
 
-    final void freePhysRecPut(final long indexValue){
+    final void freePhysRecPut(long indexValue){
+        //space is released with its full capacity
+        indexValue &= ~MASK_SLACK;
         if(CC.ASSERT && (indexValue &PHYS_OFFSET_MASK)==0) throw new InternalError("zero indexValue: ");
         final int size =  (int) (indexValue>>>48);
 
+        if(freeExtents!=null && !freeExtentsFlush){
+            freeExtents.free(indexValue&PHYS_OFFSET_MASK, size);
+            //free space at end of file is not needed, so decrease file size
+            final long physFileSize = indexValGet(RECID_CURRENT_PHYS_FILE_SIZE);
+            final long newPhysFileSize = freeExtents.trimTail(physFileSize);
+            if(newPhysFileSize!=physFileSize)
+                indexValPut(RECID_CURRENT_PHYS_FILE_SIZE, newPhysFileSize);
+            return;
+        }
+
         final long listRecid = RECID_FREE_PHYS_RECORDS_START + freePhysRecSize2FreeSlot(size);
         longStackPut(listRecid, indexValue);
     }
 
+    /** @return true if index value contains record data, rather than pointing to physical record */
+    static boolean isInline(final long indexValue){
+        final int size = (int) (indexValue>>>48);
+        return size!=0 && size<=MAX_INLINE_SIZE;
+    }
+
+    /** encodes record data into index value, size is in top 16 bits and data bytes follow from highest to lowest */
+    static long inlineValue(final byte[] data, final int size){
+        if(CC.ASSERT && size>MAX_INLINE_SIZE) throw new InternalError();
+        long ret = ((long)size)<<48;
+        for(int i=0;i<size;i++){
+            ret |= ((long)(data[i]&0xFF)) << (40-8*i);
+        }
+        return ret;
+    }
+
+    /** decodes record data from inline index value */
+    static byte[] inlineData(final long indexValue){
+        final byte[] ret = new byte[(int) (indexValue>>>48)];
+        for(int i=0;i<ret.length;i++){
+            ret[i] = (byte) (indexValue>>>(40-8*i));
+        }
+        return ret;
+    }
+
     final long indexValGet(final long recid) {
-        return indexBufs[((int) (recid / BUF_SIZE_RECID))].getLong( (int) (recid%BUF_SIZE_RECID) * 8);
+        return indexVol.getLong(recid*8);
     }
 
     final void indexValPut(final long recid, final  long val) {
-        indexBufs[((int) (recid / BUF_SIZE_RECID))].putLong((int) ((recid % BUF_SIZE_RECID) * 8), val);
+        indexVol.putLong(recid*8, val);
     }
 
 
     protected void writeLock_lock() {
         lock.writeLock().lock();
+        if(lock.writeLock().getHoldCount()==1)
+            writeLockStamp.incrementAndGet();
     }
 
     protected void writeLock_unlock() {
+        if(lock.writeLock().getHoldCount()==1)
+            writeLockStamp.incrementAndGet();
         lock.writeLock().unlock();
     }
 
@@ -667,6 +2344,18 @@ public class RecordStore implements RecordManager {
 
 
 
+    /**
+     * Shared lock is taken by writers which allocate from arenas.
+     * They do not block each other, but are blocked by write lock.
+     */
+    protected void sharedLock_lock() {
+        lock.readLock().lock();
+    }
+
+    protected void sharedLock_unlock() {
+        lock.readLock().unlock();
+    }
+
     protected void readLock_unlock() {
         lock.readLock().unlock();
     }
@@ -675,33 +2364,322 @@ public class RecordStore implements RecordManager {
         lock.readLock().lock();
     }
 
+    /**
+     * @return true if readers hold read lock, so record data may be overwritten in place under write lock.
+     * Otherwise updated record is always written into new location, so lockless reader does not see half written data.
+     */
+    protected boolean readersLocked(){
+        return true;
+    }
+
 
     protected void forceRecordUpdateOnGivenRecid(final long recid, final byte[] value) {
+        forceRecordUpdateOnGivenRecid(recid, value, value.length);
+    }
+
+    /** writes first {@code size} bytes of given array as record data, so caller does not have to copy its buffer */
+    protected void forceRecordUpdateOnGivenRecid(final long recid, final byte[] value, final int size) {
         try{
             writeLock_lock();
-            //check file size
-            final long currentIndexFileSize = indexValGet(RECID_CURRENT_INDEX_FILE_SIZE);
-            if(recid * 8 >currentIndexFileSize){
-                //TODO grow index file with buffers overflow
-                long newIndexFileSize = recid*8;
-                indexValPut(RECID_CURRENT_INDEX_FILE_SIZE, newIndexFileSize);
-            }
-            //size has changed, so write into new location
-            final long newIndexValue = freePhysRecTake(value.length);
-            final long dataPos = newIndexValue&PHYS_OFFSET_MASK;
-            final ByteBuffer dataBuf = dataBufs[((int) (dataPos / BUF_SIZE))];
-            dataBuf.position((int) (dataPos%BUF_SIZE));
-            dataBuf.put(value);
+            indexGrow(recid);
+            final long oldIndexValue = indexValGet(recid);
+            final boolean retained = snapshotRetain(recid, oldIndexValue);
+            //record with headroom may grow in place, if readers can not see it half written
+            if(!retained && readersLocked() && (oldIndexValue&MASK_SLACK)!=0 && physRecUpdateInPlace(oldIndexValue, value, size))
+                return;
+
+            //write into new location
+            final long newIndexValue = physRecWrite(value, size);
 
-            long oldIndexValue = indexValGet(recid);
             //update index file with new location
             indexValPut(recid,newIndexValue);
 
             //and set old phys record as free
-            if(oldIndexValue!=0)
-                freePhysRecPut(oldIndexValue);
+            if(!retained)
+                physRecFree(oldIndexValue);
+        }finally {
+            writeLock_unlock();
+        }
+    }
+
+    /**
+     * Grows index file, so it contains given recid. Replayed or preallocated recid may be past its end,
+     * if stored index size is older than the recid. Caller must hold write lock.
+     */
+    protected void indexGrow(final long recid){
+        writeLock_checkLocked();
+        final long indexSize = (recid+1)*8;
+        if(indexSize>indexValGet(RECID_CURRENT_INDEX_FILE_SIZE)){
+            indexVol.ensureAvailable(indexSize);
+            indexValPut(RECID_CURRENT_INDEX_FILE_SIZE, indexSize);
+        }
+    }
+
+    /**
+     * Writes multiple records under single write lock, used by writer thread.
+     * Records are processed in recid order, so index file is updated sequentially.
+     * Space for relocated records is allocated in contiguous groups and data are written
+     * in ascending file offset, so data file pages are dirtied mostly sequentially.
+     *
+     * @param recids records to write
+     * @param data serialized records, null deletes record
+     * @param sizes number of bytes used in each data array
+     * @param count number of records in arrays
+     */
+    protected void forceRecordUpdateBatch(final long[] recids, final byte[][] data, final int[] sizes, final int count) {
+        try{
+            writeLock_lock();
+            final int[] order = sortedOrder(recids, count);
+            final long[] oldIndexVals = new long[count];
+            final long[] newIndexVals = new long[count];
+            //space allocated for record, zero if record is inline, large, deleted or updated in place
+            final int[] allocSizes = new int[count];
+            final boolean[] inPlace = new boolean[count];
+            //old record is kept for snapshot
+            final boolean[] retained = new boolean[count];
+
+            for(int i:order){
+                final long recid = recids[i];
+                indexGrow(recid);
+                oldIndexVals[i] = indexValGet(recid);
+                retained[i] = snapshotRetain(recid, oldIndexVals[i]);
+                final int size = sizes[i];
+                if(data[i]==null){
+                    newIndexVals[i] = FREE_RECID;
+                }else if(!retained[i] && readersLocked() && physRecFitsInPlace(oldIndexVals[i], size)){
+                    newIndexVals[i] = oldIndexVals[i];
+                    inPlace[i] = true;
+                }else if(size<=MAX_INLINE_SIZE){
+                    newIndexVals[i] = inlineValue(data[i], size);
+                }else if(size>MAX_RECORD_SIZE){
+                    //large records are written into chain of physical records straight away
+                    newIndexVals[i] = physRecWrite(data[i], size);
+                }else{
+                    allocSizes[i] = allocationSize(size, MAX_RECORD_SIZE);
+                }
+            }
+
+            //allocate groups of records with single physical record, which is split afterwards
+            int groupStart = 0;
+            while(groupStart<count){
+                int groupSize = 0;
+                int groupEnd = groupStart;
+                for(;groupEnd<count;groupEnd++){
+                    final int allocSize = allocSizes[order[groupEnd]];
+                    if(groupSize+allocSize>MAX_RECORD_SIZE) break;
+                    groupSize+=allocSize;
+                }
+                if(groupSize!=0){
+                    long offset = freePhysRecTake(groupSize) & PHYS_OFFSET_MASK;
+                    for(int j=groupStart;j<groupEnd;j++){
+                        final int i = order[j];
+                        if(allocSizes[i]==0) continue;
+                        newIndexVals[i] = (((long)allocSizes[i])<<48) | offset;
+                        offset+=allocSizes[i];
+                    }
+                }
+                groupStart = groupEnd;
+            }
+
+            //write data in order of their offset
+            final long[] offsets = new long[count];
+            for(int i=0;i<count;i++){
+                offsets[i] = newIndexVals[i] & PHYS_OFFSET_MASK;
+            }
+            for(int i:sortedOrder(offsets, count)){
+                if(allocSizes[i]!=0)
+                    newIndexVals[i] = physRecWriteAt(newIndexVals[i], data[i], sizes[i]);
+                else if(inPlace[i])
+                    physRecPutInPlace(oldIndexVals[i], data[i], sizes[i]);
+            }
+
+            //update index and release old space
+            for(int i:order){
+                if(data[i]==null)
+                    freeRecidPut(recids[i]);
+                else
+                    indexValPut(recids[i], newIndexVals[i]);
+                if(newIndexVals[i]!=oldIndexVals[i] && !retained[i])
+                    physRecFree(oldIndexVals[i]);
+            }
         }finally {
             writeLock_unlock();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * DataInput which reads record data directly from chain of physical records in large record.
+     * Data are not copied into intermediate buffer, if volume provides direct access to its buffers.
+     */
+    protected final class LargeRecordInput implements DataInput {
+
+        /** total size of record data */
+        final int size;
+
+        private final long[] chunks;
+        private int chunk = -1;
+        private ByteBuffer buf;
+        private int pos;
+        private int end;
+        private int remainingInNextChunks;
+
+        LargeRecordInput(final long indexValue){
+            chunks = largeRecordChunks(indexValue);
+            int s = 0;
+            for(long c:chunks){
+                s += (int) (c>>>48) - LARGE_RECORD_LINK_SIZE;
+            }
+            size = s;
+            remainingInNextChunks = s;
+            nextChunk();
+        }
+
+        private void nextChunk(){
+            chunk++;
+            if(chunk==chunks.length){
+                buf = null;
+                pos = end = 0;
+                return;
+            }
+            final long dataPos = chunks[chunk]&PHYS_OFFSET_MASK;
+            final int chunkData = (int) (chunks[chunk]>>>48) - LARGE_RECORD_LINK_SIZE;
+            final DataInput2 in = dataVol.getDataInput(dataPos + LARGE_RECORD_LINK_SIZE, chunkData);
+            buf = in.buf;
+            pos = in.pos;
+            end = pos + chunkData;
+            remainingInNextChunks -= chunkData;
+        }
+
+        /** number of bytes which were not read yet */
+        int remaining(){
+            return end - pos + remainingInNextChunks;
+        }
+
+        @Override
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            while(len>0){
+                if(pos==end){
+                    if(buf == null) throw new EOFException();
+                    nextChunk();
+                    continue;
+                }
+                final int n = Math.min(len, end-pos);
+                //duplicate so concurrent readers do not share buffer position
+                final ByteBuffer b2 = buf.duplicate();
+                b2.position(pos);
+                b2.get(b, off, n);
+                pos+=n;
+                off+=n;
+                len-=n;
+            }
+        }
+
+        @Override
+        public int skipBytes(int n) throws IOException {
+            final int ret = Math.min(n, remaining());
+            int toSkip = ret;
+            while(toSkip>0){
+                if(pos==end) nextChunk();
+                final int s = Math.min(toSkip, end-pos);
+                pos+=s;
+                toSkip-=s;
+            }
+            return ret;
+        }
+
+        @Override
+        public boolean readBoolean() throws IOException {
+            return readByte() == 1;
+        }
+
+        @Override
+        public byte readByte() throws IOException {
+            while(pos==end){
+                if(buf == null) throw new EOFException();
+                nextChunk();
+            }
+            return buf.get(pos++);
+        }
+
+        @Override
+        public int readUnsignedByte() throws IOException {
+            return readByte() & 0xff;
+        }
+
+        @Override
+        public short readShort() throws IOException {
+            if(end-pos>=2){
+                final short ret = buf.getShort(pos);
+                pos+=2;
+                return ret;
+            }
+            return (short) readUnsignedShort();
+        }
+
+        @Override
+        public int readUnsignedShort() throws IOException {
+            return (( (readByte() & 0xff) << 8) |
+                    ( (readByte() & 0xff)));
+        }
+
+        @Override
+        public char readChar() throws IOException {
+            return (char) readInt();
+        }
+
+        @Override
+        public int readInt() throws IOException {
+            if(end-pos>=4){
+                final int ret = buf.getInt(pos);
+                pos+=4;
+                return ret;
+            }
+            //value is split between two chunks
+            int ret = 0;
+            for(int i=0;i<4;i++){
+                ret = (ret<<8) | (readByte() & 0xff);
+            }
+            return ret;
+        }
+
+        @Override
+        public long readLong() throws IOException {
+            if(end-pos>=8){
+                final long ret = buf.getLong(pos);
+                pos+=8;
+                return ret;
+            }
+            //value is split between two chunks
+            long ret = 0;
+            for(int i=0;i<8;i++){
+                ret = (ret<<8) | (readByte() & 0xff);
+            }
+            return ret;
+        }
+
+        @Override
+        public float readFloat() throws IOException {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        @Override
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            return readUTF();
+        }
+
+        @Override
+        public String readUTF() throws IOException {
+            return SerializerBase.deserializeString(this);
+        }
+    }
+}
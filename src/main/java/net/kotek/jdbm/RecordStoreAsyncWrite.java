@@ -3,9 +3,22 @@ package net.kotek.jdbm;
 import java.io.IOError;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 
 /**
@@ -32,11 +45,58 @@ public class RecordStoreAsyncWrite extends RecordStore{
     /** stores writes */
     final protected LongConcurrentHashMap<Object> writes = new LongConcurrentHashMap<Object>();
 
-    private boolean shutdownSignal = false;
+    private volatile boolean shutdownSignal = false;
     private CountDownLatch shutdownResponse = new CountDownLatch(1);
 
+    /** tasks taken by writer thread in current round, used only by writer thread */
+    private final List<FutureTask<?>> tasks = new ArrayList<FutureTask<?>>();
+
+    /**
+     * Pending {@link #sync()} and {@link #snapshot()} calls,
+     * writer thread runs them once it writes records queued before them
+     */
+    protected final ConcurrentLinkedQueue<FutureTask<?>> writerTasks = new ConcurrentLinkedQueue<FutureTask<?>>();
+
+    /** producers blocked by full write queue wait on this */
     final protected Object writerNotify = new Object();
 
+    /** default value for {@link #maxPendingWrites} */
+    public static final int DEFAULT_MAX_PENDING_WRITES = 64 * 1024;
+
+    /** how long idle writer thread parks, before it checks queue again */
+    protected static final long WRITER_PARK_NANOS = 100L * 1000 * 1000;
+
+    /** maximal number of records written by writer thread in single batch */
+    protected static final int WRITER_BATCH_SIZE = 1024;
+
+    /** batch buffers, used only by writer thread */
+    private final long[] batchRecids = new long[WRITER_BATCH_SIZE];
+    private final Object[] batchValues = new Object[WRITER_BATCH_SIZE];
+    private final byte[][] batchData = new byte[WRITER_BATCH_SIZE][];
+    private final int[] batchSizes = new int[WRITER_BATCH_SIZE];
+    private final DataOutput2[] batchBuffers = new DataOutput2[WRITER_BATCH_SIZE];
+
+    /** batches smaller than this are serialized by writer thread alone */
+    protected static final int PARALLEL_SERIALIZATION_MIN_BATCH = 64;
+
+    /** number of threads which serialize batch, including writer thread */
+    protected final int serializerThreads;
+
+    /** runs serialization for other than first part of batch, null if writer thread serializes alone */
+    protected final ExecutorService serializerPool;
+
+    /** producers block when more records are waiting in {@link #writes}, zero means unbounded */
+    protected final int maxPendingWrites;
+
+    /** number of records in {@link #writes} */
+    protected final AtomicInteger pendingWrites = new AtomicInteger(0);
+
+    /** number of producers currently blocked by full write queue */
+    protected final AtomicInteger blockedProducers = new AtomicInteger(0);
+
+    /** how many times producer was blocked by full write queue */
+    protected final AtomicLong producerWaits = new AtomicLong(0);
+
     protected final Thread writerThread = new Thread("JDBM writer"){
         public void run(){
             writerThreadRun();
@@ -46,33 +106,35 @@ public class RecordStoreAsyncWrite extends RecordStore{
     @SuppressWarnings("unchecked")
     private void writerThreadRun() {
         while(true)try{
-            while(writes.isEmpty() && newRecids.remainingCapacity()==0){
+            while(writes.isEmpty() && newRecids.remainingCapacity()==0 && writerTasks.isEmpty()){
                 if(writes.isEmpty() && shutdownSignal){
                     //store closed, shutdown this thread
                     shutdownResponse.countDown();
                     return;
                 }
 
-                //TODO this just sucks, proper notify()
-                Thread.yield();
+                //producers unpark writer when they add write or take recid
+                LockSupport.parkNanos(this, WRITER_PARK_NANOS);
             }
 
 
+            //tasks are completed after writes which were queued before them
+            for(FutureTask<?> t = writerTasks.poll();t!=null;t = writerTasks.poll())
+                tasks.add(t);
+
             LongMap.LongMapIterator<Object> iter = writes.longMapIterator();
+            int count = 0;
             while(iter.moveToNext()){
-                final long recid = iter.key();
-                final Object value = iter.value();
-                if(value==DELETED){
-                    RecordStoreAsyncWrite.super.recordDelete(recid);
-                }else{
-                    byte[] data = asyncSerialization ? ((SerRec)value).serialize() : (byte[]) value;
-                    RecordStoreAsyncWrite.super.forceRecordUpdateOnGivenRecid(recid, data);
+                //take snapshot of pending writes
+                batchRecids[count] = iter.key();
+                batchValues[count] = iter.value();
+                if(++count==WRITER_BATCH_SIZE){
+                    writeBatch(count);
+                    count = 0;
                 }
-                //Record will be only removed if value was not updated.
-                //If value was updated during write, equality check will fail, and it will stay there
-                //We just collect it at next round
-                writes.remove(recid, value);
             }
+            if(count!=0)
+                writeBatch(count);
 
             int toFetch = newRecids.remainingCapacity();
             try{
@@ -84,9 +146,97 @@ public class RecordStoreAsyncWrite extends RecordStore{
                 writeLock_unlock();
             }
 
+            for(FutureTask<?> t:tasks)
+                t.run();
+            tasks.clear();
+
 
         }catch(Exception e){
             JdbmUtil.LOG.log(Level.SEVERE, "An exception in JDBM Writer thread",e);
+            //writes may not be durable, so fail pending tasks
+            for(FutureTask<?> t:tasks)
+                t.cancel(false);
+            tasks.clear();
+        }
+    }
+
+    /**
+     * Serializes snapshot of pending writes and writes them into store in single batch.
+     * Written records are removed from {@link #writes}, unless they were modified in meantime.
+     */
+    private void writeBatch(final int count) throws IOException {
+        if(serializerPool!=null && count>=PARALLEL_SERIALIZATION_MIN_BATCH)
+            serializeParallel(count);
+        else
+            serializeRange(0, count);
+
+        RecordStoreAsyncWrite.super.forceRecordUpdateBatch(batchRecids, batchData, batchSizes, count);
+
+        for(int i=0;i<count;i++){
+            //Record will be only removed if value was not updated.
+            //If value was updated during write, equality check will fail, and it will stay there
+            //We just collect it at next round
+            if(writes.remove(batchRecids[i], batchValues[i]))
+                pendingWrites.decrementAndGet();
+            batchValues[i] = null;
+            batchData[i] = null;
+        }
+
+        if(blockedProducers.get()>0){
+            synchronized (writerNotify){
+                writerNotify.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Splits batch between serializer threads. Writer thread serializes first part itself.
+     * Each thread uses its own range of batch slots, so no other synchronization is needed.
+     */
+    private void serializeParallel(final int count) throws IOException {
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(serializerThreads-1);
+        for(int t=1;t<serializerThreads;t++){
+            final int from = count*t/serializerThreads;
+            final int to = count*(t+1)/serializerThreads;
+            futures.add(serializerPool.submit(new Callable<Void>() {
+                @Override public Void call() throws IOException {
+                    serializeRange(from, to);
+                    return null;
+                }
+            }));
+        }
+        serializeRange(0, count/serializerThreads);
+        try{
+            for(Future<Void> f:futures) f.get();
+        }catch(InterruptedException e){
+            throw new RuntimeException(e);
+        }catch(ExecutionException e){
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /** fills data and sizes of batch slots in given range */
+    @SuppressWarnings("unchecked")
+    private void serializeRange(final int from, final int to) throws IOException {
+        for(int i=from;i<to;i++){
+            final Object value = batchValues[i];
+            if(value==DELETED){
+                batchData[i] = null;
+                batchSizes[i] = 0;
+            }else if(asyncSerialization){
+                //serialize into reused buffer and write it directly into store, without intermediate byte[]
+                DataOutput2 out = batchBuffers[i];
+                if(out==null || out.buf.length>DataOutput2.MAX_REUSED_SIZE)
+                    out = batchBuffers[i] = new DataOutput2();
+                out.pos = 0;
+                ((SerRec)value).serializer.serialize(out, ((SerRec)value).value);
+                batchData[i] = out.buf;
+                batchSizes[i] = out.pos;
+            }else{
+                batchData[i] = (byte[]) value;
+                batchSizes[i] = batchData[i].length;
+            }
         }
     }
 
@@ -94,8 +244,61 @@ public class RecordStoreAsyncWrite extends RecordStore{
 
 
     public RecordStoreAsyncWrite(String fileName, boolean asyncSerialization) {
-        super(fileName);
+        this(fileName, asyncSerialization, false);
+    }
+
+    public RecordStoreAsyncWrite(String fileName, boolean asyncSerialization, boolean freeSpaceCoalescing) {
+        this(Volume.factory(fileName, true, false), asyncSerialization, freeSpaceCoalescing);
+    }
+
+    public RecordStoreAsyncWrite(Volume.Factory volumeFactory, boolean asyncSerialization, boolean freeSpaceCoalescing) {
+        this(volumeFactory, asyncSerialization, freeSpaceCoalescing, false);
+    }
+
+    /**
+     * @param volumeFactory creates volumes where data and index are stored
+     * @param recordHeadroom if true records are allocated with free space, see {@link #readersLocked()}
+     */
+    public RecordStoreAsyncWrite(Volume.Factory volumeFactory, boolean asyncSerialization, boolean freeSpaceCoalescing,
+                                 boolean recordHeadroom) {
+        this(volumeFactory, asyncSerialization, freeSpaceCoalescing, recordHeadroom, DEFAULT_MAX_PENDING_WRITES);
+    }
+
+    /**
+     * @param volumeFactory creates volumes where data and index are stored
+     * @param recordHeadroom if true records are allocated with free space, see {@link #readersLocked()}
+     * @param maxPendingWrites producers block when more records are waiting for writer thread, zero means unbounded
+     */
+    public RecordStoreAsyncWrite(Volume.Factory volumeFactory, boolean asyncSerialization, boolean freeSpaceCoalescing,
+                                 boolean recordHeadroom, int maxPendingWrites) {
+        this(volumeFactory, asyncSerialization, freeSpaceCoalescing, recordHeadroom, maxPendingWrites, 1);
+    }
+
+    /**
+     * @param volumeFactory creates volumes where data and index are stored
+     * @param recordHeadroom if true records are allocated with free space, see {@link #readersLocked()}
+     * @param maxPendingWrites producers block when more records are waiting for writer thread, zero means unbounded
+     * @param serializerThreads number of threads which serialize records with async serialization, including writer thread
+     */
+    public RecordStoreAsyncWrite(Volume.Factory volumeFactory, boolean asyncSerialization, boolean freeSpaceCoalescing,
+                                 boolean recordHeadroom, int maxPendingWrites, int serializerThreads) {
+        super(volumeFactory, freeSpaceCoalescing, 0, false, recordHeadroom);
+        if(maxPendingWrites<0) throw new IllegalArgumentException("maxPendingWrites is negative");
+        if(serializerThreads<1) throw new IllegalArgumentException("serializerThreads must be at least 1");
         this.asyncSerialization = asyncSerialization;
+        this.maxPendingWrites = maxPendingWrites;
+        this.serializerThreads = asyncSerialization? serializerThreads : 1;
+        this.serializerPool = this.serializerThreads==1? null :
+                Executors.newFixedThreadPool(this.serializerThreads - 1, new ThreadFactory() {
+                    @Override public Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "JDBM serializer");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        //readers do not take lock and may still use superseded buffers, so leave them for GC
+        dataVol.setReleaseBuffers(false);
+        indexVol.setReleaseBuffers(false);
         //TODO cache index file size
         //allocatedIndexFileSize = indexValGet(RECID_CURRENT_INDEX_FILE_SIZE);
 
@@ -110,15 +313,17 @@ public class RecordStoreAsyncWrite extends RecordStore{
         if(asyncSerialization){
             v = new SerRec<A>(value, serializer);
         }else{
-            DataOutput2 out = new DataOutput2();
+            DataOutput2 out = DataOutput2.borrow();
             try {
                 serializer.serialize(out, value);
             } catch (IOException e) {
                 throw new IOError(e);
             }
             v = out.copyBytes();
+            DataOutput2.release(out);
         }
         Object previous = writes.put(recid,v);
+        writeQueued(previous);
 
         if(previous== DELETED){
             throw new IllegalArgumentException("Recid was deleted: "+recid);
@@ -128,7 +333,104 @@ public class RecordStoreAsyncWrite extends RecordStore{
     @Override
     public void recordDelete(long recid) {
         if(CC.ASSERT&& recid == 0) throw new InternalError();
-        writes.put(recid, DELETED);
+        writeQueued(writes.put(recid, DELETED));
+    }
+
+    /** counts new pending write, wakes up writer thread and blocks if write queue is full */
+    protected void writeQueued(final Object previous){
+        final int pending = previous==null? pendingWrites.incrementAndGet() : pendingWrites.get();
+        LockSupport.unpark(writerThread);
+        if(maxPendingWrites==0 || pending<=maxPendingWrites || Thread.currentThread()==writerThread)
+            return;
+
+        producerWaits.incrementAndGet();
+        blockedProducers.incrementAndGet();
+        try{
+            synchronized (writerNotify){
+                while(pendingWrites.get()>maxPendingWrites && !shutdownSignal){
+                    //timeout in case notification is missed
+                    writerNotify.wait(10);
+                }
+            }
+        }catch(InterruptedException e){
+            throw new RuntimeException(e);
+        }finally {
+            blockedProducers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Waits until writer thread writes all records queued before this call and forces store to disk.
+     */
+    @Override
+    public void sync() {
+        runOnWriter(new Callable<Void>() {
+            @Override public Void call() {
+                RecordStoreAsyncWrite.super.sync();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Snapshot is taken by writer thread, after it writes all records queued before this call.
+     */
+    @Override
+    public RecordManager snapshot() {
+        return runOnWriter(new Callable<RecordManager>() {
+            @Override public RecordManager call() {
+                return RecordStoreAsyncWrite.super.snapshot();
+            }
+        });
+    }
+
+    /**
+     * Final pass of backup runs on writer thread, so it contains records queued before backup was started.
+     */
+    @Override
+    protected void backupFinalPass(final Backup backup) {
+        runOnWriter(new Callable<Void>() {
+            @Override public Void call() {
+                try {
+                    RecordStoreAsyncWrite.super.backupFinalPass(backup);
+                } catch (IOException e) {
+                    throw new IOError(e);
+                }
+                return null;
+            }
+        });
+    }
+
+    /** runs task on writer thread, after all records queued before this call were written, and waits for result */
+    protected <A> A runOnWriter(final Callable<A> callable){
+        try{
+            if(Thread.currentThread()==writerThread)
+                return callable.call();
+            final FutureTask<A> task = new FutureTask<A>(callable);
+            writerTasks.add(task);
+            LockSupport.unpark(writerThread);
+            return task.get();
+        }catch(InterruptedException e){
+            throw new RuntimeException(e);
+        }catch(ExecutionException e){
+            if(e.getCause() instanceof Error) throw (Error) e.getCause();
+            if(e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }catch(RuntimeException e){
+            throw e;
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** @return number of records waiting to be written by writer thread */
+    public int getPendingWrites(){
+        return pendingWrites.get();
+    }
+
+    /** @return how many times producer was blocked, because too many records were waiting for writer thread */
+    public long getProducerWaits(){
+        return producerWaits.get();
     }
 
     @Override
@@ -138,14 +440,15 @@ public class RecordStoreAsyncWrite extends RecordStore{
             if(asyncSerialization){
                 v = new SerRec<A>(value,serializer);
             }else{
-                DataOutput2 out = new DataOutput2();
+                DataOutput2 out = DataOutput2.borrow();
                 serializer.serialize(out, value);
                 v= out.copyBytes();
+                DataOutput2.release(out);
             }
 
             final long newRecid = newRecids.take();
-            writes.put(newRecid, v);
-        return newRecid;
+            writeQueued(writes.put(newRecid, v));
+            return newRecid;
         } catch (IOException e) {
             throw new IOError(e);
         }catch(InterruptedException e){
@@ -155,6 +458,81 @@ public class RecordStoreAsyncWrite extends RecordStore{
 
     }
 
+    @Override
+    public <A> A recordGetBuffer(long recid, RecordReader<A> reader) {
+        final Object d = writes.get(recid);
+        if(d == DELETED){
+            return null;
+        }else if(d!=null){
+            final byte[] b = asyncSerialization? ((SerRec)d).serialize() : (byte[]) d;
+            try {
+                return reader.read(ByteBuffer.wrap(b).asReadOnlyBuffer());
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+        //read lock does nothing here, shared lock keeps writer thread from freeing or reusing record while reader runs
+        try{
+            sharedLock_lock();
+            return super.recordGetBuffer(recid, reader);
+        }finally {
+            sharedLock_unlock();
+        }
+    }
+
+    @Override
+    public <A> long[] recordPutBatch(A[] values, Serializer<A> serializer) {
+        final long[] recids = new long[values.length];
+        //take all preallocated recids at once, wait for writer only if queue runs out
+        final ArrayList<Long> taken = new ArrayList<Long>(values.length);
+        newRecids.drainTo(taken, values.length);
+        try{
+            for(int i=0;i<values.length;i++){
+                Object v;
+                if(asyncSerialization){
+                    v = new SerRec<A>(values[i],serializer);
+                }else{
+                    DataOutput2 out = DataOutput2.borrow();
+                    serializer.serialize(out, values[i]);
+                    v= out.copyBytes();
+                    DataOutput2.release(out);
+                }
+                recids[i] = i<taken.size()? taken.get(i) : newRecids.take();
+                writeQueued(writes.put(recids[i], v));
+            }
+            return recids;
+        } catch (IOException e) {
+            throw new IOError(e);
+        }catch(InterruptedException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public <A> void recordUpdateBatch(long[] recids, A[] values, Serializer<A> serializer) {
+        for(int i=0;i<recids.length;i++)
+            recordUpdate(recids[i], values[i], serializer);
+    }
+
+    @Override
+    public <A> void recordGetBatch(long[] recids, A[] values, Serializer<A> serializer) {
+        //take pending records from write queue, rest is read from store in single batch
+        final int[] missPos = new int[recids.length];
+        int misses = 0;
+        for(int i=0;i<recids.length;i++){
+            if(writes.get(recids[i])!=null)
+                values[i] = recordGet(recids[i], serializer);
+            else
+                missPos[misses++] = i;
+        }
+        if(misses==0) return;
+        final long[] missRecids = new long[misses];
+        for(int i=0;i<misses;i++) missRecids[i] = recids[missPos[i]];
+        final A[] missValues = Arrays.copyOf(values, misses);
+        super.recordGetBatch(missRecids, missValues, serializer);
+        for(int i=0;i<misses;i++) values[missPos[i]] = missValues[i];
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <A> A recordGet(long recid, Serializer<A> serializer) {
@@ -178,6 +556,7 @@ public class RecordStoreAsyncWrite extends RecordStore{
     @Override
     public void close() {
         shutdownSignal = true;
+        LockSupport.unpark(writerThread);
         //wait until writer thread finishes and exits
         try {
             shutdownResponse.await();
@@ -195,6 +574,8 @@ public class RecordStoreAsyncWrite extends RecordStore{
             writeLock_unlock();
         }
 
+        if(serializerPool!=null)
+            serializerPool.shutdown();
 
         super.close();
     }
@@ -203,9 +584,14 @@ public class RecordStoreAsyncWrite extends RecordStore{
     @SuppressWarnings("all")
     private final AtomicInteger writeLocksCounter = CC.ASSERT? new AtomicInteger(0) : null;
 
+    /**
+     * Write lock is normally taken only by writer thread, so it is not contended.
+     * It excludes other structural changes such as compaction.
+     */
     @Override
     protected void writeLock_lock() {
-        if(CC.ASSERT &&writeLocksCounter!=null){
+        super.writeLock_lock();
+        if(CC.ASSERT &&writeLocksCounter!=null && lock.writeLock().getHoldCount()==1){
             int c = writeLocksCounter.incrementAndGet();
             if(c!=1) throw new InternalError("more then one writer");
         }
@@ -213,10 +599,11 @@ public class RecordStoreAsyncWrite extends RecordStore{
 
     @Override
     protected void writeLock_unlock() {
-        if(CC.ASSERT &&writeLocksCounter!=null){
+        if(CC.ASSERT &&writeLocksCounter!=null && lock.writeLock().getHoldCount()==1){
             int c = writeLocksCounter.decrementAndGet();
             if(c!=0) throw new InternalError("more then one writer");
         }
+        super.writeLock_unlock();
 
     }
 
@@ -238,6 +625,15 @@ public class RecordStoreAsyncWrite extends RecordStore{
         //do nothing, background thread and cache takes care of write synchronization
     }
 
+    /**
+     * Readers do not take read lock, so writer thread must not overwrite records in place.
+     * Updated records are always relocated, even if they have headroom.
+     */
+    @Override
+    protected boolean readersLocked() {
+        return false;
+    }
+
 
     protected static class SerRec<E> {
 
@@ -250,13 +646,15 @@ public class RecordStoreAsyncWrite extends RecordStore{
         }
 
         byte[] serialize(){
-            DataOutput2 out = new DataOutput2();
+            DataOutput2 out = DataOutput2.borrow();
             try {
                 serializer.serialize(out, value);
             } catch (IOException e) {
                 throw new IOError(e);
             }
-            return out.copyBytes();
+            final byte[] ret = out.copyBytes();
+            DataOutput2.release(out);
+            return ret;
         }
 
     }
@@ -0,0 +1,578 @@
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+
+/**
+ * RecordStore with transactions. Modifications are kept in memory until {@link #commit()}.
+ * Commit appends all modifications into Write-Ahead-Log file and applies them into store
+ * once log is forced to disk, so store never contains transaction which could be lost.
+ * After crash committed changes are replayed from log when store is opened.
+ * <p/>
+ * Log is append-only and written sequentially. Concurrent committers are batched:
+ * single thread forces log to disk for all commits appended so far (group commit).
+ * Log is truncated at checkpoint, when its size reaches {@link #LOG_CHECKPOINT_SIZE}.
+ * At checkpoint all store buffers are forced to disk.
+ * <p/>
+ * Log file format:
+ * <pre>
+ *     8 bytes  - file header, same as store header
+ *     followed by committed transactions, each having:
+ *     4 bytes  - size of transaction data
+ *     N bytes  - transaction data, sequence of entries:
+ *                  1 byte entry type, 8 bytes recid, packed int size and record data
+ *     8 bytes  - CRC32 checksum of transaction data
+ * </pre>
+ * Transaction with missing or broken checksum was not committed and is ignored at replay.
+ *
+ * @author Jan Kotek
+ */
+public class RecordStoreWAL extends RecordStore{
+
+    /** when log file reaches this size, store is forced to disk and log is truncated */
+    static final long LOG_CHECKPOINT_SIZE = 1<<26;
+
+    protected static final byte LOG_ENTRY_UPDATE = 1;
+    protected static final byte LOG_ENTRY_DELETE = 2;
+
+    /** indicates deleted record */
+    protected static final Object DELETED = new Object();
+
+    /** modifications made since last commit, value is serialized record or {@link #DELETED}*/
+    protected final LongConcurrentHashMap<Object> dirty = new LongConcurrentHashMap<Object>();
+
+    /**
+     * Committed modifications appended into log, but not applied into store yet, as log may not be durable.
+     * Value is serialized record or {@link #DELETED}.
+     */
+    protected final LongConcurrentHashMap<Object> committed = new LongConcurrentHashMap<Object>();
+
+    /** transactions appended into log, in order. They are applied into store after log is forced to disk */
+    protected final ConcurrentLinkedQueue<CommittedTx> committedTxs = new ConcurrentLinkedQueue<CommittedTx>();
+
+    /** recids allocated by uncommitted transaction, those are released if transaction is not committed */
+    protected final LongConcurrentHashMap<Object> newRecids = new LongConcurrentHashMap<Object>();
+
+    protected final FileChannel logChannel;
+
+    /** how long group commit waits for other committers before log is forced to disk */
+    protected final long syncInterval;
+
+    /** serializes appending into log and applying changes into store */
+    protected final Object commitLock = new Object();
+    /** only one thread forces log to disk at the time*/
+    protected final Object syncLock = new Object();
+
+    /** current log size, guarded by commitLock */
+    protected long logSize;
+    /** sequence number of last transaction appended into log */
+    protected volatile long appendedSeq = 0;
+    /** sequence number of last transaction which is durable on disk and applied into store */
+    protected volatile long syncedSeq = 0;
+
+
+    public RecordStoreWAL(String fileName) {
+        this(fileName, 0);
+    }
+
+    public RecordStoreWAL(String fileName, long syncInterval) {
+        this(fileName, syncInterval, false);
+    }
+
+    public RecordStoreWAL(String fileName, long syncInterval, boolean freeSpaceCoalescing) {
+        this(fileName, syncInterval, freeSpaceCoalescing, Volume.factory(fileName, true, false));
+    }
+
+    /**
+     * @param fileName log is stored in file <code>fileName.t</code>, null for in-memory store without log
+     * @param volumeFactory creates volumes where data and index are stored
+     */
+    public RecordStoreWAL(String fileName, long syncInterval, boolean freeSpaceCoalescing, Volume.Factory volumeFactory) {
+        this(fileName, syncInterval, freeSpaceCoalescing, volumeFactory, false);
+    }
+
+    /**
+     * @param fileName log is stored in file <code>fileName.t</code>, null for in-memory store without log
+     * @param volumeFactory creates volumes where data and index are stored
+     * @param recordHeadroom if true records are allocated with free space, so they can grow in place
+     */
+    public RecordStoreWAL(String fileName, long syncInterval, boolean freeSpaceCoalescing, Volume.Factory volumeFactory,
+                          boolean recordHeadroom) {
+        super(volumeFactory, freeSpaceCoalescing, 0, false, recordHeadroom);
+        this.syncInterval = syncInterval;
+        if(inMemory){
+            logChannel = null;
+            return;
+        }
+        try{
+            logChannel = new RandomAccessFile(new File(fileName+".t"),"rw").getChannel();
+            replayLog();
+        }catch(IOException e){
+            throw new IOError(e);
+        }
+    }
+
+    /** applies all committed transactions from log into store and truncates log */
+    protected void replayLog() throws IOException {
+        final long size = logChannel.size();
+        if(size>=8){
+            final ByteBuffer header = ByteBuffer.allocate(8);
+            logChannel.read(header, 0);
+            if(header.getLong(0)!=HEADER) throw new IOException("Wrong log file header");
+
+            long pos = 8;
+            boolean replayed = false;
+            //only last entry of each recid is applied, so replay does not depend on state store was left in
+            final LongConcurrentHashMap<Object> entries = new LongConcurrentHashMap<Object>();
+            while(pos+4<=size){
+                final ByteBuffer len = ByteBuffer.allocate(4);
+                logChannel.read(len,pos);
+                final int txSize = len.getInt(0);
+                if(txSize<=0 || pos+4+txSize+8>size)
+                    break; //transaction was not fully written
+                final ByteBuffer tx = ByteBuffer.allocate(txSize+8);
+                while(tx.remaining()>0){
+                    if(logChannel.read(tx, pos+4+tx.position())<0) break;
+                }
+                final CRC32 crc = new CRC32();
+                crc.update(tx.array(),0,txSize);
+                if(tx.getLong(txSize)!=crc.getValue())
+                    break; //broken checksum, transaction was not committed
+
+                replayTransaction(new DataInput2(tx, 0), txSize, entries);
+                replayed = true;
+                pos+=4+txSize+8;
+            }
+            final LongMap.LongMapIterator<Object> iter = entries.longMapIterator();
+            while(iter.moveToNext())
+                replayEntry(iter.key(), iter.value());
+            if(replayed && recovered){
+                //replayed records may use recids which recovery found free, before transaction was applied
+                try{
+                    writeLock_lock();
+                    final boolean coalescing = freeExtents!=null;
+                    //free space is rebuilt from scratch, so there is no need to write it back
+                    freeExtents = null;
+                    recover();
+                    if(coalescing)
+                        freeSpaceLoad();
+                }finally {
+                    writeLock_unlock();
+                }
+            }
+        }
+        checkpoint();
+    }
+
+    /** reads entries of transaction, entries override older entries of the same recid */
+    protected void replayTransaction(final DataInput2 in, final int txSize, final LongMap<Object> entries) throws IOException {
+        while(in.pos<txSize){
+            final byte type = in.readByte();
+            final long recid = in.readLong();
+            if(type == LOG_ENTRY_DELETE){
+                entries.put(recid, DELETED);
+            }else if(type == LOG_ENTRY_UPDATE){
+                final byte[] data = new byte[JdbmUtil.unpackInt(in)];
+                in.readFully(data);
+                entries.put(recid, data);
+            }else{
+                throw new IOException("Unknown log entry type: "+type);
+            }
+        }
+    }
+
+    /** applies last logged state of recid into store */
+    protected void replayEntry(final long recid, final Object value){
+        if(value == DELETED){
+            try{
+                writeLock_lock();
+                //delete may already be applied, in this case recid is already in free list.
+                //Stores written by older versions have zero index value for free recid
+                final long indexValue = indexValGet(recid);
+                if(indexValue==FREE_RECID || indexValue==0) return;
+            }finally {
+                writeLock_unlock();
+            }
+            super.recordDelete(recid);
+        }else{
+            super.forceRecordUpdateOnGivenRecid(recid, (byte[]) value);
+        }
+    }
+
+
+    @Override
+    public <A> long recordPut(A value, Serializer<A> serializer) {
+        final byte[] data = serialize(value, serializer);
+        final long recid;
+        try{
+            writeLock_lock();
+            recid = freeRecidTake();
+        }catch(IOException e){
+            throw new IOError(e);
+        }finally {
+            writeLock_unlock();
+        }
+        newRecids.put(recid, Boolean.TRUE);
+        dirty.put(recid, data);
+        return recid;
+    }
+
+    @Override
+    public <A> void recordUpdate(long recid, A value, Serializer<A> serializer) {
+        dirty.put(recid, serialize(value,serializer));
+    }
+
+    @Override
+    public void recordDelete(long recid) {
+        dirty.put(recid, DELETED);
+    }
+
+    /** @return uncommitted or not yet applied value of record, null if record should be read from store */
+    protected Object modified(final long recid){
+        final Object d = dirty.get(recid);
+        //value is moved into committed map before it is removed from dirty map,
+        //and it is applied into store before it is removed from committed map
+        return d!=null? d : committed.get(recid);
+    }
+
+    @Override
+    public <A> A recordGet(long recid, Serializer<A> serializer) {
+        final Object d = modified(recid);
+        if(d == DELETED){
+            return null;
+        }else if(d!=null){
+            try {
+                final byte[] b = (byte[]) d;
+                return serializer.deserialize(new DataInput2(ByteBuffer.wrap(b),0),b.length);
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+        return super.recordGet(recid, serializer);
+    }
+
+    @Override
+    public <A> A recordGetBuffer(long recid, RecordReader<A> reader) {
+        final Object d = modified(recid);
+        if(d == DELETED){
+            return null;
+        }else if(d!=null){
+            try {
+                return reader.read(ByteBuffer.wrap((byte[]) d).asReadOnlyBuffer());
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+        return super.recordGetBuffer(recid, reader);
+    }
+
+    @Override
+    public <A> long[] recordPutBatch(A[] values, Serializer<A> serializer) {
+        final byte[][] data = new byte[values.length][];
+        for(int i=0;i<values.length;i++)
+            data[i] = serialize(values[i], serializer);
+        final long[] recids = new long[values.length];
+        try{
+            writeLock_lock();
+            for(int i=0;i<recids.length;i++)
+                recids[i] = freeRecidTake();
+        }catch(IOException e){
+            throw new IOError(e);
+        }finally {
+            writeLock_unlock();
+        }
+        for(int i=0;i<recids.length;i++){
+            newRecids.put(recids[i], Boolean.TRUE);
+            dirty.put(recids[i], data[i]);
+        }
+        return recids;
+    }
+
+    @Override
+    public <A> void recordUpdateBatch(long[] recids, A[] values, Serializer<A> serializer) {
+        for(int i=0;i<recids.length;i++)
+            recordUpdate(recids[i], values[i], serializer);
+    }
+
+    @Override
+    public <A> void recordGetBatch(long[] recids, A[] values, Serializer<A> serializer) {
+        //take uncommitted records from dirty map, rest is read from store in single batch
+        final int[] missPos = new int[recids.length];
+        int misses = 0;
+        for(int i=0;i<recids.length;i++){
+            if(modified(recids[i])!=null)
+                values[i] = recordGet(recids[i], serializer);
+            else
+                missPos[misses++] = i;
+        }
+        if(misses==0) return;
+        final long[] missRecids = new long[misses];
+        for(int i=0;i<misses;i++) missRecids[i] = recids[missPos[i]];
+        final A[] missValues = Arrays.copyOf(values, misses);
+        super.recordGetBatch(missRecids, missValues, serializer);
+        for(int i=0;i<misses;i++) values[missPos[i]] = missValues[i];
+    }
+
+    protected <A> byte[] serialize(A value, Serializer<A> serializer){
+        try {
+            final DataOutput2 out = DataOutput2.borrow();
+            serializer.serialize(out, value);
+            final byte[] ret = out.copyBytes();
+            DataOutput2.release(out);
+            return ret;
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+    @Override
+    public void commit() {
+        final long seq;
+        synchronized (commitLock){
+            seq = commitAppend();
+        }
+        commitSync(seq);
+    }
+
+    /** transaction appended into log, which waits until log is durable to be applied into store */
+    protected static final class CommittedTx{
+        final long seq;
+        final long[] recids;
+        final Object[] values;
+        final int count;
+
+        CommittedTx(long seq, long[] recids, Object[] values, int count) {
+            this.seq = seq;
+            this.recids = recids;
+            this.values = values;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Appends all current modifications into log. They are applied into store by {@link #commitSync(long)},
+     * after log is forced to disk. Caller must hold commitLock.
+     *
+     * @return sequence number of transaction which must be durable before commit returns
+     */
+    protected long commitAppend(){
+        if(dirty.isEmpty())
+            return appendedSeq;
+        try{
+            //take snapshot of modifications and serialize them into single log entry
+            long[] recids = new long[16];
+            Object[] values = new Object[16];
+            int count = 0;
+            final DataOutput2 out = DataOutput2.borrow();
+            out.writeInt(0); //placeholder for size
+            final LongMap.LongMapIterator<Object> iter = dirty.longMapIterator();
+            while(iter.moveToNext()){
+                final long recid = iter.key();
+                final Object value = iter.value();
+                if(count == recids.length){
+                    recids = Arrays.copyOf(recids, count*2);
+                    values = Arrays.copyOf(values, count*2);
+                }
+                recids[count] = recid;
+                values[count] = value;
+                count++;
+
+                if(value == DELETED){
+                    out.writeByte(LOG_ENTRY_DELETE);
+                    out.writeLong(recid);
+                }else{
+                    final byte[] data = (byte[]) value;
+                    out.writeByte(LOG_ENTRY_UPDATE);
+                    out.writeLong(recid);
+                    JdbmUtil.packInt(out, data.length);
+                    out.write(data);
+                }
+            }
+            final int txSize = out.pos - 4;
+            final CRC32 crc = new CRC32();
+            crc.update(out.buf, 4, txSize);
+            out.writeLong(crc.getValue());
+            final ByteBuffer b = ByteBuffer.wrap(out.buf, 0, out.pos);
+            b.putInt(0, txSize);
+
+            if(logChannel!=null){
+                //append into log
+                while(b.remaining()>0){
+                    logSize+=logChannel.write(b, logSize);
+                }
+            }
+            DataOutput2.release(out);
+
+            //modifications are now committed, but stay visible only in memory until log is durable
+            for(int i=0;i<count;i++){
+                final long recid = recids[i];
+                final Object value = values[i];
+                committed.put(recid, value);
+                //value is removed only if it was not modified in meantime,
+                //otherwise it stays there and is committed next time
+                dirty.remove(recid, value);
+                newRecids.remove(recid);
+            }
+
+            final long seq = appendedSeq+1;
+            committedTxs.add(new CommittedTx(seq, recids, values, count));
+            appendedSeq = seq;
+
+            if(logSize>LOG_CHECKPOINT_SIZE)
+                checkpoint();
+
+            return seq;
+        }catch(IOException e){
+            throw new IOError(e);
+        }
+    }
+
+    /**
+     * Waits until transaction with given sequence number is durable and applied into store.
+     * If other thread is forcing log to disk, it waits for it to finish, and possibly returns without forcing log.
+     */
+    protected void commitSync(final long seq){
+        if(syncedSeq>=seq) return;
+        synchronized (syncLock){
+            if(syncedSeq>=seq) return; //some other thread already synced our commit
+            try{
+                if(syncInterval>0 && logChannel!=null){
+                    //give other committers chance to append their transactions, so they are synced together
+                    Thread.sleep(syncInterval);
+                }
+                final long target = appendedSeq;
+                if(logChannel!=null)
+                    logChannel.force(false);
+                //store is modified only after log is durable, so it never contains transaction which could be lost
+                applyCommitted(target);
+                syncedSeq = target;
+            }catch(IOException e){
+                throw new IOError(e);
+            }catch (InterruptedException e){
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Applies transactions up to given sequence number into store, in order they were appended into log.
+     * Caller must hold syncLock and log must be durable.
+     */
+    protected void applyCommitted(final long target){
+        for(CommittedTx tx = committedTxs.peek(); tx!=null && tx.seq<=target; tx = committedTxs.peek()){
+            for(int i=0;i<tx.count;i++){
+                final long recid = tx.recids[i];
+                final Object value = tx.values[i];
+                if(value == DELETED){
+                    super.recordDelete(recid);
+                }else{
+                    super.forceRecordUpdateOnGivenRecid(recid, (byte[]) value);
+                }
+                //newer committed value stays, until its transaction is applied
+                committed.remove(recid, value);
+            }
+            committedTxs.poll();
+        }
+    }
+
+    /**
+     * Forces store to disk and truncates log, as all committed changes are now in store.
+     * Caller must hold commitLock (or be in constructor).
+     */
+    protected void checkpoint() throws IOException {
+        synchronized (syncLock){
+            //transactions which wait for log sync are applied first, log is truncated bellow
+            if(logChannel!=null)
+                logChannel.force(false);
+            applyCommitted(appendedSeq);
+            try{
+                writeLock_lock();
+                forceBuffers();
+            }finally {
+                writeLock_unlock();
+            }
+            if(logChannel!=null){
+                logChannel.truncate(8);
+                final ByteBuffer header = ByteBuffer.allocate(8);
+                header.putLong(0, HEADER);
+                logChannel.write(header, 0);
+                logChannel.force(false);
+                logSize = 8;
+            }
+            syncedSeq = appendedSeq;
+        }
+    }
+
+    /**
+     * Uncommitted changes are kept in memory, so snapshot contains only committed changes.
+     * It is not taken while commit is applied into store.
+     */
+    @Override
+    public RecordManager snapshot() {
+        synchronized (syncLock){
+            return super.snapshot();
+        }
+    }
+
+    /**
+     * Final pass of backup does not run while commit is applied into store,
+     * so copy contains only committed transactions and does not need log.
+     */
+    @Override
+    protected void backupFinalPass(Backup backup) throws IOException {
+        synchronized (syncLock){
+            super.backupFinalPass(backup);
+        }
+    }
+
+    /**
+     * Compaction is not logged, so store is forced to disk when it finishes.
+     */
+    @Override
+    public void compact(long stepTime, long pauseTime) {
+        super.compact(stepTime, pauseTime);
+        synchronized (commitLock){
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }
+    }
+
+    /**
+     * Closes store. Changes which were not committed are discarded.
+     */
+    @Override
+    public void close() {
+        synchronized (commitLock){
+            dirty.clear();
+            try{
+                writeLock_lock();
+                //release recids allocated by uncommitted transaction
+                final LongMap.LongMapIterator<Object> iter = newRecids.longMapIterator();
+                while(iter.moveToNext()){
+                    freeRecidPut(iter.key());
+                }
+                newRecids.clear();
+            }finally {
+                writeLock_unlock();
+            }
+            try{
+                checkpoint();
+                if(logChannel!=null)
+                    logChannel.close();
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+            super.close();
+        }
+    }
+}
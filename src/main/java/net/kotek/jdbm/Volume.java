@@ -0,0 +1,1019 @@
+package net.kotek.jdbm;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Storage space used by {@link RecordStore}, it hides whether data are in memory mapped file,
+ * accessed by positional file reads and writes, or kept in memory.
+ * <p/>
+ * Volume is divided into chunks of {@link #chunkSize}. Store never places single record across chunk boundary,
+ * so buffer based implementations can give direct access to record data.
+ * <p/>
+ * Volume does not lock. Methods which change its size must be called under store write lock,
+ * reads and writes may be called concurrently.
+ *
+ * @author Jan Kotek
+ */
+public abstract class Volume {
+
+    /** Creates volumes for data and index of single store */
+    public interface Factory{
+        Volume createDataVolume();
+        Volume createIndexVolume();
+    }
+
+    /** size of chunk, records never cross chunk boundary */
+    protected final int chunkSize;
+
+    /** granularity of dirty tracking, sync forces only regions which were modified */
+    static final int SYNC_REGION_SIZE = 1<<20;
+
+    /** granularity of modification tracking used by hot backup, modified pages are copied again */
+    static final int BACKUP_PAGE_SIZE = 1<<12;
+
+    /** number of pages in single segment of {@link #backupPages}, each page has one bit */
+    static final int BACKUP_PAGES_PER_SEGMENT = 1<<16;
+
+    /**
+     * Modified bit for each {@link #BACKUP_PAGE_SIZE} page, null if hot backup is not running.
+     * Array only grows and segments are never replaced, so writer which uses outdated array still marks the same bits.
+     */
+    protected volatile AtomicLongArray[] backupPages;
+
+    /**
+     * If true, buffers superseded by remap or dropped by truncation are released (unmapped or freed) immediately.
+     * Otherwise they are left for GC, as lockless readers may still use them.
+     */
+    protected volatile boolean releaseBuffers = true;
+
+    protected Volume(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /** @see #releaseBuffers */
+    public void setReleaseBuffers(boolean releaseBuffers) {
+        this.releaseBuffers = releaseBuffers;
+    }
+
+    /** makes sure volume can hold data up to given offset (exclusive), volume may grow */
+    abstract public void ensureAvailable(long offset);
+
+    /** shrinks volume, data after given size are discarded */
+    abstract public void truncate(long size);
+
+    abstract public void putLong(long offset, long value);
+
+    abstract public void putByte(long offset, byte value);
+
+    abstract public void putData(long offset, byte[] src, int srcPos, int srcSize);
+
+    abstract public long getLong(long offset);
+
+    abstract public byte getByte(long offset);
+
+    abstract public void getData(long offset, byte[] dst, int dstPos, int size);
+
+    /** @return DataInput positioned at given offset, at least size bytes can be read from it */
+    abstract public DataInput2 getDataInput(long offset, int size);
+
+    /** @return true if volume has no data, so new store should be created */
+    abstract public boolean isEmpty();
+
+    /**
+     * Forces data to disk, if volume is backed by file.
+     * Regions which were not modified since previous sync are skipped.
+     */
+    abstract public void sync();
+
+    /**
+     * Writes part of volume into channel, used by hot backup.
+     * Concurrent writers are not blocked, so data may be torn if region is modified meanwhile.
+     */
+    abstract public void transferTo(long offset, long size, WritableByteChannel out) throws IOException;
+
+    /** starts tracking of pages modified while hot backup runs */
+    public synchronized void backupStart(){
+        backupPages = new AtomicLongArray[0];
+    }
+
+    /** stops tracking of modified pages */
+    public synchronized void backupStop(){
+        backupPages = null;
+    }
+
+    /** marks pages as modified for hot backup, must be called after data were written */
+    protected final void backupMark(final long offset, final int size){
+        AtomicLongArray[] pages = backupPages;
+        if(pages==null) return;
+        final long last = (offset+Math.max(size,1)-1)/BACKUP_PAGE_SIZE;
+        for(long page=offset/BACKUP_PAGE_SIZE;page<=last;page++){
+            final int segment = (int) (page/BACKUP_PAGES_PER_SEGMENT);
+            if(segment>=pages.length)
+                pages = backupGrow(segment);
+            final AtomicLongArray d = pages[segment];
+            final int pos = (int) (page%BACKUP_PAGES_PER_SEGMENT);
+            final long bit = 1L<<(pos&63);
+            for(;;){
+                //plain read first, so clean cache line is not invalidated on every write
+                final long word = d.get(pos>>>6);
+                if((word&bit)!=0 || d.compareAndSet(pos>>>6, word, word|bit)) break;
+            }
+        }
+    }
+
+    private synchronized AtomicLongArray[] backupGrow(final int segment){
+        //tracking may be stopped meanwhile, bit is then thrown away
+        final AtomicLongArray[] pages = backupPages!=null? backupPages : new AtomicLongArray[0];
+        if(segment<pages.length) return pages;
+        final AtomicLongArray[] ret = Arrays.copyOf(pages, segment+1);
+        for(int i=pages.length;i<ret.length;i++)
+            ret[i] = new AtomicLongArray(BACKUP_PAGES_PER_SEGMENT/64);
+        if(backupPages!=null) backupPages = ret;
+        return ret;
+    }
+
+    /** @return number of pages modified since tracking started, or since they were taken last time */
+    public int backupModifiedCount(){
+        int ret = 0;
+        for(AtomicLongArray d:backupPages){
+            for(int i=0;i<d.length();i++)
+                ret+=Long.bitCount(d.get(i));
+        }
+        return ret;
+    }
+
+    /**
+     * Returns numbers of pages modified since tracking started, or since they were taken last time, in ascending order.
+     * Bits are cleared before pages are copied, so concurrent modification is caught by next call.
+     */
+    public long[] backupTakeModified(){
+        final AtomicLongArray[] pages = backupPages;
+        long[] ret = new long[16];
+        int count = 0;
+        for(int segment=0;segment<pages.length;segment++){
+            final AtomicLongArray d = pages[segment];
+            for(int i=0;i<d.length();i++){
+                long word = d.get(i);
+                if(word==0) continue;
+                word = d.getAndSet(i, 0);
+                while(word!=0){
+                    if(count==ret.length) ret = Arrays.copyOf(ret, count*2);
+                    ret[count++] = ((long)segment)*BACKUP_PAGES_PER_SEGMENT + i*64 + Long.numberOfTrailingZeros(word);
+                    word &= word-1;
+                }
+            }
+        }
+        return Arrays.copyOf(ret, count);
+    }
+
+    /** transfers file region into channel, without copying it through Java heap where OS supports it */
+    static void transferFully(FileChannel fileChannel, long offset, long size, WritableByteChannel out) throws IOException {
+        while(size>0){
+            final long n = fileChannel.transferTo(offset, size, out);
+            if(n<=0 && offset>=fileChannel.size())
+                throw new EOFException("Region is beyond end of file");
+            offset+=n;
+            size-=n;
+        }
+    }
+
+    /** @return true if volume can not be modified */
+    public boolean isReadOnly(){
+        return false;
+    }
+
+    /**
+     * Closes volume, it can not be used anymore.
+     * @param release if true memory is released immediately, otherwise it is left for GC as lockless readers may still use it
+     */
+    abstract public void close(boolean release);
+
+
+    /**
+     * @param fileName file to store data in, null for in-memory store
+     * @param mmapFile if true file is memory mapped, otherwise positional reads and writes are used
+     * @param directMemory if true in-memory store keeps data outside of Java heap
+     */
+    public static Factory factory(final String fileName, final boolean mmapFile, final boolean directMemory){
+        return fileName==null?
+                memoryFactory(directMemory):
+                fileFactory(fileName, mmapFile);
+    }
+
+    /**
+     * Store data in two files, <code>fileName.d</code> and <code>fileName.i</code>
+     * @param mmapFile if true file is memory mapped, otherwise positional reads and writes are used
+     */
+    public static Factory fileFactory(final String fileName, final boolean mmapFile){
+        return fileFactory(fileName, mmapFile, 0, RecordStore.BUF_GROWTH, false, false);
+    }
+
+    /**
+     * Store data in two files, <code>fileName.d</code> and <code>fileName.i</code>
+     * @param mmapFile if true file is memory mapped, otherwise positional reads and writes are used
+     * @param initialSize size of new data file
+     * @param sizeIncrement file grows at least by this size
+     * @param geometricGrowth if true file size (or mapped chunk size) is at least doubled when it grows
+     * @param preallocate if true disk space is allocated by writing zeros when file grows
+     */
+    public static Factory fileFactory(final String fileName, final boolean mmapFile, final long initialSize,
+                                      final int sizeIncrement, final boolean geometricGrowth, final boolean preallocate){
+        if(sizeIncrement<=0) throw new IllegalArgumentException("sizeIncrement must be positive");
+        return new Factory() {
+            @Override public Volume createDataVolume() {
+                return createFileVolume(new File(fileName+".d"), initialSize);
+            }
+
+            @Override public Volume createIndexVolume() {
+                return createFileVolume(new File(fileName+".i"), 0);
+            }
+
+            Volume createFileVolume(File file, long initialSize){
+                return mmapFile?
+                        new MappedFileVol(file, initialSize, sizeIncrement, geometricGrowth, preallocate):
+                        new FileChannelVol(file, initialSize, sizeIncrement, geometricGrowth, preallocate);
+            }
+        };
+    }
+
+    /**
+     * Computes new size of growing file (or mapped chunk).
+     *
+     * @param currentSize current size
+     * @param requiredSize minimal new size
+     * @param sizeIncrement new size is rounded up to multiple of this
+     * @param geometricGrowth if true new size is at least double of current size
+     */
+    static long growSize(long currentSize, long requiredSize, int sizeIncrement, boolean geometricGrowth){
+        long newSize = Math.max(sizeIncrement, (requiredSize + sizeIncrement - 1) / sizeIncrement * sizeIncrement);
+        if(geometricGrowth)
+            newSize = Math.max(newSize, currentSize*2);
+        return newSize;
+    }
+
+    /** Allocates disk space by writing zeros from current end of file up to given size */
+    static void preallocate(FileChannel fileChannel, long size) throws IOException {
+        long pos = fileChannel.size();
+        if(pos>=size) return;
+        final ByteBuffer zeros = ByteBuffer.allocate(1<<16);
+        while(pos<size){
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), size-pos));
+            pos+=fileChannel.write(zeros, pos);
+        }
+    }
+
+    /**
+     * Opens existing store in files <code>fileName.d</code> and <code>fileName.i</code> for reading only.
+     * Files are opened in read-only mode and mapped as READ_ONLY, so they can be shared by many processes.
+     *
+     * @param mmapFile if true file is memory mapped, otherwise positional reads are used
+     */
+    public static Factory readOnlyFileFactory(final String fileName, final boolean mmapFile){
+        return new Factory() {
+            @Override public Volume createDataVolume() {
+                return createFileVolume(new File(fileName+".d"));
+            }
+
+            @Override public Volume createIndexVolume() {
+                return createFileVolume(new File(fileName+".i"));
+            }
+
+            Volume createFileVolume(File file){
+                return mmapFile?
+                        new MappedFileVol(file, 0, RecordStore.BUF_GROWTH, false, false, true):
+                        new FileChannelVol(file, 0, RecordStore.BUF_GROWTH, false, false, true);
+            }
+        };
+    }
+
+    /** @param directMemory if true data are kept outside of Java heap */
+    public static Factory memoryFactory(final boolean directMemory){
+        return new Factory() {
+            @Override public Volume createDataVolume() {
+                return new MemoryVol(directMemory);
+            }
+
+            @Override public Volume createIndexVolume() {
+                return new MemoryVol(directMemory);
+            }
+        };
+    }
+
+
+    /**
+     * Volume which keeps data in array of ByteBuffers, one for each chunk.
+     */
+    abstract public static class ByteBufferVol extends Volume{
+
+        /**
+         * Buffers of chunks, null if chunk was not allocated (or mapped) yet.
+         * Array is only replaced under store write lock, but slots may be filled lazily by concurrent readers.
+         */
+        protected volatile AtomicReferenceArray<ByteBuffer> buffers = new AtomicReferenceArray<ByteBuffer>(8);
+
+        /**
+         * Dirty flag for each {@link #SYNC_REGION_SIZE} region of each chunk, null if volume does not track modifications.
+         * Flags of chunk are never replaced, so writer which uses outdated array still marks the same flags.
+         */
+        protected volatile AtomicIntegerArray[] dirtyRegions;
+
+        protected ByteBufferVol(int chunkSize) {
+            super(chunkSize);
+        }
+
+        /** starts tracking of modified regions, it is used for incremental sync */
+        protected final void trackDirtyRegions(){
+            dirtyRegions = growDirtyRegions(new AtomicIntegerArray[0], buffers.length());
+        }
+
+        protected final AtomicIntegerArray[] growDirtyRegions(final AtomicIntegerArray[] old, final int chunks){
+            final AtomicIntegerArray[] ret = new AtomicIntegerArray[chunks];
+            System.arraycopy(old, 0, ret, 0, old.length);
+            for(int i=old.length;i<chunks;i++)
+                ret[i] = new AtomicIntegerArray((chunkSize+SYNC_REGION_SIZE-1)/SYNC_REGION_SIZE);
+            return ret;
+        }
+
+        /** marks regions as modified, must be called after data were written */
+        protected final void markDirty(final long offset, final int size){
+            backupMark(offset, size);
+            final AtomicIntegerArray[] dirtyRegions = this.dirtyRegions;
+            if(dirtyRegions==null) return;
+            final AtomicIntegerArray d = dirtyRegions[(int) (offset/chunkSize)];
+            final int pos = (int) (offset%chunkSize);
+            final int last = (pos+Math.max(size,1)-1)/SYNC_REGION_SIZE;
+            for(int r=pos/SYNC_REGION_SIZE;r<=last;r++){
+                //plain read first, so clean cache line is not invalidated on every write
+                if(d.get(r)==0) d.set(r,1);
+            }
+        }
+
+        /**
+         * Creates buffer for chunk. Old content must be preserved.
+         *
+         * @param slot chunk number
+         * @param oldBuffer current buffer of chunk, null if chunk was not allocated yet
+         * @param requiredCapacity new buffer must have at least this capacity
+         */
+        abstract protected ByteBuffer makeNewBuffer(int slot, ByteBuffer oldBuffer, int requiredCapacity) throws IOException;
+
+        /**
+         * Unmaps or frees buffer which is no longer used by volume. Heap buffers are left for GC.
+         * If JVM does not allow explicit release, buffer is also left for GC.
+         *
+         * @return true if buffer was released
+         */
+        protected boolean releaseBuffer(ByteBuffer b){
+            return b!=null && releaseBuffers && JdbmUtil.freeDirectBuffer(b);
+        }
+
+        /** replaces buffer of chunk and releases the old one */
+        protected final void replaceBuffer(int slot, ByteBuffer newBuffer){
+            final ByteBuffer old = buffers.getAndSet(slot, newBuffer);
+            if(old!=newBuffer)
+                releaseBuffer(old);
+        }
+
+        /**
+         * Called when slot has no buffer. Volume may create buffer for existing chunk on first access,
+         * it must be placed into slot by compare-and-set, as multiple threads may race for it.
+         *
+         * @return buffer of existing chunk, or null if chunk does not exist
+         */
+        protected ByteBuffer lazyBuffer(AtomicReferenceArray<ByteBuffer> buffers, int slot){
+            return null;
+        }
+
+        /** @return true if chunk exists and has at least given capacity, its buffer may not be created yet */
+        protected boolean chunkAvailable(int slot, int capacity){
+            final ByteBuffer b = slotBuffer(slot);
+            return b!=null && b.capacity()>=capacity;
+        }
+
+        /** @return buffer of chunk, or null if chunk does not exist */
+        protected final ByteBuffer slotBuffer(int slot){
+            final AtomicReferenceArray<ByteBuffer> buffers = this.buffers;
+            if(slot>=buffers.length()) return null;
+            final ByteBuffer b = buffers.get(slot);
+            return b!=null? b : lazyBuffer(buffers, slot);
+        }
+
+        @Override
+        public void ensureAvailable(final long offset) {
+            final int slot = (int) ((offset-1) / chunkSize);
+            final int required = (int) (offset - ((long)slot)*chunkSize);
+            if(chunkAvailable(slot, required))
+                return;
+            try{
+                if(slot>=buffers.length()){
+                    final AtomicReferenceArray<ByteBuffer> old = buffers;
+                    final AtomicReferenceArray<ByteBuffer> buffers2 =
+                            new AtomicReferenceArray<ByteBuffer>(Math.max(slot+1, old.length()*2));
+                    for(int i=0;i<old.length();i++){
+                        buffers2.set(i, old.get(i));
+                    }
+                    if(dirtyRegions!=null)
+                        dirtyRegions = growDirtyRegions(dirtyRegions, buffers2.length());
+                    buffers = buffers2;
+                }
+                //chunks bellow are fully used
+                for(int i=0;i<slot;i++){
+                    if(!chunkAvailable(i, chunkSize))
+                        replaceBuffer(i, makeNewBuffer(i, slotBuffer(i), chunkSize));
+                }
+                replaceBuffer(slot, makeNewBuffer(slot, slotBuffer(slot), required));
+                if(CC.ASSERT && buffers.get(slot).capacity()>chunkSize) throw new InternalError();
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+
+        /** drops and releases buffers of chunks after given size */
+        protected void truncateSlots(long size){
+            final int lastSlot = (int) (size/chunkSize);
+            for(int i=lastSlot+1;i<buffers.length();i++){
+                replaceBuffer(i, null);
+            }
+        }
+
+        protected final ByteBuffer buffer(long offset){
+            final int slot = (int) (offset / chunkSize);
+            final ByteBuffer b = buffers.get(slot);
+            return b!=null? b : slotBuffer(slot);
+        }
+
+        @Override
+        public final void putLong(final long offset, final long value) {
+            buffer(offset).putLong((int) (offset%chunkSize), value);
+            markDirty(offset, 8);
+        }
+
+        @Override
+        public final void putByte(final long offset, final byte value) {
+            buffer(offset).put((int) (offset%chunkSize), value);
+            markDirty(offset, 1);
+        }
+
+        @Override
+        public final void putData(final long offset, final byte[] src, final int srcPos, final int srcSize) {
+            //duplicate, so concurrent writers do not share position
+            final ByteBuffer b = buffer(offset).duplicate();
+            b.position((int) (offset%chunkSize));
+            b.put(src, srcPos, srcSize);
+            markDirty(offset, srcSize);
+        }
+
+        @Override
+        public final long getLong(final long offset) {
+            return buffer(offset).getLong((int) (offset%chunkSize));
+        }
+
+        @Override
+        public final byte getByte(final long offset) {
+            return buffer(offset).get((int) (offset%chunkSize));
+        }
+
+        @Override
+        public final void getData(final long offset, final byte[] dst, final int dstPos, final int size) {
+            final ByteBuffer b = buffer(offset).duplicate();
+            b.position((int) (offset%chunkSize));
+            b.get(dst, dstPos, size);
+        }
+
+        @Override
+        public final DataInput2 getDataInput(final long offset, final int size) {
+            //data are read directly from buffer without copying
+            return new DataInput2(buffer(offset), (int) (offset%chunkSize));
+        }
+
+        @Override
+        public void transferTo(long offset, long size, WritableByteChannel out) throws IOException {
+            while(size>0){
+                //buffers are written directly, region never crosses chunk boundary
+                final int pos = (int) (offset%chunkSize);
+                final int len = (int) Math.min(size, chunkSize-pos);
+                final ByteBuffer b = buffer(offset).duplicate();
+                b.limit(pos+len);
+                b.position(pos);
+                while(b.remaining()>0)
+                    out.write(b);
+                offset+=len;
+                size-=len;
+            }
+        }
+
+        @Override
+        public void close(boolean release) {
+            final AtomicReferenceArray<ByteBuffer> buffers = this.buffers;
+            this.buffers = null;
+            if(release){
+                //release memory and address space now, rather than waiting for GC
+                for(int i=0;i<buffers.length();i++){
+                    final ByteBuffer b = buffers.get(i);
+                    if(b!=null) JdbmUtil.freeDirectBuffer(b);
+                }
+            }
+        }
+    }
+
+    /**
+     * Memory mapped file. Chunks are 1GB, each chunk is mapped separately
+     * and remapped as file grows. By default it grows in {@link RecordStore#BUF_GROWTH} steps.
+     * Superseded mappings are unmapped when chunk is remapped, truncated or volume is closed,
+     * so address space and file handles are not held until GC.
+     * <p/>
+     * Chunks of existing file are mapped lazily on first access, so opening large file is fast
+     * and does not reserve address space for chunks which are never used.
+     */
+    public static class MappedFileVol extends ByteBufferVol{
+
+        protected final File file;
+        protected final FileChannel fileChannel;
+
+        protected final long initialSize;
+        protected final int sizeIncrement;
+        protected final boolean geometricGrowth;
+        protected final boolean preallocate;
+        protected final boolean readOnly;
+        protected final FileChannel.MapMode mapMode;
+
+        /** chunks bellow this offset exist in file, and are mapped on first access if slot is empty */
+        protected volatile long lazySize;
+
+        /** true if file size changed since last sync */
+        protected volatile boolean resized = false;
+
+        public MappedFileVol(File file) {
+            this(file, 0, RecordStore.BUF_GROWTH, false, false);
+        }
+
+        /**
+         * @param initialSize size of new file
+         * @param sizeIncrement mapped chunk grows at least by this size
+         * @param geometricGrowth if true mapped chunk size is at least doubled when it grows
+         * @param preallocate if true disk space is allocated by writing zeros when file grows
+         */
+        public MappedFileVol(File file, long initialSize, int sizeIncrement, boolean geometricGrowth, boolean preallocate) {
+            this(file, initialSize, sizeIncrement, geometricGrowth, preallocate, false);
+        }
+
+        /**
+         * @param initialSize size of new file
+         * @param sizeIncrement mapped chunk grows at least by this size
+         * @param geometricGrowth if true mapped chunk size is at least doubled when it grows
+         * @param preallocate if true disk space is allocated by writing zeros when file grows
+         * @param readOnly if true file is opened for reading and mapped READ_ONLY, it must already exist
+         */
+        public MappedFileVol(File file, long initialSize, int sizeIncrement, boolean geometricGrowth, boolean preallocate,
+                             boolean readOnly) {
+            super(RecordStore.BUF_SIZE);
+            this.file = file;
+            this.initialSize = initialSize;
+            this.sizeIncrement = sizeIncrement;
+            this.geometricGrowth = geometricGrowth;
+            this.preallocate = preallocate;
+            this.readOnly = readOnly;
+            this.mapMode = readOnly? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+            try{
+                fileChannel = new RandomAccessFile(file, readOnly? "r" : "rw").getChannel();
+                lazySize = fileChannel.size();
+                //existing chunks are mapped lazily, just make room for them
+                final int chunks = (int) ((lazySize+chunkSize-1)/chunkSize);
+                buffers = new AtomicReferenceArray<ByteBuffer>(Math.max(chunks, buffers.length()));
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+            if(!readOnly)
+                trackDirtyRegions();
+        }
+
+        @Override
+        public void ensureAvailable(long offset) {
+            //new file is created with initial size
+            super.ensureAvailable(isEmpty()? Math.max(offset, initialSize) : offset);
+        }
+
+        @Override
+        protected boolean chunkAvailable(int slot, int capacity) {
+            //do not map chunk just to find its size
+            if(slot<buffers.length() && buffers.get(slot)==null)
+                return ((long)slot)*chunkSize + capacity <= lazySize;
+            return super.chunkAvailable(slot, capacity);
+        }
+
+        @Override
+        protected ByteBuffer lazyBuffer(AtomicReferenceArray<ByteBuffer> buffers, int slot) {
+            final long offset = ((long)slot)*chunkSize;
+            final long lazySize = this.lazySize;
+            if(offset>=lazySize) return null;
+            try{
+                final ByteBuffer b = fileChannel.map(mapMode, offset, Math.min(chunkSize, lazySize-offset));
+                if(buffers.compareAndSet(slot, null, b))
+                    return b;
+                //other thread mapped chunk first, nobody else has seen our mapping
+                JdbmUtil.freeDirectBuffer(b);
+                return buffers.get(slot);
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+
+        @Override
+        protected ByteBuffer makeNewBuffer(int slot, ByteBuffer oldBuffer, int requiredCapacity) throws IOException {
+            if(readOnly) throw new IOException("Volume is read-only, can not grow: "+file);
+            final long newCapacity = Math.min(chunkSize, growSize(oldBuffer==null? 0 : oldBuffer.capacity(),
+                    requiredCapacity, sizeIncrement, geometricGrowth));
+            final long offset = ((long)slot)*chunkSize;
+            if(preallocate)
+                preallocate(fileChannel, offset + newCapacity);
+            resized = true;
+            return fileChannel.map(FileChannel.MapMode.READ_WRITE, offset, newCapacity);
+        }
+
+        @Override
+        public void truncate(long size) {
+            if(readOnly) throw new IOError(new IOException("Volume is read-only, can not truncate: "+file));
+            final int lastSlot = (int) (size/chunkSize);
+            final ByteBuffer buf = slotBuffer(lastSlot);
+            truncateSlots(size);
+            if(buf == null) return;
+            final int used = (int) (size%chunkSize);
+            try{
+                final int newCapacity = (int) Math.min(chunkSize, growSize(0, used, sizeIncrement, false));
+                if(newCapacity<buf.capacity()){
+                    ((MappedByteBuffer)buf).force();
+                    replaceBuffer(lastSlot, fileChannel.map(FileChannel.MapMode.READ_WRITE,
+                            ((long)lastSlot)*chunkSize, newCapacity));
+                }
+                final long newFileSize = ((long)lastSlot)*chunkSize + buffers.get(lastSlot).capacity();
+                lazySize = Math.min(lazySize, newFileSize);
+                if(newFileSize<fileChannel.size()){
+                    fileChannel.truncate(newFileSize);
+                    resized = true;
+                }
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return lazySize==0 && buffers.get(0)==null;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+
+        /** mapped pages are shared with file cache, so file can be transferred by kernel */
+        @Override
+        public void transferTo(long offset, long size, WritableByteChannel out) throws IOException {
+            transferFully(fileChannel, offset, size, out);
+        }
+
+        /** {@code MappedByteBuffer.force(int, int)} available since Java 13, null on older JVM */
+        protected static final Method FORCE_RANGE = forceRangeMethod();
+
+        private static Method forceRangeMethod(){
+            try{
+                return MappedByteBuffer.class.getMethod("force", int.class, int.class);
+            }catch(Exception e){
+                return null;
+            }
+        }
+
+        @Override
+        public void sync() {
+            if(readOnly) return;
+            final AtomicReferenceArray<ByteBuffer> buffers = this.buffers;
+            final AtomicIntegerArray[] dirtyRegions = this.dirtyRegions;
+            boolean modified = false;
+            try{
+                for(int i=0;i<buffers.length() && i<dirtyRegions.length;i++){
+                    final ByteBuffer b = buffers.get(i);
+                    //chunks which were not mapped yet, were not modified
+                    if(b==null) continue;
+                    final AtomicIntegerArray d = dirtyRegions[i];
+                    boolean forceChunk = false;
+                    for(int r=0;r<d.length();r++){
+                        //clear flag before force, so concurrent modification is caught by next sync
+                        if(d.get(r)==0 || !d.compareAndSet(r, 1, 0)) continue;
+                        modified = true;
+                        final int start = r*SYNC_REGION_SIZE;
+                        final int length = Math.min(SYNC_REGION_SIZE, b.capacity()-start);
+                        if(length<=0) continue;
+                        if(FORCE_RANGE!=null)
+                            FORCE_RANGE.invoke(b, start, length);
+                        else
+                            forceChunk = true;
+                    }
+                    if(forceChunk)
+                        ((MappedByteBuffer)b).force();
+                }
+                //file metadata are also forced, as file may have grown
+                if(resized){
+                    resized = false;
+                    modified = true;
+                }
+                if(modified)
+                    fileChannel.force(true);
+            }catch(Exception e){
+                throw new IOError(e);
+            }
+        }
+
+        @Override
+        public void close(boolean release) {
+            super.close(release);
+            try{
+                fileChannel.close();
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+    }
+
+    /**
+     * In-memory volume. Heap buffers start small and are doubled as volume grows, with 1GB chunks.
+     * Direct buffers are allocated outside of Java heap in fixed chunks of {@link RecordStore#DIRECT_CHUNK_SIZE},
+     * so volume grows by adding new chunks and data are never copied.
+     */
+    public static class MemoryVol extends ByteBufferVol{
+
+        protected final boolean useDirectBuffer;
+
+        public MemoryVol(boolean useDirectBuffer) {
+            super(useDirectBuffer? RecordStore.DIRECT_CHUNK_SIZE : RecordStore.BUF_SIZE);
+            this.useDirectBuffer = useDirectBuffer;
+        }
+
+        @Override
+        protected ByteBuffer makeNewBuffer(int slot, ByteBuffer oldBuffer, int requiredCapacity) {
+            if(useDirectBuffer){
+                if(CC.ASSERT && oldBuffer!=null) throw new InternalError();
+                return ByteBuffer.allocateDirect(chunkSize);
+            }
+            int newCapacity = oldBuffer==null? 1<<16 : oldBuffer.capacity();
+            while(newCapacity<requiredCapacity) newCapacity*=2;
+            newCapacity = Math.min(chunkSize, newCapacity);
+            final ByteBuffer ret = ByteBuffer.allocate(newCapacity);
+            if(oldBuffer!=null){
+                final ByteBuffer src = oldBuffer.duplicate();
+                src.clear();
+                ret.put(src);
+            }
+            return ret;
+        }
+
+        @Override
+        public void truncate(long size) {
+            truncateSlots(size);
+            if(useDirectBuffer) return; //chunks have fixed size
+            final int lastSlot = (int) (size/chunkSize);
+            //size at chunk boundary may point just after last slot
+            if(lastSlot>=buffers.length()) return;
+            final ByteBuffer buf = buffers.get(lastSlot);
+            if(buf == null) return;
+            final int used = (int) (size%chunkSize);
+            if(used == 0){
+                replaceBuffer(lastSlot, null);
+                return;
+            }
+            int newCapacity = 1<<16;
+            while(newCapacity<used) newCapacity*=2;
+            if(newCapacity<buf.capacity()){
+                final ByteBuffer src = buf.duplicate();
+                src.position(0);
+                src.limit(newCapacity);
+                final ByteBuffer buf2 = ByteBuffer.allocate(newCapacity);
+                buf2.put(src);
+                replaceBuffer(lastSlot, buf2);
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return buffers.get(0)==null;
+        }
+
+        @Override
+        public void sync() {
+        }
+
+    }
+
+    /**
+     * Volume which uses positional reads and writes on FileChannel (pread/pwrite) instead of memory mapping.
+     * It does not consume address space and leaves caching on OS page cache.
+     * Chunks are 1GB, so file format is the same as with {@link MappedFileVol}.
+     * <p/>
+     * Note that FileChannel is closed, if thread is interrupted while it does IO.
+     */
+    public static class FileChannelVol extends Volume{
+
+        protected final File file;
+        protected final FileChannel fileChannel;
+        /** current file size, guarded by store write lock */
+        protected long size;
+        /** true if file was modified since last sync */
+        protected volatile boolean dirty = false;
+
+        protected final long initialSize;
+        protected final int sizeIncrement;
+        protected final boolean geometricGrowth;
+        protected final boolean preallocate;
+        protected final boolean readOnly;
+
+        public FileChannelVol(File file) {
+            this(file, 0, RecordStore.BUF_GROWTH, false, false);
+        }
+
+        /**
+         * @param initialSize size of new file
+         * @param sizeIncrement file grows at least by this size
+         * @param geometricGrowth if true file size is at least doubled when it grows
+         * @param preallocate if true disk space is allocated by writing zeros when file grows
+         */
+        public FileChannelVol(File file, long initialSize, int sizeIncrement, boolean geometricGrowth, boolean preallocate) {
+            this(file, initialSize, sizeIncrement, geometricGrowth, preallocate, false);
+        }
+
+        /**
+         * @param initialSize size of new file
+         * @param sizeIncrement file grows at least by this size
+         * @param geometricGrowth if true file size is at least doubled when it grows
+         * @param preallocate if true disk space is allocated by writing zeros when file grows
+         * @param readOnly if true file is opened for reading only, it must already exist
+         */
+        public FileChannelVol(File file, long initialSize, int sizeIncrement, boolean geometricGrowth, boolean preallocate,
+                              boolean readOnly) {
+            super(RecordStore.BUF_SIZE);
+            this.file = file;
+            this.initialSize = initialSize;
+            this.sizeIncrement = sizeIncrement;
+            this.geometricGrowth = geometricGrowth;
+            this.preallocate = preallocate;
+            this.readOnly = readOnly;
+            try{
+                fileChannel = new RandomAccessFile(file, readOnly? "r" : "rw").getChannel();
+                size = fileChannel.size();
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+
+        /** reads buffer from file, bytes after end of file are zero */
+        protected final void readFully(final ByteBuffer buf, final long offset){
+            try{
+                while(buf.remaining()>0){
+                    if(fileChannel.read(buf, offset+buf.position())<0)
+                        break;
+                }
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+
+        protected final void writeFully(final ByteBuffer buf, final long offset){
+            try{
+                while(buf.remaining()>0){
+                    fileChannel.write(buf, offset+buf.position());
+                }
+                if(!dirty) dirty = true;
+                backupMark(offset, buf.limit());
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+
+        @Override
+        public void ensureAvailable(long offset) {
+            if(offset<=size) return;
+            if(readOnly) throw new IOError(new IOException("Volume is read-only, can not grow: "+file));
+            //new file is created with initial size
+            if(size==0) offset = Math.max(offset, initialSize);
+            final long newSize = growSize(size, offset, sizeIncrement, geometricGrowth);
+            if(preallocate){
+                try{
+                    preallocate(fileChannel, newSize);
+                }catch(IOException e){
+                    throw new IOError(e);
+                }
+            }else{
+                //write last byte, so file is extended
+                writeFully(ByteBuffer.allocate(1), newSize-1);
+            }
+            size = newSize;
+            dirty = true;
+        }
+
+        @Override
+        public void truncate(long size) {
+            if(readOnly) throw new IOError(new IOException("Volume is read-only, can not truncate: "+file));
+            final long newSize = growSize(0, size, sizeIncrement, false);
+            if(newSize>=this.size) return;
+            try{
+                fileChannel.truncate(newSize);
+                this.size = newSize;
+                dirty = true;
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+
+        @Override
+        public void putLong(final long offset, final long value) {
+            final ByteBuffer b = ByteBuffer.allocate(8);
+            b.putLong(0, value);
+            writeFully(b, offset);
+        }
+
+        @Override
+        public void putByte(final long offset, final byte value) {
+            final ByteBuffer b = ByteBuffer.allocate(1);
+            b.put(0, value);
+            writeFully(b, offset);
+        }
+
+        @Override
+        public void putData(final long offset, final byte[] src, final int srcPos, final int srcSize) {
+            writeFully(ByteBuffer.wrap(src, srcPos, srcSize).slice(), offset);
+        }
+
+        @Override
+        public long getLong(final long offset) {
+            final ByteBuffer b = ByteBuffer.allocate(8);
+            readFully(b, offset);
+            return b.getLong(0);
+        }
+
+        @Override
+        public byte getByte(final long offset) {
+            final ByteBuffer b = ByteBuffer.allocate(1);
+            readFully(b, offset);
+            return b.get(0);
+        }
+
+        @Override
+        public void getData(final long offset, final byte[] dst, final int dstPos, final int size) {
+            readFully(ByteBuffer.wrap(dst, dstPos, size).slice(), offset);
+        }
+
+        @Override
+        public DataInput2 getDataInput(final long offset, final int size) {
+            final ByteBuffer b = ByteBuffer.allocate(size);
+            readFully(b, offset);
+            return new DataInput2(b, 0);
+        }
+
+        @Override
+        public void transferTo(long offset, long size, WritableByteChannel out) throws IOException {
+            transferFully(fileChannel, offset, size, out);
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size==0;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return readOnly;
+        }
+
+        @Override
+        public void sync() {
+            if(readOnly || !dirty) return;
+            dirty = false;
+            try{
+                fileChannel.force(true);
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+
+        @Override
+        public void close(boolean release) {
+            try{
+                fileChannel.close();
+            }catch(IOException e){
+                throw new IOError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package net.kotek.jdbm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class AllocationArenaTest extends JdbmTestCase{
+
+    @Override
+    protected RecordStore openRecordManager() {
+        return new RecordStore(fileName, true, 4);
+    }
+
+    @Test public void arena_take(){
+        AllocationArena a = new AllocationArena(10);
+        assertEquals(0, a.take(10));
+        a.regionOffset = 1000;
+        a.regionSize = 100;
+        assertEquals(10L<<48 | 1000, a.take(10));
+        assertEquals(90L<<48 | 1010, a.take(90));
+        assertEquals(0, a.take(1));
+        assertFalse(a.canAllocate(0));
+    }
+
+    @Test public void put_update_delete(){
+        final long recid = recman.recordPut("aaa", Serializer.BASIC_SERIALIZER);
+        assertEquals("aaa", recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+        recman.recordUpdate(recid, "bbbbbb", Serializer.BASIC_SERIALIZER);
+        assertEquals("bbbbbb", recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+        recman.recordUpdate(recid, "cccccc", Serializer.BASIC_SERIALIZER);
+        assertEquals("cccccc", recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+        //large record is written under write lock
+        final byte[] large = new byte[100000];
+        new Random().nextBytes(large);
+        recman.recordUpdate(recid, large, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertArrayEquals(large, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        recman.recordUpdate(recid, "ddd", Serializer.BASIC_SERIALIZER);
+        assertEquals("ddd", recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+        recman.recordDelete(recid);
+        assertNull(recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+
+        reopenStore();
+        assertNull(recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+    }
+
+    @Test public void inline_record(){
+        final long recid = recman.recordPut(11, Serializer.BASIC_SERIALIZER);
+        assertTrue(RecordStore.isInline(getIndexRecord(recid)));
+        assertEquals(11, recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+        recman.recordUpdate(recid, "aaaaaaaaaa", Serializer.BASIC_SERIALIZER);
+        assertFalse(RecordStore.isInline(getIndexRecord(recid)));
+        assertEquals("aaaaaaaaaa", recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+        recman.recordUpdate(recid, 12, Serializer.BASIC_SERIALIZER);
+        assertTrue(RecordStore.isInline(getIndexRecord(recid)));
+        assertEquals(12, recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+        recman.recordDelete(recid);
+        assertNull(recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+    }
+
+    @Test public void released_recids_reused_after_refill(){
+        final List<Long> recids = new ArrayList<Long>();
+        for(int i=0;i<RecordStore.ARENA_MAX_RELEASED;i++){
+            recids.add(recman.recordPut(1L, Serializer.LONG_SERIALIZER));
+        }
+        for(long recid:recids){
+            recman.recordDelete(recid);
+        }
+        //arena returned released recids into store, so they are reused
+        for(int i=0;i<RecordStore.ARENA_RECID_BATCH;i++){
+            assertTrue(recids.contains(recman.recordPut(1L, Serializer.LONG_SERIALIZER)));
+        }
+    }
+
+    @Test public void space_returned_on_close(){
+        final long physSize = getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+        final long recid = recman.recordPut(1L, Serializer.LONG_SERIALIZER);
+        assertTrue(getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE)>=physSize+RecordStore.ARENA_REGION_SIZE);
+        recman.recordDelete(recid);
+        reopenStore();
+        //unused region and released records were returned, only long stack page for free recids remains
+        assertTrue(getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE)<physSize+RecordStore.ARENA_REGION_SIZE);
+    }
+
+    @Test public void snapshot(){
+        final long recid1 = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        final long recid2 = recman.recordPut("bbb", Serializer.STRING_SERIALIZER);
+        final RecordManager snapshot = recman.snapshot();
+        recman.recordUpdate(recid1, "AAA", Serializer.STRING_SERIALIZER);
+        recman.recordDelete(recid2);
+        final long recid3 = recman.recordPut("ccc", Serializer.STRING_SERIALIZER);
+        assertEquals("aaa", snapshot.recordGet(recid1, Serializer.STRING_SERIALIZER));
+        assertEquals("bbb", snapshot.recordGet(recid2, Serializer.STRING_SERIALIZER));
+        assertNull(snapshot.recordGet(recid3, Serializer.STRING_SERIALIZER));
+        assertEquals("AAA", recman.recordGet(recid1, Serializer.STRING_SERIALIZER));
+        assertNull(recman.recordGet(recid2, Serializer.STRING_SERIALIZER));
+        snapshot.close();
+        assertEquals("ccc", recman.recordGet(recid3, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test public void concurrent_writers() throws InterruptedException {
+        final int threads = 8;
+        final int count = 10000;
+        final long[][] recids = new long[threads][count];
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t=0;t<threads;t++){
+            final int thread = t;
+            new Thread(){
+                @Override public void run() {
+                    try{
+                        final Random r = new Random(thread);
+                        for(int i=0;i<count;i++){
+                            recids[thread][i] = recman.recordPut(new byte[r.nextInt(100)], Serializer.BYTE_ARRAY_SERIALIZER);
+                        }
+                        for(int i=0;i<count;i++){
+                            final long recid = recids[thread][i];
+                            if(i%3==0){
+                                recman.recordDelete(recid);
+                            }else{
+                                recman.recordUpdate(recid, thread+"-"+i, Serializer.BASIC_SERIALIZER);
+                                if(!(thread+"-"+i).equals(recman.recordGet(recid, Serializer.BASIC_SERIALIZER)))
+                                    failed.set(true);
+                            }
+                        }
+                    }catch(Throwable e){
+                        e.printStackTrace();
+                        failed.set(true);
+                    }finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertFalse(failed.get());
+
+        reopenStore();
+        //deleted recids may be reused by other threads, so check only remaining records
+        final Set<Long> unique = new HashSet<Long>();
+        for(int t=0;t<threads;t++){
+            for(int i=0;i<count;i++){
+                if(i%3==0) continue;
+                assertTrue(unique.add(recids[t][i]));
+                assertEquals(t+"-"+i, recman.recordGet(recids[t][i], Serializer.BASIC_SERIALIZER));
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.kotek.jdbm;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Concurrent writers update independent records with async serialization.
+ * Measures how throughput scales with number of serializer threads.
+ *
+ * @author Jan Kotek
+ */
+public class AsyncSerializationBenchmark {
+
+    static final int WRITERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    static final int UPDATES_PER_WRITER = (int) 1e5;
+
+    public static void main(String[] args) throws InterruptedException {
+        //value which takes some time to serialize
+        final ArrayList<Object> value = new ArrayList<Object>();
+        for(int i=0;i<50;i++) value.add("value "+i);
+
+        //second round runs with warmed up JIT
+        for(int round=0;round<2;round++)
+        for(int threads = 1; threads<=Runtime.getRuntime().availableProcessors()*2; threads*=2){
+            final RecordStoreAsyncWrite store = new RecordStoreAsyncWrite(Volume.memoryFactory(false), true, true, false,
+                    RecordStoreAsyncWrite.DEFAULT_MAX_PENDING_WRITES, threads);
+            final CountDownLatch done = new CountDownLatch(WRITERS);
+            final long time = System.currentTimeMillis();
+            for(int t=0;t<WRITERS;t++){
+                new Thread(){
+                    @Override public void run() {
+                        final long[] recids = new long[1000];
+                        for(int i=0;i<recids.length;i++)
+                            recids[i] = store.recordPut(value, Serializer.BASIC_SERIALIZER);
+                        for(int i=0;i<UPDATES_PER_WRITER;i++)
+                            store.recordUpdate(recids[i%recids.length], value, Serializer.BASIC_SERIALIZER);
+                        done.countDown();
+                    }
+                }.start();
+            }
+            done.await();
+            while(store.getPendingWrites()>0) Thread.sleep(1);
+            final long time2 = System.currentTimeMillis() - time;
+            System.out.println("serializer threads: "+threads+", writers: "+WRITERS+
+                    ", updates/sec: "+(1000L*WRITERS*UPDATES_PER_WRITER/Math.max(1, time2)));
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams hot backup of file store into file, while writer thread keeps updating random records
+ * at {@link #UPDATES_PER_SECOND}. Prints backup time and longest time single update was blocked.
+ *
+ * @author Jan Kotek
+ */
+public class BackupBenchmark {
+
+    static final int RECORDS = (int) 1e6;
+    static final int UPDATES_PER_SECOND = 5000;
+
+    public static void main(String[] args) throws Exception {
+        final File f = File.createTempFile("jdbm","backup");
+        final RecordStore store = new RecordStore(f.getPath());
+        final long[] recids = new long[RECORDS];
+        final Random r = new Random(0);
+        for(int i=0;i<RECORDS;i+=1000){
+            final byte[][] values = new byte[1000][];
+            for(int j=0;j<values.length;j++)
+                values[j] = new byte[100+r.nextInt(400)];
+            System.arraycopy(store.recordPutBatch(values, Serializer.BYTE_ARRAY_SERIALIZER), 0, recids, i, 1000);
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong maxStall = new AtomicLong();
+        final AtomicLong updates = new AtomicLong();
+        final Thread writer = new Thread(){
+            @Override public void run() {
+                final Random r = new Random(1);
+                while(!stop.get()){
+                    final long time = System.nanoTime();
+                    store.recordUpdate(recids[r.nextInt(RECORDS)], new byte[100+r.nextInt(400)], Serializer.BYTE_ARRAY_SERIALIZER);
+                    maxStall.set(Math.max(maxStall.get(), System.nanoTime()-time));
+                    if(updates.incrementAndGet()%(UPDATES_PER_SECOND/1000)==0){
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        writer.start();
+        Thread.sleep(1000);
+        maxStall.set(0);
+        updates.set(0);
+
+        final File backupFile = File.createTempFile("jdbm","backup");
+        final FileChannel out = new FileOutputStream(backupFile).getChannel();
+        final long time = System.currentTimeMillis();
+        store.backup(out);
+        final long backupTime = System.currentTimeMillis()-time;
+        stop.set(true);
+        writer.join();
+        out.close();
+
+        System.out.println("Backup of "+(backupFile.length()>>20)+" MB took "+backupTime+" ms, "+
+                updates.get()+" updates meanwhile, longest update took "+(maxStall.get()/1000000)+" ms");
+        store.close();
+
+        new File(f.getPath()+".d").delete();
+        new File(f.getPath()+".i").delete();
+        f.delete();
+        backupFile.delete();
+    }
+}
@@ -0,0 +1,41 @@
+package net.kotek.jdbm;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures throughput of concurrent writers, with single write lock and with allocation arenas.
+ *
+ * @author Jan Kotek
+ */
+public class ConcurrentWriteBenchmark {
+
+    static final int THREADS = Runtime.getRuntime().availableProcessors();
+    static final int RECORDS_PER_THREAD = (int) 1e5;
+
+    public static void main(String[] args) throws InterruptedException {
+        for(int arenas: new int[]{0, THREADS}){
+            final RecordStore store = new RecordStore(null, true, arenas);
+            final CountDownLatch done = new CountDownLatch(THREADS);
+            long time = System.currentTimeMillis();
+            for(int t=0;t<THREADS;t++){
+                new Thread(){
+                    @Override public void run() {
+                        final byte[] data = new byte[100];
+                        final byte[] data2 = new byte[200];
+                        for(int i=0;i<RECORDS_PER_THREAD;i++){
+                            final long recid = store.recordPut(data, Serializer.BYTE_ARRAY_SERIALIZER);
+                            store.recordUpdate(recid, data2, Serializer.BYTE_ARRAY_SERIALIZER);
+                            if(i%2==0) store.recordDelete(recid);
+                        }
+                        done.countDown();
+                    }
+                }.start();
+            }
+            done.await();
+            time = System.currentTimeMillis()-time;
+            System.out.println("arenas: "+arenas+", threads: "+THREADS+
+                    ", ops/sec: "+(3L*THREADS*RECORDS_PER_THREAD*1000/Math.max(1,time)));
+            store.close();
+        }
+    }
+}
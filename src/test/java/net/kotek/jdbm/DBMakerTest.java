@@ -2,6 +2,8 @@ package net.kotek.jdbm;
 
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOError;
 import java.util.Map;
 
 import static org.junit.Assert.*;
@@ -31,9 +33,51 @@ public class DBMakerTest{
         //TODO test with file
     }
 
-    @Test(expected = IllegalAccessError.class)
-    public void testDisableTransactions() throws Exception {
-        DBMaker.newMemoryDB().make();
+    @Test
+    public void testTransactions() throws Exception {
+        DB db = DBMaker.newMemoryDB().make();
+        verifyDB(db);
+        db.commit();
+        assertTrue(db.recman.getClass() == RecordHardCache.class);
+        assertTrue(((RecordHardCache)db.recman).recman.getClass() == RecordStoreWAL.class);
+    }
+
+    @Test
+    public void testBatchThroughCache() throws Exception {
+        DB db = DBMaker.newMemoryDB().make();
+        final RecordHardCache cache = (RecordHardCache) db.recman;
+        final long[] recids = cache.recordPutBatch(new String[]{"aaa", "bbb"}, Serializer.STRING_SERIALIZER);
+        final long recid3 = cache.recman.recordPut("ccc", Serializer.STRING_SERIALIZER);
+        cache.cache.remove(recids[0]);
+        final String[] fetched = new String[3];
+        cache.recordGetBatch(new long[]{recids[0], recids[1], recid3}, fetched, Serializer.STRING_SERIALIZER);
+        assertArrayEquals(new String[]{"aaa", "bbb", "ccc"}, fetched);
+        assertEquals("ccc", cache.cache.get(recid3));
+    }
+
+    @Test
+    public void testFileSync() throws Exception {
+        final File f = File.createTempFile("jdbm","sync");
+        DB db = DBMaker.newFileDB(f.getPath()).transactionDisable().fileSyncInterval(10).make();
+        assertNotNull(db.syncExecutor);
+        verifyDB(db);
+        Thread.sleep(50);
+        db.sync();
+        db.close();
+
+        db = DBMaker.newFileDB(f.getPath()).transactionDisable().make();
+        assertNull(db.syncExecutor);
+        assertEquals(2, db.getHashMap("test").get(1));
+        db.sync();
+        db.close();
+        new File(f.getPath()+".d").delete();
+        new File(f.getPath()+".i").delete();
+        f.delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeFileSync() throws Exception {
+        DBMaker.newMemoryDB().fileSyncInterval(-1);
     }
 
     @Test
@@ -58,7 +102,114 @@ public class DBMakerTest{
         verifyDB(db);
         assertTrue(db.recman.getClass() == RecordHardCache.class);
         assertTrue(((RecordHardCache)db.recman).recman.getClass() == RecordStore.class);
+        assertNotNull(((RecordStore)((RecordHardCache)db.recman).recman).arenas);
+    }
+
+    @Test
+    public void testDisableConcurrentAllocation() throws Exception {
+        DB db = DBMaker
+                .newMemoryDB()
+                .transactionDisable()
+                .asyncWriteDisable()
+                .concurrentAllocationDisable()
+                .make();
+        verifyDB(db);
+        assertNull(((RecordStore)((RecordHardCache)db.recman).recman).arenas);
+    }
+
+    @Test
+    public void testOptimisticRead() throws Exception {
+        DB db = DBMaker
+                .newMemoryDB()
+                .transactionDisable()
+                .asyncWriteDisable()
+                .optimisticReadEnable()
+                .make();
+        verifyDB(db);
+        assertTrue(((RecordStore)((RecordHardCache)db.recman).recman).optimisticReads);
+    }
+
+    @Test
+    public void testDirectMemory() throws Exception {
+        DB db = DBMaker
+                .newDirectMemoryDB()
+                .make();
+        verifyDB(db);
+        final Volume vol = ((RecordStore) ((RecordHardCache) db.recman).recman).dataVol;
+        assertTrue(((Volume.MemoryVol) vol).useDirectBuffer);
+    }
+
+    @Test
+    public void testFileGrowth() throws Exception {
+        final File f = File.createTempFile("jdbm","test");
+        for(boolean mmap: new boolean[]{true, false}){
+            DBMaker m = DBMaker
+                    .newFileDB(f.getPath())
+                    .transactionDisable()
+                    .asyncWriteDisable()
+                    .fileInitialSize(32<<20)
+                    .fileSizeIncrement(1<<20)
+                    .fileGeometricGrowthEnable()
+                    .filePreallocateEnable();
+            if(!mmap) m = m.mmapFileDisable();
+            DB db = m.make();
+            verifyDB(db);
+            final Volume vol = ((RecordStore) ((RecordHardCache) db.recman).recman).dataVol;
+            assertEquals(mmap, vol instanceof Volume.MappedFileVol);
+            assertEquals(32<<20, new File(f.getPath()+".d").length());
+            db.close();
+            new File(f.getPath()+".d").delete();
+            new File(f.getPath()+".i").delete();
+        }
+        f.delete();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReadOnly() throws Exception {
+        final File f = File.createTempFile("jdbm","test");
+        DB db = DBMaker.newFileDB(f.getPath()).make();
+        db.getHashMap("test").put(1,2);
+        db.commit();
+        db.close();
+
+        for(boolean mmap: new boolean[]{true, false}){
+            DBMaker m = DBMaker.newFileDB(f.getPath()).readOnly();
+            if(!mmap) m = m.mmapFileDisable();
+            //two read-only instances can be opened at the same time
+            final DB db1 = m.make();
+            final DB db2 = m.make();
+            assertTrue(db1.recman.getClass() == RecordHardCache.class);
+            final RecordStore r = (RecordStore) ((RecordHardCache)db1.recman).recman;
+            assertTrue(r.getClass() == RecordStore.class);
+            assertTrue(r.readOnly);
+            assertNull(r.arenas);
+            assertNull(r.freeExtents);
+
+            final Map m1 = db1.getHashMap("test");
+            assertEquals(2, m1.get(1));
+            assertEquals(2, db2.getHashMap("test").get(1));
+            try{
+                m1.put(2,3);
+                fail();
+            }catch(UnsupportedOperationException e){
+                //expected
+            }
+            db1.close();
+            db2.close();
+        }
+
+        new File(f.getPath()+".d").delete();
+        new File(f.getPath()+".i").delete();
+        new File(f.getPath()+".t").delete();
+        f.delete();
+    }
 
+    @Test(expected = IOError.class)
+    public void testReadOnlyNotExist() throws Exception {
+        final File f = File.createTempFile("jdbm","test");
+        f.delete();
+        DBMaker.newFileDB(f.getPath()).readOnly().make();
     }
 
     @Test
@@ -1,5 +1,9 @@
 package net.kotek.jdbm;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
 import java.util.Map;
 import java.util.Set;
 
@@ -51,6 +55,56 @@ public class DBTest {
         assertEquals(m1, new DB(recman).getTreeSet("test"));
     }
 
+    @Test
+    public void testSnapshot() throws Exception {
+        Map m1 = db.getTreeMap("tree");
+        Map m2 = db.getHashMap("hash");
+        for(int i=0;i<1000;i++){
+            m1.put(i, "aa"+i);
+            m2.put(i, "aa"+i);
+        }
+        DB snapshot = db.snapshot();
+        for(int i=0;i<1000;i++){
+            m1.put(i, "bb"+i);
+            m2.remove(i);
+        }
+        m1.put(-1, "new");
+        Map s1 = snapshot.getTreeMap("tree");
+        Map s2 = snapshot.getHashMap("hash");
+        assertEquals(1000, s1.size());
+        assertEquals(1000, s2.size());
+        for(int i=0;i<1000;i++){
+            assertEquals("aa"+i, s1.get(i));
+            assertEquals("aa"+i, s2.get(i));
+        }
+        assertEquals(1001, m1.size());
+        assertTrue(m2.isEmpty());
+        snapshot.close();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotReadOnly() throws Exception {
+        db.getTreeMap("test").put(1, 2);
+        db.snapshot().getTreeMap("test").put(1, 3);
+    }
+
+    @Test
+    public void testBackup() throws Exception {
+        Map m1 = db.getTreeMap("test");
+        for(int i=0;i<1000;i++)
+            m1.put(i, "aa"+i);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        db.backup(out);
+        //in-memory store is restored into files
+        File f = File.createTempFile("jdbm","backup");
+        f.deleteOnExit();
+        RecordStore.restoreBackup(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())),
+                Volume.fileFactory(f.getPath(), true));
+        DB restored = new DB(new RecordStore(f.getPath()));
+        assertEquals(m1, restored.getTreeMap("test"));
+        restored.close();
+    }
+
     @Test(expected = IllegalAccessError.class)
     public void testClose() throws Exception {
         db.close();
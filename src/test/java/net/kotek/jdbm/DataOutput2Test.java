@@ -0,0 +1,78 @@
+package net.kotek.jdbm;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class DataOutput2Test {
+
+    @Test public void borrow_reuses_instance() throws IOException {
+        final DataOutput2 out = DataOutput2.borrow();
+        out.writeLong(1L);
+        //nested borrow must not get instance which is in use
+        final DataOutput2 nested = DataOutput2.borrow();
+        assertNotSame(out, nested);
+        DataOutput2.release(nested);
+        DataOutput2.release(out);
+
+        final DataOutput2 out2 = DataOutput2.borrow();
+        assertSame(out, out2);
+        assertEquals(0, out2.pos);
+        DataOutput2.release(out2);
+    }
+
+    @Test public void large_buffer_not_reused() throws IOException {
+        final DataOutput2 out = DataOutput2.borrow();
+        out.write(new byte[DataOutput2.MAX_REUSED_SIZE+1]);
+        DataOutput2.release(out);
+        assertNotSame(out, DataOutput2.borrow());
+    }
+
+    @Test public void grow() throws IOException {
+        final DataOutput2 out = new DataOutput2(1);
+        for(int i=0;i<1000;i++) out.writeInt(i);
+        final DataInput2 in = new DataInput2(ByteBuffer.wrap(out.copyBytes()), 0);
+        for(int i=0;i<1000;i++) assertEquals(i, in.readInt());
+    }
+
+    @Test public void read_fully_and_unsigned_short() throws IOException {
+        final byte[] b = new byte[]{1, 2, 3, (byte) 0xFF, (byte) 0xFE};
+        for(ByteBuffer buf: new ByteBuffer[]{ByteBuffer.wrap(b), ByteBuffer.allocateDirect(5).put(b), ByteBuffer.wrap(b).asReadOnlyBuffer()}){
+            final DataInput2 in = new DataInput2(buf, 1);
+            final byte[] b2 = new byte[2];
+            in.readFully(b2);
+            assertArrayEquals(new byte[]{2, 3}, b2);
+            assertEquals(0xFFFE, in.readUnsignedShort());
+            assertEquals(5, in.pos);
+        }
+    }
+
+    @Test public void read_fully_past_limit() throws IOException {
+        for(ByteBuffer buf: new ByteBuffer[]{ByteBuffer.allocate(5), ByteBuffer.allocateDirect(5)}){
+            final DataInput2 in = new DataInput2(buf, 3);
+            try{
+                in.readFully(new byte[3]);
+                fail();
+            }catch(EOFException e){
+                //expected
+            }
+            assertEquals(3, in.pos);
+        }
+    }
+
+    @Test public void batch_serialization_uses_pooled_buffer() throws IOException {
+        final RecordStore store = new RecordStore(null);
+        final DataOutput2 out = DataOutput2.borrow();
+        DataOutput2.release(out);
+        final long[] recids = store.recordPutBatch(new String[]{"aaa", "bbbb"}, Serializer.STRING_SERIALIZER);
+        store.recordUpdateBatch(recids, new String[]{"cc", "d"}, Serializer.STRING_SERIALIZER);
+        assertEquals("cc", store.recordGet(recids[0], Serializer.STRING_SERIALIZER));
+        assertEquals("d", store.recordGet(recids[1], Serializer.STRING_SERIALIZER));
+        assertSame(out, DataOutput2.borrow());
+        store.close();
+    }
+}
@@ -0,0 +1,109 @@
+package net.kotek.jdbm;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.*;
+
+public class DirectMemoryStoreTest extends JdbmTestCase{
+
+    @Override
+    protected RecordStore openRecordManager() {
+        return new RecordStore(Volume.memoryFactory(true), true, 0, false);
+    }
+
+    ByteBuffer[] dataBufs(){
+        return buffers(recman.dataVol);
+    }
+
+    ByteBuffer[] indexBufs(){
+        return buffers(recman.indexVol);
+    }
+
+    static ByteBuffer[] buffers(Volume vol){
+        final AtomicReferenceArray<ByteBuffer> b = ((Volume.ByteBufferVol)vol).buffers;
+        final ByteBuffer[] ret = new ByteBuffer[b.length()];
+        for(int i=0;i<ret.length;i++) ret[i] = b.get(i);
+        return ret;
+    }
+
+    @Test public void buffers_are_direct(){
+        assertTrue(recman.inMemory);
+        assertEquals(RecordStore.DIRECT_CHUNK_SIZE, recman.bufSize);
+        assertTrue(dataBufs()[0].isDirect());
+        assertTrue(indexBufs()[0].isDirect());
+        assertEquals(RecordStore.DIRECT_CHUNK_SIZE, dataBufs()[0].capacity());
+    }
+
+    @Test public void grow_into_many_chunks(){
+        final byte[] data = new byte[10000];
+        final long[] recids = new long[1000];
+        for(int i=0;i<recids.length;i++){
+            Arrays.fill(data, (byte) i);
+            recids[i] = recman.recordPut(data, Serializer.BYTE_ARRAY_SERIALIZER);
+        }
+        //10MB of data, so there must be multiple chunks
+        assertNotNull(dataBufs()[5]);
+        for(ByteBuffer b:dataBufs()){
+            if(b!=null) assertEquals(RecordStore.DIRECT_CHUNK_SIZE, b.capacity());
+        }
+
+        for(int i=0;i<recids.length;i++){
+            Arrays.fill(data, (byte) i);
+            assertArrayEquals(data, recman.recordGet(recids[i], Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+    }
+
+    @Test public void many_recids(){
+        //index also grows over multiple chunks
+        final int max = RecordStore.DIRECT_CHUNK_SIZE/8 * 2;
+        for(long i=0;i<max;i++){
+            final long recid = recman.recordPut(i, Serializer.BASIC_SERIALIZER);
+            assertEquals(i, recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+        }
+        assertNotNull(indexBufs()[2]);
+        assertTrue(indexBufs()[2].isDirect());
+    }
+
+    @Test public void large_record(){
+        final byte[] data = new byte[3*RecordStore.DIRECT_CHUNK_SIZE];
+        new Random().nextBytes(data);
+        final long recid = recman.recordPut(data, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertArrayEquals(data, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+
+        final byte[] data2 = new byte[100000];
+        new Random().nextBytes(data2);
+        recman.recordUpdate(recid, data2, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertArrayEquals(data2, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+    }
+
+    @Test public void compact(){
+        final byte[] data = new byte[10000];
+        final long[] recids = new long[1000];
+        for(int i=0;i<recids.length;i++){
+            Arrays.fill(data, (byte) i);
+            recids[i] = recman.recordPut(data, Serializer.BYTE_ARRAY_SERIALIZER);
+        }
+        for(int i=0;i<recids.length-10;i++){
+            recman.recordDelete(recids[i]);
+        }
+        recman.compact(1000,0);
+
+        //released chunks are dropped
+        assertNull(dataBufs()[2]);
+        for(int i=recids.length-10;i<recids.length;i++){
+            Arrays.fill(data, (byte) i);
+            assertArrayEquals(data, recman.recordGet(recids[i], Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+    }
+
+    @Test public void free_direct_buffer(){
+        assertTrue(JdbmUtil.freeDirectBuffer(ByteBuffer.allocateDirect(100)));
+        assertFalse(JdbmUtil.freeDirectBuffer(ByteBuffer.allocate(100)));
+    }
+
+}
@@ -0,0 +1,55 @@
+package net.kotek.jdbm;
+
+import java.util.Random;
+
+/**
+ * Ages store with random updates of random sizes and prints file size.
+ * Compares coalescing allocator with long stacks of free records.
+ *
+ * @author Jan Kotek
+ */
+public class FragmentationBenchmark {
+
+    static final int RECORDS = (int) 1e5;
+    static final int UPDATES = (int) 1e6;
+    static final int MAX_SIZE = 4000;
+
+    public static void main(String[] args){
+        for(boolean coalescing: new boolean[]{false,true}){
+            RecordStore store = new RecordStore(null, coalescing);
+            Random r = new Random(0);
+            long[] recids = new long[RECORDS];
+            long liveSize = 0;
+            int[] sizes = new int[RECORDS];
+            for(int i=0;i<RECORDS;i++){
+                sizes[i] = 1+r.nextInt(MAX_SIZE);
+                liveSize+=sizes[i];
+                recids[i] = store.recordPut(new byte[sizes[i]], Serializer.BYTE_ARRAY_SERIALIZER);
+            }
+
+            long time = System.currentTimeMillis();
+            for(int i=0;i<UPDATES;i++){
+                final int pos = r.nextInt(RECORDS);
+                final int size = 1+r.nextInt(MAX_SIZE);
+                liveSize+=size-sizes[pos];
+                sizes[pos] = size;
+                store.recordUpdate(recids[pos], new byte[size], Serializer.BYTE_ARRAY_SERIALIZER);
+                if(i%(UPDATES/10)==0){
+                    print(coalescing, i, liveSize, store);
+                }
+            }
+            print(coalescing, UPDATES, liveSize, store);
+            System.out.println("Time: "+(System.currentTimeMillis()-time)+" ms");
+            store.close();
+        }
+    }
+
+    static void print(boolean coalescing, int updates, long liveSize, RecordStore store){
+        final long fileSize = store.indexValGet(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+        System.out.println((coalescing?"coalescing":"long stacks")+
+                " - updates: "+updates+
+                ", file size: "+fileSize/1024+" KB"+
+                ", live data: "+liveSize/1024+" KB"+
+                ", overhead: "+(100*(fileSize-liveSize)/liveSize)+"%");
+    }
+}
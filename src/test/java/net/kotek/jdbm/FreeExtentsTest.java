@@ -0,0 +1,188 @@
+package net.kotek.jdbm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FreeExtentsTest extends JdbmTestCase{
+
+    @Override
+    protected RecordStore openRecordManager() {
+        return new RecordStore(fileName, true);
+    }
+
+    @Test public void merge_neighbours(){
+        FreeExtents e = new FreeExtents(1000);
+        e.free(100, 10);
+        e.free(120, 10);
+        assertEquals(2, e.extentCount());
+        e.free(110, 10);
+        assertEquals(1, e.extentCount());
+        assertEquals(30, e.freeSize);
+        assertEquals(100, e.take(30));
+        assertTrue(e.isEmpty());
+    }
+
+    @Test public void do_not_merge_over_segment_boundary(){
+        FreeExtents e = new FreeExtents(1000);
+        e.free(990, 10);
+        e.free(1000, 10);
+        assertEquals(2, e.extentCount());
+        assertEquals(0, e.take(20));
+    }
+
+    @Test public void best_fit(){
+        FreeExtents e = new FreeExtents(1000);
+        e.free(100, 50);
+        e.free(200, 20);
+        e.free(300, 30);
+        assertEquals(300, e.take(25));
+        //remaining space from split
+        assertEquals(325, e.take(5));
+        assertEquals(200, e.take(20));
+        assertEquals(0, e.take(51));
+    }
+
+    @Test public void trim_tail(){
+        FreeExtents e = new FreeExtents(1000);
+        e.free(100, 50);
+        e.free(150, 50);
+        assertEquals(100, e.trimTail(200));
+        assertTrue(e.isEmpty());
+        //never trim into previous segment
+        e.free(1000,100);
+        assertEquals(1100, e.trimTail(1100));
+    }
+
+    @Test public void take_bellow(){
+        FreeExtents e = new FreeExtents(1000);
+        e.free(100, 10);
+        e.free(300, 20);
+        e.free(700, 10);
+        assertEquals(0, e.takeBellow(10, 105));
+        assertEquals(100, e.takeBellow(10, 600));
+        //best fit is above limit, so larger extent is used
+        assertEquals(300, e.takeBellow(10, 600));
+        assertEquals(310, e.takeBellow(10, 1000));
+        assertEquals(700, e.takeBellow(10, 1000));
+    }
+
+    @Test public void take_first(){
+        FreeExtents e = new FreeExtents(1000);
+        e.free(100, 10);
+        e.free(300, 20);
+        e.free(700, 10);
+        assertEquals(0, e.takeFirst(20, 310));
+        assertEquals(300, e.takeFirst(20, 1000));
+        assertEquals(100, e.takeFirst(10, 1000));
+        assertEquals(700, e.takeFirst(10, 1000));
+    }
+
+    @Test public void trim_segments(){
+        FreeExtents e = new FreeExtents(1000);
+        e.free(900, 100);
+        e.free(1000, 1000);
+        e.free(2000, 500);
+        assertEquals(900, e.trimSegments(2500));
+        assertTrue(e.isEmpty());
+
+        //segment end is used
+        e.free(1000, 1000);
+        e.free(2000, 500);
+        assertEquals(1000, e.trimSegments(2500));
+    }
+
+    @Test public void store_compact_concurrent() throws InterruptedException {
+        final Random r = new Random(0);
+        final List<Long> recids = new ArrayList<Long>();
+        final List<Long> garbage = new ArrayList<Long>();
+        for(int i=0;i<10000;i++){
+            recids.add(recman.recordPut((long)i, Serializer.LONG_SERIALIZER));
+            garbage.add(recman.recordPut(new byte[1+r.nextInt(1000)], Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+        //leave holes between records
+        for(long recid:garbage){
+            recman.recordDelete(recid);
+        }
+        final long physSize = getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+
+        final boolean[] failed = new boolean[1];
+        final Thread compactor = new Thread(){
+            @Override public void run() {
+                try{
+                    recman.compact(1, 1);
+                }catch(Throwable e){
+                    e.printStackTrace();
+                    failed[0] = true;
+                }
+            }
+        };
+        compactor.start();
+        while(compactor.isAlive()){
+            final int i = r.nextInt(recids.size());
+            assertEquals(Long.valueOf(i), recman.recordGet(recids.get(i), Serializer.LONG_SERIALIZER));
+        }
+        assertFalse(failed[0]);
+        assertTrue(getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE) < physSize/2);
+
+        reopenStore();
+        for(int i=0;i<recids.size();i++){
+            assertEquals(Long.valueOf(i), recman.recordGet(recids.get(i), Serializer.LONG_SERIALIZER));
+        }
+    }
+
+    @Test public void store_reuses_merged_space(){
+        List<Long> recids = new ArrayList<Long>();
+        for(int i=0;i<100;i++){
+            recids.add(recman.recordPut(new byte[100], Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+        //marker, so freed space is not trimmed from end of file
+        recman.recordPut(1L, Serializer.LONG_SERIALIZER);
+        for(long recid:recids){
+            recman.recordDelete(recid);
+        }
+        //deleted recids are stored in long stack page, which may extend file
+        final long physSize = getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+        //bigger record fits into merged space
+        long recid = recman.recordPut(new byte[5000], Serializer.BYTE_ARRAY_SERIALIZER);
+        assertEquals(physSize, getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE));
+        assertEquals(5000, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER).length);
+    }
+
+    @Test public void store_trims_file_end(){
+        final long physSize = getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+        long recid = recman.recordPut(new byte[1000], Serializer.BYTE_ARRAY_SERIALIZER);
+        assertEquals(physSize+1000, getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE));
+        //new version is written before old one is released
+        recman.recordUpdate(recid, new byte[10], Serializer.BYTE_ARRAY_SERIALIZER);
+        assertEquals(physSize+1010, getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE));
+        //released space is reused, and free space at the end of file is trimmed
+        recman.recordUpdate(recid, new byte[20], Serializer.BYTE_ARRAY_SERIALIZER);
+        assertEquals(physSize+20, getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE));
+    }
+
+    @Test public void free_space_survives_reopen(){
+        Random r = new Random(0);
+        List<Long> recids = new ArrayList<Long>();
+        for(int i=0;i<1000;i++){
+            recids.add(recman.recordPut(new byte[r.nextInt(2000)], Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+        for(int i=0;i<recids.size();i+=2){
+            recman.recordDelete(recids.get(i));
+        }
+        final long freeSize = recman.freeExtents.freeSize;
+        assertTrue(freeSize>0);
+
+        reopenStore();
+        //free space was saved into long stacks and loaded again,
+        //some space may be used by long stack pages, which were released on load
+        assertTrue(recman.freeExtents.freeSize >= freeSize - 10*RecordStore.LONG_STACK_PAGE_SIZE);
+        for(int i=1;i<recids.size();i+=2){
+            assertNotNull(recman.recordGet(recids.get(i), Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+    }
+}
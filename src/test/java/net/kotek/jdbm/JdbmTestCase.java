@@ -51,6 +51,13 @@ abstract public class JdbmTestCase {
         recman = openRecordManager();
     }
 
+    /** simulates crash, volumes are closed and store is opened again without being closed */
+    void crashStore() {
+        recman.dataVol.close(false);
+        recman.indexVol.close(false);
+        recman = openRecordManager();
+    }
+
 
     DataInput2 swap(DataOutput2 d){
         byte[] b = d.copyBytes();
@@ -60,11 +67,12 @@ abstract public class JdbmTestCase {
 
     int countIndexRecords(){
         int ret = 0;
-        final long indexFileSize = recman.indexBufs[0].getLong(RecordStore.RECID_CURRENT_INDEX_FILE_SIZE*8);
+        final long indexFileSize = recman.indexValGet(RecordStore.RECID_CURRENT_INDEX_FILE_SIZE);
         for(int pos = RecordStore.INDEX_OFFSET_START * 8;
             pos<indexFileSize;
             pos+=8){
-            if(0!=recman.indexValGet(pos / 8)){
+            final long indexValue = recman.indexValGet(pos / 8);
+            if(0!=indexValue && RecordStore.FREE_RECID!=indexValue){
                 ret++;
             }
         }
@@ -80,27 +88,25 @@ abstract public class JdbmTestCase {
 
         long pagePhysid = recman.indexValGet(recid) & RecordStore.PHYS_OFFSET_MASK;
 
-        ByteBuffer dataBuf = recman.dataBufs[((int) (pagePhysid / RecordStore.BUF_SIZE))];
-
         while(pagePhysid!=0){
-            final byte numberOfRecordsInPage = dataBuf.get((int) (pagePhysid% RecordStore.BUF_SIZE));
+            final byte numberOfRecordsInPage = recman.dataVol.getByte(pagePhysid);
 
             for(int rec = numberOfRecordsInPage; rec>0;rec--){
-                final long l = dataBuf.getLong((int) (pagePhysid% RecordStore.BUF_SIZE+ rec*8));
+                final long l = recman.dataVol.getLong(pagePhysid+ rec*8);
                 ret.add(l);
             }
 
             //read location of previous page
-            pagePhysid = dataBuf.getLong((int)(pagePhysid% RecordStore.BUF_SIZE)) & RecordStore.PHYS_OFFSET_MASK;
+            pagePhysid = recman.dataVol.getLong(pagePhysid) & RecordStore.PHYS_OFFSET_MASK;
         }
 
 
         return ret;
     }
 
-    int readUnsignedShort(ByteBuffer buf, long pos) throws IOException {
-        return (( (buf.get((int) pos) & 0xff) << 8) |
-                ( (buf.get((int) (pos+1)) & 0xff)));
+    int readUnsignedShort(Volume vol, long pos) throws IOException {
+        return (( (vol.getByte(pos) & 0xff) << 8) |
+                ( (vol.getByte(pos+1) & 0xff)));
     }
 
 
@@ -114,7 +120,7 @@ abstract public class JdbmTestCase {
 
     final Map<Long, Integer> getDataContent(){
         Map<Long,Integer> ret = new TreeMap<Long, Integer>();
-        final long indexFileSize = recman.indexBufs[0].getLong(RecordStore.RECID_CURRENT_INDEX_FILE_SIZE*8);
+        final long indexFileSize = recman.indexValGet(RecordStore.RECID_CURRENT_INDEX_FILE_SIZE);
         for(long recid = RecordStore.INDEX_OFFSET_START ;
             recid*8<indexFileSize;
             recid++){
@@ -0,0 +1,88 @@
+package net.kotek.jdbm;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class OptimisticReadTest extends JdbmTestCase{
+
+    @Override
+    protected RecordStore openRecordManager() {
+        return new RecordStore(fileName, true, 4, true);
+    }
+
+    @Test public void get(){
+        final long recid = recman.recordPut("aaa", Serializer.BASIC_SERIALIZER);
+        assertEquals("aaa", recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+        assertTrue(recman.optimisticRead(recid) instanceof byte[]);
+
+        final byte[] large = new byte[100000];
+        new Random().nextBytes(large);
+        recman.recordUpdate(recid, large, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertSame(RecordStore.READ_LOCKED, recman.optimisticRead(recid));
+        assertArrayEquals(large, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+
+        recman.recordDelete(recid);
+        assertSame(RecordStore.NULL_RECORD, recman.optimisticRead(recid));
+        assertNull(recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+    }
+
+    @Test public void write_lock_invalidates_read(){
+        final long recid = recman.recordPut("aaa", Serializer.BASIC_SERIALIZER);
+        final long stamp = recman.writeLockStamp.get();
+        recman.writeLock_lock();
+        try{
+            //nested lock keeps stamp odd
+            recman.writeLock_lock();
+            recman.writeLock_unlock();
+            assertEquals(stamp+1, recman.writeLockStamp.get());
+            assertNull(recman.optimisticRead(recid));
+        }finally {
+            recman.writeLock_unlock();
+        }
+        assertEquals(stamp+2, recman.writeLockStamp.get());
+        assertEquals("aaa", recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+    }
+
+    @Test public void concurrent_updates_are_not_torn() throws InterruptedException {
+        concurrentUpdates(recman);
+    }
+
+    @Test public void concurrent_updates_are_not_torn_without_arenas() throws InterruptedException {
+        final RecordStore store = new RecordStore(Volume.memoryFactory(false), true, 0, true);
+        concurrentUpdates(store);
+        store.close();
+    }
+
+    /** writer updates record with array of same values, readers check that all values are equal */
+    static void concurrentUpdates(final RecordStore store) throws InterruptedException {
+        final long recid = store.recordPut(new long[10], Serializer.BASIC_SERIALIZER);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        final Thread writer = new Thread(){
+            @Override public void run() {
+                try{
+                    for(int i=0;i<100000;i++){
+                        //size changes, so records are both updated in place and relocated
+                        final long[] v = new long[10 + i%3];
+                        java.util.Arrays.fill(v, i);
+                        store.recordUpdate(recid, v, Serializer.BASIC_SERIALIZER);
+                    }
+                }catch(Throwable e){
+                    e.printStackTrace();
+                    failed.set(true);
+                }
+            }
+        };
+        writer.start();
+        while(writer.isAlive()){
+            final long[] v = (long[]) store.recordGet(recid, Serializer.BASIC_SERIALIZER);
+            for(long l:v){
+                if(l!=v[0]) failed.set(true);
+            }
+        }
+        assertFalse(failed.get());
+    }
+}
@@ -0,0 +1,57 @@
+package net.kotek.jdbm;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures read throughput of concurrent readers, with read lock and with optimistic reads.
+ * Single writer updates records in background.
+ *
+ * @author Jan Kotek
+ */
+public class ReadContentionBenchmark {
+
+    static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    static final int RECORDS = (int) 1e5;
+    static final long DURATION = 5000;
+
+    public static void main(String[] args) throws InterruptedException {
+        for(final boolean optimistic: new boolean[]{false, true}){
+            final RecordStore store = new RecordStore(Volume.memoryFactory(false), true, THREADS, optimistic);
+            final long[] recids = new long[RECORDS];
+            for(int i=0;i<RECORDS;i++){
+                recids[i] = store.recordPut((long)i, Serializer.LONG_SERIALIZER);
+            }
+
+            final AtomicLong reads = new AtomicLong();
+            final long end = System.currentTimeMillis()+DURATION;
+            final CountDownLatch done = new CountDownLatch(THREADS);
+            for(int t=0;t<THREADS;t++){
+                final boolean writer = t==0;
+                new Thread(){
+                    @Override public void run() {
+                        final Random r = new Random();
+                        long count = 0;
+                        while(System.currentTimeMillis()<end){
+                            for(int i=0;i<1000;i++){
+                                final int pos = r.nextInt(RECORDS);
+                                if(writer)
+                                    store.recordUpdate(recids[pos], (long)pos, Serializer.LONG_SERIALIZER);
+                                else
+                                    store.recordGet(recids[pos], Serializer.LONG_SERIALIZER);
+                            }
+                            count+=1000;
+                        }
+                        if(!writer) reads.addAndGet(count);
+                        done.countDown();
+                    }
+                }.start();
+            }
+            done.await();
+            System.out.println((optimistic?"optimistic":"read lock")+" - readers: "+(THREADS-1)+
+                    ", reads/sec: "+(reads.get()*1000/DURATION));
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package net.kotek.jdbm;
+
+import java.util.Random;
+
+/**
+ * Reads byte[] records from memory mapped store.
+ * Compares deserialization through DataInput with reading directly from buffer view.
+ *
+ * @author Jan Kotek
+ */
+public class RecordGetBufferBenchmark {
+
+    static final int RECORDS = 10000;
+    static final int RECORD_SIZE = 1000;
+    static final int READS = (int) 1e6;
+
+    public static void main(String[] args){
+        final RecordStore store = new RecordStore(Volume.memoryFactory(false), false, 0, false);
+        final long[] recids = new long[RECORDS];
+        final Random r = new Random(0);
+        for(int i=0;i<RECORDS;i++){
+            final byte[] b = new byte[RECORD_SIZE];
+            r.nextBytes(b);
+            recids[i] = store.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER);
+        }
+
+        for(boolean buffer: new boolean[]{false, true, false, true}){
+            long sum = 0;
+            final long time = System.currentTimeMillis();
+            for(int i=0;i<READS;i++){
+                final long recid = recids[i%RECORDS];
+                final byte[] b = buffer?
+                        store.recordGetBuffer(recid, RecordReader.BYTE_ARRAY_READER):
+                        store.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER);
+                sum+=b[i%RECORD_SIZE];
+            }
+            final long time2 = System.currentTimeMillis() - time;
+            System.out.println((buffer?"recordGetBuffer":"recordGet")+
+                    " - reads/sec: "+(READS*1000L/time2)+"  ("+sum+")");
+        }
+        store.close();
+    }
+}
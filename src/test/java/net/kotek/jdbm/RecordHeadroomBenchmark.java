@@ -0,0 +1,33 @@
+package net.kotek.jdbm;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Inserts random keys into BTreeMap, so its nodes grow by few bytes on each put.
+ * Compares records allocated with exact size and records allocated with headroom.
+ *
+ * @author Jan Kotek
+ */
+public class RecordHeadroomBenchmark {
+
+    static final int INSERTS = (int) 1e6;
+
+    public static void main(String[] args){
+        for(boolean headroom: new boolean[]{false, true, false, true}){
+            final RecordStore store = new RecordStore(Volume.memoryFactory(false), true, 0, false, headroom);
+            final DB db = new DB(store);
+            final Map<Long, Long> map = db.getTreeMap("test");
+            final Random r = new Random(0);
+            final long time = System.currentTimeMillis();
+            for(int i=0;i<INSERTS;i++){
+                map.put(r.nextLong(), 1L);
+            }
+            final long time2 = System.currentTimeMillis() - time;
+            System.out.println((headroom?"headroom":"exact size")+
+                    " - inserts/sec: "+(INSERTS*1000L/time2)+
+                    ", file size: "+store.indexValGet(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE)/1024+" KB");
+            db.close();
+        }
+    }
+}
@@ -3,9 +3,18 @@ package net.kotek.jdbm;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Jan Kotek
@@ -18,6 +27,19 @@ public class RecordStoreAsyncWriteTest extends JdbmTestCase{
     }
 
 
+    @Test public void batch_write_fetch(){
+        final String[] values = new String[1000];
+        for(int i=0;i<values.length;i++) values[i] = "aaa"+i;
+        final long[] recids = recman.recordPutBatch(values, Serializer.STRING_SERIALIZER);
+        String[] fetched = new String[values.length];
+        recman.recordGetBatch(recids, fetched, Serializer.STRING_SERIALIZER);
+        Assert.assertArrayEquals(values, fetched);
+        reopenStore();
+        fetched = new String[values.length];
+        recman.recordGetBatch(recids, fetched, Serializer.STRING_SERIALIZER);
+        Assert.assertArrayEquals(values, fetched);
+    }
+
     @Test public void write_fetch_update_delete(){
         long recid = recman.recordPut("aaa",Serializer.STRING_SERIALIZER);
         Assert.assertEquals("aaa",recman.recordGet(recid, Serializer.STRING_SERIALIZER));
@@ -31,6 +53,242 @@ public class RecordStoreAsyncWriteTest extends JdbmTestCase{
     }
 
 
+    @Test(timeout = 0xFFFF)
+    public void bounded_write_queue() throws InterruptedException {
+        recman.close();
+        final RecordStoreAsyncWrite store = new RecordStoreAsyncWrite(Volume.memoryFactory(false), false, false, false, 10);
+        final byte[] b = new byte[1000];
+        for(int i=0;i<10000;i++){
+            store.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER);
+            Assert.assertTrue(store.getPendingWrites()<=10+1);
+        }
+        while(store.getPendingWrites()>0) Thread.sleep(1);
+        store.close();
+        recman = openRecordManager();
+    }
+
+    @Test(timeout = 0xFFFF)
+    public void parallel_serialization() throws InterruptedException {
+        recman.close();
+        final RecordStoreAsyncWrite store = new RecordStoreAsyncWrite(Volume.memoryFactory(false), true, false, false,
+                RecordStoreAsyncWrite.DEFAULT_MAX_PENDING_WRITES, 4);
+        final String[] values = new String[10000];
+        for(int i=0;i<values.length;i++) values[i] = "aaa"+i;
+        final long[] recids = store.recordPutBatch(values, Serializer.STRING_SERIALIZER);
+        for(int i=0;i<values.length;i+=2){
+            values[i] = "bbb"+i;
+            store.recordUpdate(recids[i], values[i], Serializer.STRING_SERIALIZER);
+        }
+        while(store.getPendingWrites()>0) Thread.sleep(1);
+        for(int i=0;i<values.length;i++)
+            Assert.assertEquals(values[i], store.recordGet(recids[i], Serializer.STRING_SERIALIZER));
+        store.close();
+        recman = openRecordManager();
+    }
+
+    @Test public void idle_writer_parks() throws InterruptedException {
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        Thread.sleep(300);
+        Assert.assertEquals(0, ((RecordStoreAsyncWrite) recman).getPendingWrites());
+        Assert.assertEquals(Thread.State.TIMED_WAITING, ((RecordStoreAsyncWrite) recman).writerThread.getState());
+        Assert.assertEquals("aaa", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test(timeout = 10000) public void sync_waits_for_queued_writes(){
+        final RecordStoreAsyncWrite store = (RecordStoreAsyncWrite) recman;
+        final long[] recids = new long[1000];
+        for(int i=0;i<recids.length;i++)
+            recids[i] = store.recordPut("aa"+i, Serializer.STRING_SERIALIZER);
+        store.sync();
+        //all writes queued before sync were written by the time it returns
+        Assert.assertEquals(0, store.getPendingWrites());
+        for(int i=0;i<recids.length;i++)
+            Assert.assertEquals("aa"+i, store.recordGet(recids[i], Serializer.STRING_SERIALIZER));
+    }
+
+    @Test(timeout = 10000) public void writer_does_not_update_in_place(){
+        final byte[] b = new byte[100];
+        final long recid = recman.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER);
+        recman.sync();
+        final long indexValue = recman.indexValGet(recid);
+        //record of the same size would be updated in place, but readers do not take read lock
+        b[0] = 1;
+        recman.recordUpdate(recid, b, Serializer.BYTE_ARRAY_SERIALIZER);
+        recman.sync();
+        Assert.assertTrue(indexValue != recman.indexValGet(recid));
+        Assert.assertArrayEquals(b, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+    }
+
+    @Test(timeout = 10000) public void force_update_does_not_grow_in_place(){
+        final RecordStoreAsyncWrite store = new RecordStoreAsyncWrite(Volume.memoryFactory(false), false, false, true);
+        final long recid = store.recordPut(new byte[100], Serializer.BYTE_ARRAY_SERIALIZER);
+        store.sync();
+        final long indexValue = store.indexValGet(recid);
+        Assert.assertTrue((indexValue&RecordStore.MASK_SLACK)!=0);
+        final byte[] b = new byte[110];
+        b[0] = 1;
+        store.forceRecordUpdateOnGivenRecid(recid, b);
+        Assert.assertTrue(indexValue != store.indexValGet(recid));
+        Assert.assertArrayEquals(b, store.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        store.close();
+    }
+
+    @Test(timeout = 10000) public void writer_waits_for_buffer_reader(){
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.sync();
+        final Thread updater = new Thread(){
+            @Override public void run() {
+                recman.recordUpdate(recid, "bbbbbbbbbb", Serializer.STRING_SERIALIZER);
+                recman.sync();
+            }
+        };
+        final String value = recman.recordGetBuffer(recid, new RecordReader<String>() {
+            @Override public String read(ByteBuffer buf) throws IOException {
+                updater.start();
+                try {
+                    updater.join(200);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                //writer thread can not write record while buffer is used
+                Assert.assertTrue(updater.isAlive());
+                return RecordReader.STRING_READER.read(buf);
+            }
+        });
+        Assert.assertEquals("aaa", value);
+        try {
+            updater.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        Assert.assertEquals("bbbbbbbbbb", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test(timeout = 10000) public void snapshot_contains_queued_writes(){
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        final RecordManager snapshot = recman.snapshot();
+        recman.recordUpdate(recid, "bbb", Serializer.STRING_SERIALIZER);
+        recman.sync();
+        Assert.assertEquals("aaa", snapshot.recordGet(recid, Serializer.STRING_SERIALIZER));
+        Assert.assertEquals("bbb", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+        snapshot.close();
+    }
+
+    @Test(timeout = 0xFFFF) public void snapshot_reads_while_writer_updates() throws Throwable {
+        final int size = 1000;
+        final String[] values = new String[size];
+        for(int i=0;i<size;i++) values[i] = "aaa"+i;
+        final long[] recids = recman.recordPutBatch(values, Serializer.STRING_SERIALIZER);
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        //each round takes new snapshot, so first update of each record races with snapshot readers
+        for(int round=0;round<50 && error.get()==null;round++){
+            recman.sync();
+            final RecordManager snapshot = recman.snapshot();
+            final String[] expected = values.clone();
+            final AtomicBoolean stop = new AtomicBoolean(false);
+            final Thread[] readers = new Thread[4];
+            for(int t=0;t<readers.length;t++){
+                final int offset = t*size/readers.length;
+                readers[t] = new Thread(){
+                    @Override public void run() {
+                        try{
+                            while(!stop.get()){
+                                for(int i=0;i<size;i++){
+                                    final int pos = (i+offset)%size;
+                                    Assert.assertEquals(expected[pos], snapshot.recordGet(recids[pos], Serializer.STRING_SERIALIZER));
+                                }
+                            }
+                        }catch(Throwable e){
+                            error.set(e);
+                        }
+                    }
+                };
+                readers[t].start();
+            }
+            //value changes size, so record is relocated
+            for(int i=0;i<size;i++){
+                values[i] = (round%2==0? "b" : "cccccccccc")+i;
+                recman.recordUpdate(recids[i], values[i], Serializer.STRING_SERIALIZER);
+            }
+            recman.sync();
+            stop.set(true);
+            for(Thread t:readers) t.join();
+            snapshot.close();
+        }
+        if(error.get()!=null) throw error.get();
+    }
+
+    @Test(timeout = 10000) public void backup_contains_queued_writes(){
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recman.backup(Channels.newChannel(out));
+        final String backupName = fileName+"backup";
+        RecordStore.restoreBackup(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())),
+                Volume.fileFactory(backupName, true));
+        final RecordStore restored = new RecordStore(backupName);
+        Assert.assertEquals("aaa", restored.recordGet(recid, Serializer.STRING_SERIALIZER));
+        restored.close();
+    }
+
+    @Test(timeout = 0xFFFF) public void backup_while_compacting() throws Throwable {
+        final byte[][] values = new byte[100000][];
+        for(int i=0;i<values.length;i++){
+            values[i] = new byte[200];
+            values[i][0] = (byte) i;
+            values[i][199] = (byte) (i>>8);
+        }
+        final long[] recids = recman.recordPutBatch(values, Serializer.BYTE_ARRAY_SERIALIZER);
+        //free space at start of data file, so compaction moves records and truncates file
+        for(int i=0;i<values.length*4/5;i++)
+            recman.recordDelete(recids[i]);
+        recman.sync();
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final Thread compaction = new Thread(){
+            @Override public void run() {
+                try{
+                    recman.compact(10000, 0);
+                }catch(Throwable e){
+                    error.set(e);
+                }
+            }
+        };
+        //compaction starts while backup copies piece of data file, which is later truncated
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final WritableByteChannel channel = Channels.newChannel(out);
+        recman.backup(new WritableByteChannel() {
+            @Override public int write(ByteBuffer src) throws IOException {
+                if(out.size()>10<<20 && compaction.getState()==Thread.State.NEW){
+                    compaction.start();
+                    try {
+                        //compaction must wait until piece is copied
+                        while(compaction.isAlive() && !recman.lock.hasQueuedThread(compaction))
+                            Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                return channel.write(src);
+            }
+            @Override public boolean isOpen() {
+                return true;
+            }
+            @Override public void close() {
+            }
+        });
+        compaction.join();
+        if(error.get()!=null) throw error.get();
+
+        final String backupName = fileName+"backup";
+        RecordStore.restoreBackup(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())),
+                Volume.fileFactory(backupName, true));
+        final RecordStore restored = new RecordStore(backupName);
+        for(int i=values.length*4/5;i<values.length;i++)
+            Assert.assertArrayEquals(values[i], restored.recordGet(recids[i], Serializer.BYTE_ARRAY_SERIALIZER));
+        restored.close();
+    }
+
     @Test(timeout = 0xFFFF)
      public void concurrent_updates_test() throws InterruptedException {
 
@@ -45,7 +303,8 @@ public class RecordStoreAsyncWriteTest extends JdbmTestCase{
             final int num = i;
             new Thread(new Runnable() {
                 @Override public void run() {
-                    long recid = recman.recordPut("",Serializer.STRING_SERIALIZER);
+                    //empty record is stored as null, so start with non-empty string
+                    long recid = recman.recordPut("-",Serializer.STRING_SERIALIZER);
                     recids.put(num, recid);
                     for(int i = 0;i<updates; i++){
                         String str= recman.recordGet(recid, Serializer.STRING_SERIALIZER);
@@ -67,7 +326,7 @@ public class RecordStoreAsyncWriteTest extends JdbmTestCase{
         for(int i = 0;i<threadNum; i++){
             long recid = recids.get(i);
 
-            String expectedStr ="";
+            String expectedStr ="-";
             for(int j=0;j<updates;j++)
                 expectedStr +=i+",";
 
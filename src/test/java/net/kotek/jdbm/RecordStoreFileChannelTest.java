@@ -0,0 +1,12 @@
+package net.kotek.jdbm;
+
+/**
+ * Runs RecordStore tests with file accessed by positional reads and writes instead of memory mapping.
+ */
+public class RecordStoreFileChannelTest extends RecordStoreTest{
+
+    @Override
+    protected RecordStore openRecordManager() {
+        return new RecordStore(Volume.fileFactory(fileName, false), false, 0, false);
+    }
+}
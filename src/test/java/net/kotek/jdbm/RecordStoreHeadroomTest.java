@@ -0,0 +1,106 @@
+package net.kotek.jdbm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs RecordStore tests with records allocated with headroom.
+ */
+public class RecordStoreHeadroomTest extends RecordStoreTest{
+
+    @Override
+    protected RecordStore openRecordManager() {
+        return new RecordStore(Volume.fileFactory(fileName, true), false, 0, false, true);
+    }
+
+    byte[] data(int size){
+        final byte[] b = new byte[size];
+        Arrays.fill(b, (byte) size);
+        return b;
+    }
+
+    @Override
+    @Test public void test_index_stores_record_size() throws IOException {
+        //index stores capacity of record
+        final long recid = recman.recordPut(1L, Serializer.LONG_SERIALIZER);
+        assertEquals(8 + RecordStore.SLACK_HEADER_SIZE + RecordStore.SLACK_MIN_HEADROOM,
+                readUnsignedShort(recman.indexVol, recid * 8));
+        assertEquals(Long.valueOf(1), recman.recordGet(recid, Serializer.LONG_SERIALIZER));
+    }
+
+    @Test public void allocation_size(){
+        assertEquals(100 + RecordStore.SLACK_HEADER_SIZE + 25, recman.allocationSize(100, RecordStore.MAX_RECORD_SIZE));
+        assertEquals(10 + RecordStore.SLACK_HEADER_SIZE + RecordStore.SLACK_MIN_HEADROOM,
+                recman.allocationSize(10, RecordStore.MAX_RECORD_SIZE));
+        assertEquals(RecordStore.MAX_RECORD_SIZE, recman.allocationSize(60000, RecordStore.MAX_RECORD_SIZE));
+        //no space for header
+        assertEquals(RecordStore.MAX_RECORD_SIZE, recman.allocationSize(RecordStore.MAX_RECORD_SIZE, RecordStore.MAX_RECORD_SIZE));
+    }
+
+    @Test public void grow_in_place(){
+        final long recid = recman.recordPut(data(100), Serializer.BYTE_ARRAY_SERIALIZER);
+        final long indexValue = getIndexRecord(recid);
+        assertTrue((indexValue&RecordStore.MASK_SLACK)!=0);
+        assertEquals(127, indexValue>>>48);
+
+        for(int size=90;size<=125;size++){
+            recman.recordUpdate(recid, data(size), Serializer.BYTE_ARRAY_SERIALIZER);
+            assertEquals(indexValue, getIndexRecord(recid));
+            assertArrayEquals(data(size), recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+
+        //does not fit, so it is relocated with new headroom
+        recman.recordUpdate(recid, data(126), Serializer.BYTE_ARRAY_SERIALIZER);
+        assertTrue(indexValue != getIndexRecord(recid));
+        assertTrue((getIndexRecord(recid)&RecordStore.MASK_SLACK)!=0);
+        assertArrayEquals(data(126), recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+
+        reopenStore();
+        assertArrayEquals(data(126), recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+    }
+
+    @Test public void shrink_relocates(){
+        final long recid = recman.recordPut(data(1000), Serializer.BYTE_ARRAY_SERIALIZER);
+        final long indexValue = getIndexRecord(recid);
+        //wastes more than half of space
+        recman.recordUpdate(recid, data(100), Serializer.BYTE_ARRAY_SERIALIZER);
+        assertTrue(indexValue != getIndexRecord(recid));
+        assertArrayEquals(data(100), recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        //small records are still inline
+        recman.recordUpdate(recid, data(3), Serializer.BYTE_ARRAY_SERIALIZER);
+        assertTrue(RecordStore.isInline(getIndexRecord(recid)));
+        assertArrayEquals(data(3), recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+    }
+
+    @Test public void optimistic_read_and_arenas(){
+        recman.close();
+        recman = new RecordStore(Volume.fileFactory(fileName, true), true, 4, true, true);
+        final long recid = recman.recordPut(data(100), Serializer.BYTE_ARRAY_SERIALIZER);
+        final long indexValue = getIndexRecord(recid);
+        assertTrue((indexValue&RecordStore.MASK_SLACK)!=0);
+        assertArrayEquals(data(100), (byte[]) recman.optimisticRead(recid));
+        recman.recordUpdate(recid, data(110), Serializer.BYTE_ARRAY_SERIALIZER);
+        assertEquals(indexValue, getIndexRecord(recid));
+        assertArrayEquals(data(110), recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        recman.recordDelete(recid);
+        assertNull(recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+    }
+
+    @Test public void wal_grows_in_place(){
+        recman.close();
+        final RecordStoreWAL wal = new RecordStoreWAL(fileName, 0, false, Volume.fileFactory(fileName, true), true);
+        recman = wal;
+        final long recid = wal.recordPut(data(100), Serializer.BYTE_ARRAY_SERIALIZER);
+        wal.commit();
+        final long indexValue = getIndexRecord(recid);
+        assertTrue((indexValue&RecordStore.MASK_SLACK)!=0);
+        wal.recordUpdate(recid, data(110), Serializer.BYTE_ARRAY_SERIALIZER);
+        wal.commit();
+        assertEquals(indexValue, getIndexRecord(recid));
+        assertArrayEquals(data(110), wal.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+    }
+}
@@ -4,8 +4,14 @@ package net.kotek.jdbm;
 import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.*;
 
@@ -93,11 +99,11 @@ public class RecordStoreTest extends JdbmTestCase {
     @Test public void test_index_stores_record_size() throws IOException {
 
         final long recid = recman.recordPut(1, Serializer.INTEGER_SERIALIZER);
-        assertEquals(4, readUnsignedShort(recman.indexBufs[0], recid * 8));
+        assertEquals(4, readUnsignedShort(recman.indexVol, recid * 8));
         assertEquals(Integer.valueOf(1), recman.recordGet(recid, Serializer.INTEGER_SERIALIZER));
 
         recman.recordUpdate(recid, 1L, Serializer.LONG_SERIALIZER);
-        assertEquals(8, readUnsignedShort(recman.indexBufs[0], recid * 8));
+        assertEquals(8, readUnsignedShort(recman.indexVol, recid * 8));
         assertEquals(Long.valueOf(1), recman.recordGet(recid, Serializer.LONG_SERIALIZER));
 
     }
@@ -106,7 +112,7 @@ public class RecordStoreTest extends JdbmTestCase {
         recman.lock.writeLock().lock();
         recman.longStackPut(RecordStore.RECID_USER_WHOTEVER, 1);
         assertEquals(RecordStore.LONG_STACK_PAGE_SIZE,
-                readUnsignedShort(recman.indexBufs[0], RecordStore.RECID_USER_WHOTEVER * 8));
+                readUnsignedShort(recman.indexVol, RecordStore.RECID_USER_WHOTEVER * 8));
 
     }
 
@@ -238,9 +244,8 @@ public class RecordStoreTest extends JdbmTestCase {
 
 
                 //zero out all records
-                recman.indexBufs[0].position(RecordStore.RECID_FREE_PHYS_RECORDS_START*8);
-                recman.indexBufs[0].put(zero);
-                recman.indexBufs[0].putLong(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE * 8, 8);
+                recman.indexVol.putData(RecordStore.RECID_FREE_PHYS_RECORDS_START*8, zero, 0, zero.length);
+                recman.indexVol.putLong(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE * 8, 8);
             }
         }
     }
@@ -305,6 +310,569 @@ public class RecordStoreTest extends JdbmTestCase {
         }
     }
 
+    @Test public void test_large_record(){
+        byte[] data = new byte[1000000];
+        new Random().nextBytes(data);
+        final long recid = recman.recordPut(data, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertTrue((getIndexRecord(recid)&RecordStore.MASK_LARGE)!=0);
+        assertArrayEquals(data, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+
+        reopenStore();
+        assertArrayEquals(data, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+
+        //update with different size
+        byte[] data2 = Arrays.copyOf(data, 300000);
+        recman.recordUpdate(recid, data2, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertArrayEquals(data2, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+
+        //update with small record
+        recman.recordUpdate(recid, 1L, Serializer.LONG_SERIALIZER);
+        assertEquals(0, getIndexRecord(recid)&RecordStore.MASK_LARGE);
+        assertEquals(Long.valueOf(1L), recman.recordGet(recid, Serializer.LONG_SERIALIZER));
+    }
+
+    @Test public void test_large_record_space_released(){
+        byte[] data = new byte[200000];
+        final long recid = recman.recordPut(data, Serializer.BYTE_ARRAY_SERIALIZER);
+        recman.recordDelete(recid);
+
+        //all chunks should be in free lists, some may be split to make space for long stack pages
+        long freeSize = 0;
+        for(int slot=0;slot<RecordStore.NUMBER_OF_PHYS_FREE_SLOT;slot++){
+            for(long indexVal: getLongStack(RecordStore.RECID_FREE_PHYS_RECORDS_START+slot)){
+                freeSize += indexVal>>>48;
+            }
+        }
+        assertTrue(freeSize >= data.length - 10 * RecordStore.LONG_STACK_PAGE_SIZE);
+
+        final long recid2 = recman.recordPut(data, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertEquals(recid, recid2);
+        assertArrayEquals(data, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+    }
+
+    @Test public void test_large_record_values_split_between_chunks(){
+        //longs and strings will cross chunk boundaries
+        List<Object> list = new ArrayList<Object>();
+        for(long i=0;i<30000;i++){
+            list.add(i*1000000);
+            list.add("aa"+i);
+        }
+        final long recid = recman.recordPut(list, Serializer.BASIC_SERIALIZER);
+        assertTrue((getIndexRecord(recid)&RecordStore.MASK_LARGE)!=0);
+        assertEquals(list, recman.recordGet(recid, Serializer.BASIC_SERIALIZER));
+    }
+
+    @Test public void test_compact(){
+        Random r = new Random(0);
+        Map<Long, byte[]> data = new HashMap<Long, byte[]>();
+        List<Long> deleted = new ArrayList<Long>();
+        for(int i=0;i<300;i++){
+            //mix of small and large records
+            final byte[] b = new byte[r.nextInt(i%10==0? 1000000 : 2000)];
+            r.nextBytes(b);
+            final long recid = recman.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER);
+            if(i<200 && i%3!=0){
+                deleted.add(recid);
+            }else{
+                data.put(recid, b);
+            }
+        }
+        for(long recid:deleted){
+            recman.recordDelete(recid);
+        }
+
+        final long physSize = getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+        final long fileSize = new File(fileName+".d").length();
+        recman.compact(1, 0);
+        assertTrue(getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE) < physSize);
+        assertTrue(new File(fileName+".d").length() < fileSize);
+        for(Map.Entry<Long,byte[]> e:data.entrySet()){
+            assertArrayEquals(e.getValue(), recman.recordGet(e.getKey(), Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+
+        //deleted recids are reused
+        for(int i=0;i<deleted.size();i++){
+            final long recid = recman.recordPut(new byte[10], Serializer.BYTE_ARRAY_SERIALIZER);
+            assertTrue(deleted.contains(recid));
+        }
+
+        reopenStore();
+        for(Map.Entry<Long,byte[]> e:data.entrySet()){
+            assertArrayEquals(e.getValue(), recman.recordGet(e.getKey(), Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+    }
+
+    @Test public void inline_value(){
+        final byte[] b = new byte[]{(byte) 0xFF, 0, (byte) 0x80, 1, 127, -1};
+        for(int size=1;size<=RecordStore.MAX_INLINE_SIZE;size++){
+            final long v = RecordStore.inlineValue(b, size);
+            assertTrue(RecordStore.isInline(v));
+            assertArrayEquals(Arrays.copyOf(b, size), RecordStore.inlineData(v));
+        }
+        assertFalse(RecordStore.isInline(0L));
+        assertFalse(RecordStore.isInline(10L<<48 | 1000));
+    }
+
+    @Test public void test_inline_record(){
+        final long physSize = getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+        final byte[] b = new byte[]{(byte) 0xFF, (byte) 0x80, 0, 1};
+        final long recid = recman.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertTrue(RecordStore.isInline(getIndexRecord(recid)));
+        assertArrayEquals(b, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        //no space was allocated
+        assertEquals(physSize, getIndexRecord(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE));
+
+        //inline to physical record and back
+        final byte[] b2 = new byte[100];
+        Arrays.fill(b2, (byte) 1);
+        recman.recordUpdate(recid, b2, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertFalse(RecordStore.isInline(getIndexRecord(recid)));
+        assertArrayEquals(b2, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        recman.recordUpdate(recid, b, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertTrue(RecordStore.isInline(getIndexRecord(recid)));
+        assertArrayEquals(b, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+
+        reopenStore();
+        assertArrayEquals(b, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        recman.recordDelete(recid);
+        assertNull(recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+    }
+
+    @Test public void batch_put_get_update(){
+        Random r = new Random(0);
+        //mix of inline, small and large records
+        final byte[][] values = new byte[100][];
+        for(int i=0;i<values.length;i++){
+            values[i] = new byte[1+r.nextInt(i%3==0? RecordStore.MAX_INLINE_SIZE : i%20==1? 100000 : 1000)];
+            r.nextBytes(values[i]);
+        }
+        final long[] recids = recman.recordPutBatch(values, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertEquals(values.length, recids.length);
+        for(int i=0;i<values.length;i++)
+            assertArrayEquals(values[i], recman.recordGet(recids[i], Serializer.BYTE_ARRAY_SERIALIZER));
+
+        //read in reverse order
+        final long[] reversed = new long[recids.length];
+        for(int i=0;i<recids.length;i++) reversed[i] = recids[recids.length-1-i];
+        byte[][] fetched = new byte[recids.length][];
+        recman.recordGetBatch(reversed, fetched, Serializer.BYTE_ARRAY_SERIALIZER);
+        for(int i=0;i<values.length;i++)
+            assertArrayEquals(values[values.length-1-i], fetched[i]);
+
+        for(int i=0;i<values.length;i++){
+            values[i] = new byte[1+r.nextInt(2000)];
+            r.nextBytes(values[i]);
+        }
+        recman.recordUpdateBatch(recids, values, Serializer.BYTE_ARRAY_SERIALIZER);
+        fetched = new byte[recids.length][];
+        recman.recordGetBatch(recids, fetched, Serializer.BYTE_ARRAY_SERIALIZER);
+        for(int i=0;i<values.length;i++)
+            assertArrayEquals(values[i], fetched[i]);
+    }
+
+    /** records offsets of data written with given size */
+    static class WriteOrderVol extends Volume.FileChannelVol{
+        final List<Long> offsets = new ArrayList<Long>();
+
+        WriteOrderVol(File file) {
+            super(file);
+        }
+
+        @Override
+        public void putData(long offset, byte[] src, int srcPos, int srcSize) {
+            if(srcSize==100) offsets.add(offset);
+            super.putData(offset, src, srcPos, srcSize);
+        }
+    }
+
+    void assertAscending(List<Long> offsets, int size){
+        assertEquals(size, offsets.size());
+        for(int i=1;i<offsets.size();i++)
+            assertTrue(offsets.get(i-1)<offsets.get(i));
+    }
+
+    @Test public void batch_writes_in_offset_order(){
+        final WriteOrderVol dataVol = new WriteOrderVol(new File(fileName+".d"));
+        final RecordStore store = new RecordStore(new Volume.Factory() {
+            @Override public Volume createDataVolume() {
+                return dataVol;
+            }
+            @Override public Volume createIndexVolume() {
+                return new Volume.FileChannelVol(new File(fileName+".i"));
+            }
+        }, false, 0, false);
+        final byte[][] values = new byte[10][];
+        for(int i=0;i<values.length;i++) values[i] = new byte[100];
+        long[] recids = store.recordPutBatch(values, Serializer.BYTE_ARRAY_SERIALIZER);
+
+        //released space is reused in reverse order
+        for(long recid:recids) store.recordDelete(recid);
+        dataVol.offsets.clear();
+        recids = store.recordPutBatch(values, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertAscending(dataVol.offsets, 10);
+
+        //update in reverse order of recids
+        final long[] reversed = new long[recids.length];
+        for(int i=0;i<recids.length;i++) reversed[i] = recids[recids.length-1-i];
+        dataVol.offsets.clear();
+        store.recordUpdateBatch(reversed, values, Serializer.BYTE_ARRAY_SERIALIZER);
+        assertAscending(dataVol.offsets, 10);
+        store.close();
+    }
+
+    @Test public void batch_update_duplicate_recid(){
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.recordUpdateBatch(new long[]{recid, recid}, new String[]{"bbbbbbbbbb", "cc"}, Serializer.STRING_SERIALIZER);
+        assertEquals("cc", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test public void batch_get_deleted(){
+        final long[] recids = recman.recordPutBatch(new String[]{"aaa", "bbb", null}, Serializer.BASIC_SERIALIZER);
+        recman.recordDelete(recids[1]);
+        final String[] fetched = new String[3];
+        recman.recordGetBatch(recids, fetched, Serializer.BASIC_SERIALIZER);
+        assertArrayEquals(new String[]{"aaa", null, null}, fetched);
+    }
+
+    @Test public void get_buffer(){
+        Random r = new Random(0);
+        for(int size: new int[]{1, RecordStore.MAX_INLINE_SIZE, 1000, 100000}){
+            final byte[] b = new byte[size];
+            r.nextBytes(b);
+            final long recid = recman.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER);
+            assertArrayEquals(b, recman.recordGetBuffer(recid, RecordReader.BYTE_ARRAY_READER));
+            assertTrue(recman.recordGetBuffer(recid, new RecordReader<Boolean>() {
+                @Override public Boolean read(ByteBuffer buf) {
+                    return buf.isReadOnly() && buf.position()==0 && buf.limit()==b.length;
+                }
+            }));
+            recman.recordDelete(recid);
+            assertNull(recman.recordGetBuffer(recid, RecordReader.BYTE_ARRAY_READER));
+        }
+        final long recid = recman.recordPut("za\u017c\u00f3\u0142\u0107", Serializer.STRING_SERIALIZER);
+        assertEquals("za\u017c\u00f3\u0142\u0107", recman.recordGetBuffer(recid, RecordReader.STRING_READER));
+    }
+
+    @Test public void force_update_batch(){
+        Random r = new Random(0);
+        final int count = 100;
+        final long[] recids = new long[count];
+        for(int i=0;i<count;i++)
+            recids[i] = recman.recordPut(new byte[]{1,2,3,4,5,6,7,8,9,10}, Serializer.BYTE_ARRAY_SERIALIZER);
+
+        //grow all records, so they are relocated, with some inline, large and deleted records
+        final byte[][] data = new byte[count][];
+        final int[] sizes = new int[count];
+        for(int i=0;i<count;i++){
+            if(i%10==3) continue;
+            data[i] = new byte[i%10==1? 3 : i%20==5 ? 100000 : 100+r.nextInt(1000)];
+            r.nextBytes(data[i]);
+            sizes[i] = data[i].length;
+        }
+        //pass records in reverse order, store sorts them
+        final long[] reversed = new long[count];
+        final byte[][] reversedData = new byte[count][];
+        final int[] reversedSizes = new int[count];
+        for(int i=0;i<count;i++){
+            reversed[i] = recids[count-1-i];
+            reversedData[i] = data[count-1-i];
+            reversedSizes[i] = sizes[count-1-i];
+        }
+        recman.forceRecordUpdateBatch(reversed, reversedData, reversedSizes, count);
+
+        long prevEnd = 0;
+        for(int i=0;i<count;i++){
+            assertArrayEquals(data[i], recman.recordGet(recids[i], Serializer.BYTE_ARRAY_SERIALIZER));
+            final long indexValue = getIndexRecord(recids[i]);
+            if(data[i]==null || data[i].length<=RecordStore.MAX_INLINE_SIZE || data[i].length>RecordStore.MAX_RECORD_SIZE)
+                continue;
+            //relocated records are allocated next to each other, in recid order
+            final long offset = indexValue & RecordStore.PHYS_OFFSET_MASK;
+            if(prevEnd!=0 && offset!=prevEnd)
+                assertEquals("not contiguous at "+i, 0, offset % recman.bufSize);
+            prevEnd = offset + (indexValue>>>48);
+        }
+    }
+
+    long freeSpaceInLongStacks(){
+        long freeSize = 0;
+        for(int slot=0;slot<RecordStore.NUMBER_OF_PHYS_FREE_SLOT;slot++){
+            for(long indexVal: getLongStack(RecordStore.RECID_FREE_PHYS_RECORDS_START+slot)){
+                freeSize += indexVal>>>48;
+            }
+        }
+        return freeSize;
+    }
+
+    @Test public void snapshot_isolation(){
+        final long recid1 = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        final long recid2 = recman.recordPut("bbb", Serializer.STRING_SERIALIZER);
+        final long recid3 = recman.recordPut(new byte[1000], Serializer.BYTE_ARRAY_SERIALIZER);
+        final RecordManager snapshot = recman.snapshot();
+
+        //same size, so record would be updated in place
+        recman.recordUpdate(recid1, "AAA", Serializer.STRING_SERIALIZER);
+        final long recid4 = recman.recordPut("ddd", Serializer.STRING_SERIALIZER);
+        recman.recordDelete(recid2);
+        recman.recordUpdate(recid3, new byte[100000], Serializer.BYTE_ARRAY_SERIALIZER);
+        recman.recordUpdate(recid3, new byte[10], Serializer.BYTE_ARRAY_SERIALIZER);
+
+        assertEquals("aaa", snapshot.recordGet(recid1, Serializer.STRING_SERIALIZER));
+        assertEquals("bbb", snapshot.recordGetBuffer(recid2, RecordReader.STRING_READER));
+        assertArrayEquals(new byte[1000], snapshot.recordGet(recid3, Serializer.BYTE_ARRAY_SERIALIZER));
+        final String[] fetched = new String[2];
+        snapshot.recordGetBatch(new long[]{recid1, recid2}, fetched, Serializer.STRING_SERIALIZER);
+        assertArrayEquals(new String[]{"aaa", "bbb"}, fetched);
+        //record inserted after snapshot was taken
+        assertNull(snapshot.recordGet(recid4, Serializer.STRING_SERIALIZER));
+
+        assertEquals("AAA", recman.recordGet(recid1, Serializer.STRING_SERIALIZER));
+        assertNull(recman.recordGet(recid2, Serializer.STRING_SERIALIZER));
+        assertArrayEquals(new byte[10], recman.recordGet(recid3, Serializer.BYTE_ARRAY_SERIALIZER));
+        assertEquals("ddd", recman.recordGet(recid4, Serializer.STRING_SERIALIZER));
+        snapshot.close();
+    }
+
+    @Test public void snapshot_force_update_batch(){
+        final long recid1 = recman.recordPut(new byte[100], Serializer.BYTE_ARRAY_SERIALIZER);
+        final long recid2 = recman.recordPut(new byte[100], Serializer.BYTE_ARRAY_SERIALIZER);
+        final RecordManager snapshot = recman.snapshot();
+        final byte[] b = new byte[100];
+        Arrays.fill(b, (byte) 1);
+        recman.forceRecordUpdateBatch(new long[]{recid1, recid2}, new byte[][]{b, null}, new int[]{100, 0}, 2);
+        assertArrayEquals(new byte[100], snapshot.recordGet(recid1, Serializer.BYTE_ARRAY_SERIALIZER));
+        assertArrayEquals(new byte[100], snapshot.recordGet(recid2, Serializer.BYTE_ARRAY_SERIALIZER));
+        assertArrayEquals(b, recman.recordGet(recid1, Serializer.BYTE_ARRAY_SERIALIZER));
+        assertNull(recman.recordGet(recid2, Serializer.BYTE_ARRAY_SERIALIZER));
+        snapshot.close();
+    }
+
+    @Test public void force_update_batch_grows_index(){
+        //recid past end of index volume
+        final long recid = recman.indexValGet(RecordStore.RECID_CURRENT_INDEX_FILE_SIZE)/8 + (RecordStore.BUF_GROWTH/8)*2;
+        final byte[] b = new byte[100];
+        Arrays.fill(b, (byte) 1);
+        recman.forceRecordUpdateBatch(new long[]{recid}, new byte[][]{b}, new int[]{100}, 1);
+        assertEquals((recid+1)*8, recman.indexValGet(RecordStore.RECID_CURRENT_INDEX_FILE_SIZE));
+        assertArrayEquals(b, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        assertTrue(recid != recman.recordPut("aaa", Serializer.STRING_SERIALIZER));
+        assertArrayEquals(b, recman.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+    }
+
+    @Test public void snapshot_releases_space_on_close(){
+        final long recid = recman.recordPut(new byte[1000], Serializer.BYTE_ARRAY_SERIALIZER);
+        final long freeSize = freeSpaceInLongStacks();
+        final RecordManager snapshot1 = recman.snapshot();
+        recman.recordUpdate(recid, new byte[2000], Serializer.BYTE_ARRAY_SERIALIZER);
+        final RecordManager snapshot2 = recman.snapshot();
+        recman.recordUpdate(recid, new byte[3000], Serializer.BYTE_ARRAY_SERIALIZER);
+        //superseded records are not freed while snapshots are open
+        assertEquals(freeSize, freeSpaceInLongStacks());
+        assertArrayEquals(new byte[1000], snapshot1.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        assertArrayEquals(new byte[2000], snapshot2.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+
+        snapshot2.close();
+        assertEquals(freeSize + (getIndexRecordSize(2000)), freeSpaceInLongStacks());
+        snapshot1.close();
+        assertEquals(freeSize + getIndexRecordSize(2000) + getIndexRecordSize(1000), freeSpaceInLongStacks());
+        assertEquals(0, recman.snapshots.length);
+        //record is updated in place again
+        final long indexValue = getIndexRecord(recid);
+        recman.recordUpdate(recid, new byte[3000], Serializer.BYTE_ARRAY_SERIALIZER);
+        assertEquals(indexValue, getIndexRecord(recid));
+    }
+
+    @Test public void snapshot_shared_record_released_once(){
+        final long recid = recman.recordPut(new byte[1000], Serializer.BYTE_ARRAY_SERIALIZER);
+        final long freeSize = freeSpaceInLongStacks();
+        final RecordManager snapshot1 = recman.snapshot();
+        final RecordManager snapshot2 = recman.snapshot();
+        recman.recordDelete(recid);
+        snapshot1.close();
+        assertEquals(freeSize, freeSpaceInLongStacks());
+        assertArrayEquals(new byte[1000], snapshot2.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER));
+        snapshot2.close();
+        assertEquals(freeSize + getIndexRecordSize(1000), freeSpaceInLongStacks());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshot_read_only(){
+        recman.snapshot().recordPut("aaa", Serializer.STRING_SERIALIZER);
+    }
+
+    @Test(expected = IllegalAccessError.class)
+    public void snapshot_closed(){
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        final RecordManager snapshot = recman.snapshot();
+        snapshot.close();
+        snapshot.recordGet(recid, Serializer.STRING_SERIALIZER);
+    }
+
+    @Test public void snapshot_released_when_store_closed(){
+        final long recid = recman.recordPut(new byte[1000], Serializer.BYTE_ARRAY_SERIALIZER);
+        recman.snapshot();
+        recman.recordUpdate(recid, new byte[2000], Serializer.BYTE_ARRAY_SERIALIZER);
+        final long freeSize = freeSpaceInLongStacks();
+        reopenStore();
+        assertEquals(freeSize + getIndexRecordSize(1000), freeSpaceInLongStacks());
+    }
+
+    /** physical size of record stored in index */
+    long getIndexRecordSize(int size){
+        return recman.allocationSize(size, RecordStore.MAX_RECORD_SIZE);
+    }
+
+    /** writes backup of current store and restores it into new files */
+    RecordStore backupAndRestore(){
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recman.backup(Channels.newChannel(out));
+        final String backupName = fileName+"backup";
+        RecordStore.restoreBackup(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())),
+                Volume.fileFactory(backupName, true));
+        return new RecordStore(backupName);
+    }
+
+    @Test public void backup_restore(){
+        final Random r = new Random(0);
+        final Map<Long,byte[]> records = new HashMap<Long, byte[]>();
+        for(int i=0;i<1000;i++){
+            final byte[] b = new byte[i%100==0? 100000 : 1+r.nextInt(300)];
+            r.nextBytes(b);
+            records.put(recman.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER), b);
+        }
+        final RecordStore restored = backupAndRestore();
+        //copy was marked as opened, so free space was rebuilt
+        assertTrue(restored.recovered);
+        for(Map.Entry<Long,byte[]> e:records.entrySet())
+            assertArrayEquals(e.getValue(), restored.recordGet(e.getKey(), Serializer.BYTE_ARRAY_SERIALIZER));
+        //restored store is usable
+        final long recid = restored.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        assertFalse(records.containsKey(recid));
+        restored.close();
+    }
+
+    @Test public void backup_while_writers_run() throws InterruptedException {
+        final int count = 1000;
+        final long[] recids = new long[count];
+        for(int i=0;i<count;i++)
+            recids[i] = recman.recordPut(new byte[1000], Serializer.BYTE_ARRAY_SERIALIZER);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final Thread writer = new Thread(){
+            @Override public void run() {
+                final Random r = new Random(0);
+                for(byte v=1;!stop.get();v++){
+                    //record is filled with single value, so torn copy would be detected
+                    final byte[] b = new byte[1000+r.nextInt(1000)];
+                    Arrays.fill(b, v);
+                    recman.recordUpdate(recids[r.nextInt(count)], b, Serializer.BYTE_ARRAY_SERIALIZER);
+                }
+            }
+        };
+        writer.start();
+        final RecordStore restored;
+        try{
+            restored = backupAndRestore();
+        }finally {
+            stop.set(true);
+            writer.join();
+        }
+        for(long recid:recids){
+            final byte[] b = restored.recordGet(recid, Serializer.BYTE_ARRAY_SERIALIZER);
+            for(byte v:b) assertEquals(b[0], v);
+        }
+        restored.close();
+    }
+
+    @Test public void crash_recovery(){
+        final Random r = new Random(0);
+        final Map<Long,byte[]> records = new HashMap<Long, byte[]>();
+        final Set<Long> deleted = new TreeSet<Long>();
+        for(int i=0;i<1000;i++){
+            final byte[] b = new byte[i%100==0? 100000 : 1+r.nextInt(300)];
+            r.nextBytes(b);
+            records.put(recman.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER), b);
+        }
+        for(Long recid:new ArrayList<Long>(records.keySet())){
+            if(recid%3!=0) continue;
+            recman.recordDelete(recid);
+            records.remove(recid);
+            deleted.add(recid);
+        }
+        reopenStore();
+        assertFalse(recman.recovered);
+        final long freeSize = freeSpaceInLongStacks();
+        final long physFileSize = recman.indexValGet(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+
+        crashStore();
+        assertTrue(recman.recovered);
+        for(Map.Entry<Long,byte[]> e:records.entrySet()){
+            assertArrayEquals(e.getValue(), recman.recordGet(e.getKey(), Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+        //the same free space is found, except free space at end of file which is trimmed
+        final long trimmed = physFileSize - recman.indexValGet(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+        assertTrue(freeSpaceInLongStacks() >= freeSize - trimmed - 10*RecordStore.LONG_STACK_PAGE_SIZE);
+
+        //free space is reused and does not overlap with existing records
+        final long physFileSize2 = recman.indexValGet(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+        final byte[] b1 = new byte[20000];
+        r.nextBytes(b1);
+        final long recid1 = recman.recordPut(b1, Serializer.BYTE_ARRAY_SERIALIZER);
+        records.put(recid1, b1);
+        assertEquals(physFileSize2, recman.indexValGet(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE));
+
+        //deleted recids are reused, lowest first
+        assertEquals(deleted.iterator().next(), Long.valueOf(recid1));
+        final Set<Long> reused = new TreeSet<Long>();
+        reused.add(recid1);
+        for(int i=1;i<deleted.size();i++){
+            final byte[] b = new byte[1+r.nextInt(300)];
+            r.nextBytes(b);
+            final long recid = recman.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER);
+            reused.add(recid);
+            records.put(recid, b);
+        }
+        assertEquals(deleted, reused);
+
+        reopenStore();
+        assertFalse(recman.recovered);
+        for(Map.Entry<Long,byte[]> e:records.entrySet()){
+            assertArrayEquals(e.getValue(), recman.recordGet(e.getKey(), Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+    }
+
+    @Test public void crash_recovery_coalescing_arenas(){
+        recman.close();
+        recman = new RecordStore(fileName, true, 2);
+        final long[] recids = new long[100];
+        for(int i=0;i<recids.length;i++){
+            final byte[] b = new byte[2000];
+            Arrays.fill(b, (byte) i);
+            recids[i] = recman.recordPut(b, Serializer.BYTE_ARRAY_SERIALIZER);
+        }
+        for(int i=0;i<60;i++){
+            recman.recordDelete(recids[i]);
+        }
+        recman.close();
+
+        //free space is moved from long stacks into memory when store is opened, crash would lose it
+        recman = new RecordStore(fileName, true, 2);
+        final long physFileSize = recman.indexValGet(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE);
+        recman.dataVol.close(false);
+        recman.indexVol.close(false);
+        recman = new RecordStore(fileName, true, 2);
+        assertTrue(recman.recovered);
+
+        for(int i=0;i<30;i++){
+            recman.recordPut(new byte[2000], Serializer.BYTE_ARRAY_SERIALIZER);
+        }
+        assertEquals(physFileSize, recman.indexValGet(RecordStore.RECID_CURRENT_PHYS_FILE_SIZE));
+        for(int i=60;i<recids.length;i++){
+            final byte[] b = new byte[2000];
+            Arrays.fill(b, (byte) i);
+            assertArrayEquals(b, recman.recordGet(recids[i], Serializer.BYTE_ARRAY_SERIALIZER));
+        }
+    }
+
     @Test public void in_memory_test(){
         RecordStore recman = new RecordStore(null);
         Map<Long, Integer> recids = new HashMap<Long,Integer>();
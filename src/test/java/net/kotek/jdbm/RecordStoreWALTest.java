@@ -0,0 +1,297 @@
+package net.kotek.jdbm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class RecordStoreWALTest extends JdbmTestCase{
+
+    @Override
+    protected RecordStore openRecordManager() {
+        return new RecordStoreWAL(fileName);
+    }
+
+    @Test public void crash_recovery(){
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        final long uncommitted = recman.recordPut("bbb", Serializer.STRING_SERIALIZER);
+        crashStore();
+        assertTrue(recman.recovered);
+        assertEquals("aaa", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+        assertNull(recman.recordGet(uncommitted, Serializer.STRING_SERIALIZER));
+        //recid allocated by uncommitted transaction is reused
+        assertEquals(uncommitted, recman.recordPut("ccc", Serializer.STRING_SERIALIZER));
+        recman.commit();
+        reopenStore();
+        assertFalse(recman.recovered);
+        assertEquals("aaa", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+        assertEquals("ccc", recman.recordGet(uncommitted, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test public void get_buffer_uncommitted(){
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        assertEquals("aaa", recman.recordGetBuffer(recid, RecordReader.STRING_READER));
+        recman.commit();
+        reopenStore();
+        assertEquals("aaa", recman.recordGetBuffer(recid, RecordReader.STRING_READER));
+        recman.recordDelete(recid);
+        assertNull(recman.recordGetBuffer(recid, RecordReader.STRING_READER));
+    }
+
+    @Test public void batch_mixes_dirty_and_committed(){
+        final long[] recids = recman.recordPutBatch(new String[]{"aaa", "bbb"}, Serializer.STRING_SERIALIZER);
+        recman.commit();
+        reopenStore();
+        final long recid3 = recman.recordPut("ccc", Serializer.STRING_SERIALIZER);
+        recman.recordUpdateBatch(new long[]{recids[1]}, new String[]{"BBB"}, Serializer.STRING_SERIALIZER);
+        final String[] fetched = new String[3];
+        recman.recordGetBatch(new long[]{recids[0], recids[1], recid3}, fetched, Serializer.STRING_SERIALIZER);
+        assertArrayEquals(new String[]{"aaa", "BBB", "ccc"}, fetched);
+        recman.commit();
+        reopenStore();
+        recman.recordGetBatch(new long[]{recids[0], recids[1], recid3}, fetched, Serializer.STRING_SERIALIZER);
+        assertArrayEquals(new String[]{"aaa", "BBB", "ccc"}, fetched);
+    }
+
+    @Test public void commit_and_reopen(){
+        long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        assertEquals("aaa", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+        recman.commit();
+        reopenStore();
+        assertEquals("aaa", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+
+        recman.recordUpdate(recid, "bbb", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        reopenStore();
+        assertEquals("bbb", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+
+        recman.recordDelete(recid);
+        recman.commit();
+        reopenStore();
+        assertNull(recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test public void uncommitted_discarded_on_close(){
+        long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        recman.recordUpdate(recid, "bbb", Serializer.STRING_SERIALIZER);
+        long recid2 = recman.recordPut("ccc", Serializer.STRING_SERIALIZER);
+        reopenStore();
+        assertEquals("aaa", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+        assertNull(recman.recordGet(recid2, Serializer.STRING_SERIALIZER));
+        //recid of uncommitted record was released and is reused
+        assertEquals(recid2, recman.recordPut("ddd", Serializer.STRING_SERIALIZER));
+    }
+
+    @Test public void snapshot_sees_committed_changes(){
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        recman.recordUpdate(recid, "bbb", Serializer.STRING_SERIALIZER);
+        final long recid2 = recman.recordPut("ccc", Serializer.STRING_SERIALIZER);
+        final RecordManager snapshot = recman.snapshot();
+        assertEquals("aaa", snapshot.recordGet(recid, Serializer.STRING_SERIALIZER));
+        assertNull(snapshot.recordGet(recid2, Serializer.STRING_SERIALIZER));
+        recman.commit();
+        assertEquals("aaa", snapshot.recordGet(recid, Serializer.STRING_SERIALIZER));
+        assertNull(snapshot.recordGet(recid2, Serializer.STRING_SERIALIZER));
+        snapshot.close();
+        assertEquals("bbb", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test public void backup_contains_committed_changes(){
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        recman.recordUpdate(recid, "bbb", Serializer.STRING_SERIALIZER);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recman.backup(Channels.newChannel(out));
+        final String backupName = fileName+"backup";
+        RecordStore.restoreBackup(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())),
+                Volume.fileFactory(backupName, true));
+        final RecordStore restored = new RecordStoreWAL(backupName);
+        assertEquals("aaa", restored.recordGet(recid, Serializer.STRING_SERIALIZER));
+        restored.close();
+    }
+
+    @Test public void replay_log_after_crash() throws IOException {
+        long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        //copy log, it will be restored after close to simulate crash
+        File logFile = new File(fileName+".t");
+        byte[] log = readFile(logFile);
+        assertTrue(log.length>8);
+
+        //simulate that store write was lost
+        recman.lock.writeLock().lock();
+        recman.indexValPut(recid, 0);
+        recman.lock.writeLock().unlock();
+
+        recman.close();
+        writeFile(logFile, log);
+
+        recman = openRecordManager();
+        assertEquals("aaa", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+        //log was truncated after replay
+        assertEquals(8, logFile.length());
+    }
+
+    @Test public void store_not_modified_before_log_sync() throws IOException {
+        final RecordStoreWAL wal = (RecordStoreWAL) recman;
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        final long indexValue = recman.indexValGet(recid);
+        File logFile = new File(fileName+".t");
+        final byte[] log = readFile(logFile);
+
+        recman.recordUpdate(recid, "bbb", Serializer.STRING_SERIALIZER);
+        synchronized (wal.commitLock){
+            wal.commitAppend();
+        }
+        //log is not durable yet, so store was not modified, committed value is visible from memory
+        assertEquals(indexValue, recman.indexValGet(recid));
+        assertEquals("bbb", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+
+        //crash before log reached disk, transaction is lost but store is consistent
+        writeFile(logFile, log);
+        crashStore();
+        assertEquals("aaa", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+
+        recman.recordUpdate(recid, "ccc", Serializer.STRING_SERIALIZER);
+        synchronized (((RecordStoreWAL) recman).commitLock){
+            ((RecordStoreWAL) recman).commitAppend();
+        }
+        //crash after log was written, transaction is replayed
+        crashStore();
+        assertEquals("ccc", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test public void replay_delete_of_reused_recid() throws IOException {
+        final long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        recman.recordDelete(recid);
+        recman.commit();
+        //deleted recid is reused by next transaction
+        assertEquals(recid, recman.recordPut("bbb", Serializer.STRING_SERIALIZER));
+        recman.commit();
+        File logFile = new File(fileName+".t");
+        byte[] log = readFile(logFile);
+        recman.close();
+
+        //store was closed correctly, so free recids are not rebuilt after replay
+        writeFile(logFile, log);
+        recman = openRecordManager();
+        assertFalse(recman.recovered);
+        assertEquals("bbb", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+        //recid is not in free list
+        assertTrue(recid != recman.recordPut("ccc", Serializer.STRING_SERIALIZER));
+        assertEquals("bbb", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test public void replay_with_stale_index_size() throws IOException {
+        final long recid1 = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        final long indexSize = recman.indexValGet(RecordStore.RECID_CURRENT_INDEX_FILE_SIZE);
+        final long recid2 = recman.recordPut("bbb", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        assertTrue(recid2*8>=indexSize);
+        File logFile = new File(fileName+".t");
+        final byte[] log = readFile(logFile);
+
+        //OS crash lost index size written after log, replay must grow index to cover replayed recid
+        recman.indexValPut(RecordStore.RECID_CURRENT_INDEX_FILE_SIZE, indexSize);
+        writeFile(logFile, log);
+        crashStore();
+        assertTrue(recman.recovered);
+        assertEquals("aaa", recman.recordGet(recid1, Serializer.STRING_SERIALIZER));
+        assertEquals("bbb", recman.recordGet(recid2, Serializer.STRING_SERIALIZER));
+        final long recid3 = recman.recordPut("ccc", Serializer.STRING_SERIALIZER);
+        assertTrue(recid3!=recid1 && recid3!=recid2);
+        assertEquals("bbb", recman.recordGet(recid2, Serializer.STRING_SERIALIZER));
+        recman.commit();
+        reopenStore();
+        assertEquals("aaa", recman.recordGet(recid1, Serializer.STRING_SERIALIZER));
+        assertEquals("bbb", recman.recordGet(recid2, Serializer.STRING_SERIALIZER));
+        assertEquals("ccc", recman.recordGet(recid3, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test public void replay_ignores_broken_transaction() throws IOException {
+        long recid = recman.recordPut("aaa", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        recman.recordUpdate(recid, "bbb", Serializer.STRING_SERIALIZER);
+        recman.commit();
+        File logFile = new File(fileName+".t");
+        byte[] log = readFile(logFile);
+        recman.close();
+
+        //break last byte of checksum in second transaction
+        log[log.length-1]^=1;
+        writeFile(logFile, log);
+
+        recman = openRecordManager();
+        //first transaction is replayed, second was not durable and is ignored
+        assertEquals("aaa", recman.recordGet(recid, Serializer.STRING_SERIALIZER));
+    }
+
+    @Test(timeout = 0xFFFF)
+    public void concurrent_commits() throws InterruptedException {
+        final int threadNum = 16;
+        final int commits = 100;
+        final CountDownLatch latch = new CountDownLatch(threadNum);
+        final List<Long> recids = new ArrayList<Long>();
+        for(int i=0;i<threadNum;i++){
+            recids.add(recman.recordPut(0L, Serializer.LONG_SERIALIZER));
+        }
+        recman.commit();
+
+        for(int i = 0;i<threadNum; i++){
+            final long recid = recids.get(i);
+            new Thread(new Runnable() {
+                @Override public void run() {
+                    for(long j = 1;j<=commits; j++){
+                        recman.recordUpdate(recid, j, Serializer.LONG_SERIALIZER);
+                        recman.commit();
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+
+        RecordStoreWAL wal = (RecordStoreWAL) recman;
+        assertEquals(wal.appendedSeq, wal.syncedSeq);
+        //commits were grouped
+        assertTrue(wal.appendedSeq <= threadNum*commits+1);
+
+        reopenStore();
+        for(long recid:recids){
+            assertEquals(Long.valueOf(commits), recman.recordGet(recid, Serializer.LONG_SERIALIZER));
+        }
+    }
+
+    static byte[] readFile(File f) throws IOException {
+        byte[] b = new byte[(int) f.length()];
+        FileInputStream in = new FileInputStream(f);
+        int pos = 0;
+        while(pos<b.length)
+            pos+=in.read(b,pos,b.length-pos);
+        in.close();
+        return b;
+    }
+
+    static void writeFile(File f, byte[] b) throws IOException {
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(b);
+        out.close();
+    }
+
+}
@@ -0,0 +1,43 @@
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Fills file store, deletes part of records and reopens store without closing it,
+ * so free lists are rebuilt by recovery scan.
+ *
+ * @author Jan Kotek
+ */
+public class RecoveryBenchmark {
+
+    static final int RECORDS = (int) 5e6;
+
+    public static void main(String[] args) throws Exception {
+        final File f = File.createTempFile("jdbm","recovery");
+        RecordStore store = new RecordStore(f.getPath(), true, 0);
+        final Random r = new Random(0);
+        for(int i=0;i<RECORDS;i+=1000){
+            final byte[][] values = new byte[1000][];
+            for(int j=0;j<values.length;j++)
+                values[j] = new byte[10+r.nextInt(100)];
+            final long[] put = store.recordPutBatch(values, Serializer.BYTE_ARRAY_SERIALIZER);
+            //every tenth record is deleted
+            for(int j=0;j<put.length;j+=10)
+                store.recordDelete(put[j]);
+        }
+
+        //crash
+        store.dataVol.close(false);
+        store.indexVol.close(false);
+
+        final long time = System.currentTimeMillis();
+        store = new RecordStore(f.getPath(), true, 0);
+        System.out.println("Recovery of "+RECORDS+" records took "+(System.currentTimeMillis()-time)+" ms, recovered: "+store.recovered);
+        store.close();
+
+        new File(f.getPath()+".d").delete();
+        new File(f.getPath()+".i").delete();
+        f.delete();
+    }
+}
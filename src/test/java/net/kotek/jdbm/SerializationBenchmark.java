@@ -0,0 +1,50 @@
+package net.kotek.jdbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Serializes and deserializes common types with SerializerBase,
+ * using DataOutput2 and DataInput2 over heap and direct buffers.
+ *
+ * @author Jan Kotek
+ */
+public class SerializationBenchmark {
+
+    static final int ROUNDS = (int) 1e6;
+
+    public static void main(String[] args) throws IOException {
+        final byte[] bytes = new byte[1000];
+        new Random(0).nextBytes(bytes);
+        final Map<String, Object> values = new LinkedHashMap<String, Object>();
+        values.put("Long", 1234567890123L);
+        values.put("String", "some string value which is not too short");
+        values.put("byte[]", bytes);
+        values.put("long[]", new long[]{1, 2, 3, 1000, 1000000, Long.MAX_VALUE});
+        values.put("ArrayList", new ArrayList<Object>(Arrays.asList(1, 2L, "three", 4.0D)));
+        values.put("TreeMap", new TreeMap<Integer, String>(Collections.singletonMap(1, "one")));
+
+        final SerializerBase ser = new SerializerBase();
+        for(int run=0;run<2;run++){
+            for(Map.Entry<String, Object> e: values.entrySet()){
+                for(boolean direct: new boolean[]{false, true}){
+                    final ByteBuffer b = direct? ByteBuffer.allocateDirect(4096) : ByteBuffer.allocate(4096);
+                    final long time = System.currentTimeMillis();
+                    for(int i=0;i<ROUNDS;i++){
+                        final DataOutput2 out = DataOutput2.borrow();
+                        ser.serialize(out, e.getValue());
+                        final int size = out.pos;
+                        b.clear();
+                        b.put(out.buf, 0, size);
+                        DataOutput2.release(out);
+                        ser.deserialize(new DataInput2(b, 0), size);
+                    }
+                    final long time2 = System.currentTimeMillis() - time;
+                    System.out.println(e.getKey()+(direct?" direct":" heap")+
+                            " - round-trips/sec: "+(ROUNDS*1000L/time2));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package net.kotek.jdbm;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Runs the same workload (inserts, random reads and random updates) on store with each Volume backend:
+ * memory mapped file, FileChannel positional reads and writes, heap and direct memory.
+ *
+ * @author Jan Kotek
+ */
+public class VolumeBenchmark {
+
+    static final int RECORDS = (int) 1e6;
+    static final int RECORD_SIZE = 100;
+    static final int OPS = (int) 1e6;
+
+    public static void main(String[] args) throws IOException {
+        final String[] names = {"mmap file", "FileChannel", "heap", "direct"};
+        for(int i=0;i<names.length;i++){
+            final File f = File.createTempFile("jdbm","bench");
+            final Volume.Factory factory =
+                    i==0? Volume.fileFactory(f.getPath(), true):
+                    i==1? Volume.fileFactory(f.getPath(), false):
+                    Volume.memoryFactory(i==3);
+            run(names[i], factory);
+            new File(f.getPath()+".d").delete();
+            new File(f.getPath()+".i").delete();
+            f.delete();
+        }
+    }
+
+    static void run(String name, Volume.Factory factory){
+        final RecordStore store = new RecordStore(factory, true, 0, false);
+        final byte[] data = new byte[RECORD_SIZE];
+        final Random r = new Random(1);
+        r.nextBytes(data);
+
+        long time = System.currentTimeMillis();
+        final long[] recids = new long[RECORDS];
+        for(int i=0;i<RECORDS;i++){
+            recids[i] = store.recordPut(data, Serializer.BYTE_ARRAY_SERIALIZER);
+        }
+        final long insert = System.currentTimeMillis() - time;
+
+        time = System.currentTimeMillis();
+        for(int i=0;i<OPS;i++){
+            store.recordGet(recids[r.nextInt(RECORDS)], Serializer.BYTE_ARRAY_SERIALIZER);
+        }
+        final long read = System.currentTimeMillis() - time;
+
+        time = System.currentTimeMillis();
+        for(int i=0;i<OPS;i++){
+            store.recordUpdate(recids[r.nextInt(RECORDS)], data, Serializer.BYTE_ARRAY_SERIALIZER);
+        }
+        final long update = System.currentTimeMillis() - time;
+        store.close();
+
+        System.out.println(name+" - inserts/sec: "+(RECORDS*1000L/Math.max(1,insert))+
+                ", reads/sec: "+(OPS*1000L/Math.max(1,read))+
+                ", updates/sec: "+(OPS*1000L/Math.max(1,update)));
+    }
+}
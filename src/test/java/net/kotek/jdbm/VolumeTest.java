@@ -0,0 +1,437 @@
+package net.kotek.jdbm;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VolumeTest {
+
+    final List<File> files = new ArrayList<File>();
+
+    File newFile() throws IOException {
+        File f = File.createTempFile("jdbm","vol");
+        f.deleteOnExit();
+        files.add(f);
+        return f;
+    }
+
+    @After public void deleteFiles(){
+        for(File f:files) f.delete();
+    }
+
+    List<Volume> volumes() throws IOException {
+        List<Volume> ret = new ArrayList<Volume>();
+        ret.add(new Volume.MemoryVol(false));
+        ret.add(new Volume.MemoryVol(true));
+        ret.add(new Volume.MappedFileVol(newFile()));
+        ret.add(new Volume.FileChannelVol(newFile()));
+        return ret;
+    }
+
+    @Test public void put_get() throws IOException {
+        for(Volume v:volumes()){
+            assertTrue(v.isEmpty());
+            v.ensureAvailable(1000);
+            assertFalse(v.isEmpty());
+            v.putLong(8, 111L);
+            v.putByte(16, (byte) 11);
+            v.putData(100, new byte[]{1,2,3,4,5}, 1, 3);
+
+            assertEquals(111L, v.getLong(8));
+            assertEquals(11, v.getByte(16));
+            final byte[] b = new byte[5];
+            v.getData(99, b, 0, 5);
+            assertArrayEquals(new byte[]{0,2,3,4,0}, b);
+            final DataInput2 in = v.getDataInput(100, 3);
+            assertEquals(2, in.readByte());
+            assertEquals(3, in.readByte());
+            v.close(true);
+        }
+    }
+
+    @Test public void grow_over_chunks() throws IOException {
+        for(Volume v:volumes()){
+            if(v.chunkSize>RecordStore.DIRECT_CHUNK_SIZE) continue;
+            final long max = v.chunkSize * 3L;
+            v.ensureAvailable(max);
+            for(long offset = 0; offset<max; offset+=v.chunkSize/4){
+                v.putLong(offset, offset+1);
+            }
+            for(long offset = 0; offset<max; offset+=v.chunkSize/4){
+                assertEquals(offset+1, v.getLong(offset));
+            }
+            //last byte of chunk
+            v.putByte(v.chunkSize-1, (byte) 1);
+            assertEquals(1, v.getByte(v.chunkSize-1));
+            v.close(true);
+        }
+    }
+
+    @Test public void grow_preserves_data() throws IOException {
+        for(Volume v:volumes()){
+            v.ensureAvailable(16);
+            v.putLong(8, 1111L);
+            v.ensureAvailable(RecordStore.BUF_GROWTH*2);
+            assertEquals(1111L, v.getLong(8));
+            v.putLong(RecordStore.BUF_GROWTH*2-8, 2222L);
+            assertEquals(2222L, v.getLong(RecordStore.BUF_GROWTH*2-8));
+            v.close(true);
+        }
+    }
+
+    @Test public void truncate() throws IOException {
+        for(Volume v:volumes()){
+            v.ensureAvailable(RecordStore.BUF_GROWTH*2);
+            v.putLong(8, 1111L);
+            v.truncate(16);
+            assertEquals(1111L, v.getLong(8));
+            v.close(true);
+        }
+    }
+
+    @Test public void memory_truncate_at_chunk_boundary() throws IOException {
+        //heap chunks are 1GB, only size just after last slot is tested
+        Volume.MemoryVol v = new Volume.MemoryVol(false);
+        v.ensureAvailable(100);
+        v.putLong(8, 1111L);
+        v.truncate(((long)v.buffers.length())*v.chunkSize);
+        assertEquals(1111L, v.getLong(8));
+        v.close(true);
+
+        v = new Volume.MemoryVol(true);
+        v.ensureAvailable(v.chunkSize+100);
+        v.putLong(8, 1111L);
+        v.putLong(v.chunkSize+8, 2222L);
+        v.truncate(((long)v.buffers.length())*v.chunkSize);
+        assertEquals(2222L, v.getLong(v.chunkSize+8));
+        v.truncate(v.chunkSize);
+        assertEquals(1111L, v.getLong(8));
+        v.close(true);
+    }
+
+    @Test public void reopen_file() throws IOException {
+        final File f = newFile();
+        Volume v = new Volume.MappedFileVol(f);
+        v.ensureAvailable(16);
+        v.putLong(8, 1111L);
+        v.sync();
+        v.close(true);
+
+        //file can be opened by both file volumes
+        v = new Volume.FileChannelVol(f);
+        assertFalse(v.isEmpty());
+        assertEquals(1111L, v.getLong(8));
+        v.putLong(8, 2222L);
+        v.close(true);
+
+        v = new Volume.MappedFileVol(f);
+        assertFalse(v.isEmpty());
+        assertEquals(2222L, v.getLong(8));
+        v.close(true);
+    }
+
+    @Test public void file_channel_reads_zero_after_end() throws IOException {
+        final Volume v = new Volume.FileChannelVol(newFile());
+        assertEquals(0L, v.getLong(1000));
+        assertEquals(0, v.getByte(1000));
+        v.close(true);
+    }
+
+    List<Volume> fileVolumes(long initialSize, int sizeIncrement, boolean geometricGrowth, boolean preallocate) throws IOException {
+        List<Volume> ret = new ArrayList<Volume>();
+        ret.add(new Volume.MappedFileVol(newFile(), initialSize, sizeIncrement, geometricGrowth, preallocate));
+        ret.add(new Volume.FileChannelVol(newFile(), initialSize, sizeIncrement, geometricGrowth, preallocate));
+        return ret;
+    }
+
+    long fileSize(Volume v){
+        return v instanceof Volume.MappedFileVol?
+                ((Volume.MappedFileVol)v).file.length():
+                ((Volume.FileChannelVol)v).file.length();
+    }
+
+    @Test public void initial_size() throws IOException {
+        for(Volume v:fileVolumes(32<<20, 1<<20, false, false)){
+            v.ensureAvailable(8);
+            assertEquals(32<<20, fileSize(v));
+            v.putLong((32<<20)-8, 111L);
+            assertEquals(111L, v.getLong((32<<20)-8));
+            v.close(true);
+        }
+    }
+
+    @Test public void size_increment() throws IOException {
+        for(Volume v:fileVolumes(0, 1<<20, false, false)){
+            v.ensureAvailable(100);
+            assertEquals(1<<20, fileSize(v));
+            v.ensureAvailable((1<<20)+1);
+            assertEquals(2<<20, fileSize(v));
+            v.ensureAvailable((3<<20)+1);
+            assertEquals(4<<20, fileSize(v));
+            v.close(true);
+        }
+    }
+
+    @Test public void geometric_growth() throws IOException {
+        for(Volume v:fileVolumes(0, 1<<20, true, false)){
+            v.ensureAvailable(100);
+            assertEquals(1<<20, fileSize(v));
+            v.ensureAvailable((1<<20)+1);
+            assertEquals(2<<20, fileSize(v));
+            v.ensureAvailable((2<<20)+1);
+            assertEquals(4<<20, fileSize(v));
+            v.putLong(3<<20, 111L);
+            assertEquals(111L, v.getLong(3<<20));
+            v.close(true);
+        }
+    }
+
+    @Test public void preallocate() throws IOException {
+        for(Volume v:fileVolumes(0, 1<<20, false, true)){
+            v.ensureAvailable(100);
+            assertEquals(1<<20, fileSize(v));
+            v.putLong(8, 111L);
+            v.ensureAvailable((1<<20)+1);
+            assertEquals(2<<20, fileSize(v));
+            assertEquals(111L, v.getLong(8));
+            assertEquals(0L, v.getLong((2<<20)-8));
+            v.close(true);
+        }
+    }
+
+    @Test public void growth_truncate() throws IOException {
+        for(Volume v:fileVolumes(0, 1<<20, false, false)){
+            v.ensureAvailable(10<<20);
+            v.putLong(8, 111L);
+            v.truncate((1<<20)+1);
+            assertEquals(2<<20, fileSize(v));
+            assertEquals(111L, v.getLong(8));
+            v.close(true);
+        }
+    }
+
+    /** counts buffers which were really unmapped */
+    static class CountingMappedFileVol extends Volume.MappedFileVol{
+        int released = 0;
+
+        CountingMappedFileVol(File file) {
+            super(file, 0, 1<<20, false, false);
+        }
+
+        @Override
+        protected boolean releaseBuffer(ByteBuffer b) {
+            final boolean ret = super.releaseBuffer(b);
+            if(ret) released++;
+            return ret;
+        }
+    }
+
+    @Test public void remap_unmaps_old_buffer() throws IOException {
+        final CountingMappedFileVol v = new CountingMappedFileVol(newFile());
+        v.ensureAvailable(100);
+        assertEquals(0, v.released);
+        v.putLong(8, 111L);
+        v.ensureAvailable((1<<20)+1);
+        assertEquals(1, v.released);
+        v.ensureAvailable((3<<20)+1);
+        assertEquals(2, v.released);
+        assertEquals(111L, v.getLong(8));
+        v.truncate(100);
+        assertEquals(3, v.released);
+        assertEquals(111L, v.getLong(8));
+        v.close(true);
+    }
+
+    @Test public void deferred_release_leaves_buffer_for_gc() throws IOException {
+        final CountingMappedFileVol v = new CountingMappedFileVol(newFile());
+        v.setReleaseBuffers(false);
+        v.ensureAvailable(100);
+        final ByteBuffer old = v.buffers.get(0);
+        v.putLong(8, 111L);
+        v.ensureAvailable((3<<20)+1);
+        v.truncate(100);
+        assertEquals(0, v.released);
+        //old mapping is still valid
+        assertEquals(111L, old.getLong(8));
+        v.close(false);
+        assertEquals(111L, old.getLong(8));
+    }
+
+    @Test public void reopen_after_close() throws IOException {
+        final File f = newFile();
+        for(int i=0;i<100;i++){
+            final Volume v = new Volume.MappedFileVol(f);
+            v.ensureAvailable((1<<20)*4);
+            v.putLong(8, i);
+            v.close(true);
+            assertTrue(f.delete());
+        }
+    }
+
+    @Test public void lazy_mapping() throws IOException {
+        final File f = newFile();
+        Volume.MappedFileVol v = new Volume.MappedFileVol(f, 0, 1<<20, false, false);
+        v.ensureAvailable(10<<20);
+        v.putLong((9<<20)+8, 1111L);
+        v.close(true);
+
+        v = new Volume.MappedFileVol(f, 0, 1<<20, false, false);
+        //nothing is mapped on open
+        assertNull(v.buffers.get(0));
+        //existing chunk is not shrunk
+        v.ensureAvailable(100);
+        assertNull(v.buffers.get(0));
+        assertFalse(v.isEmpty());
+        assertEquals(1111L, v.getLong((9<<20)+8));
+        assertEquals(10<<20, v.buffers.get(0).capacity());
+        v.close(true);
+    }
+
+    @Test public void lazy_mapping_concurrent() throws Exception {
+        final File f = newFile();
+        Volume.MappedFileVol v = new Volume.MappedFileVol(f);
+        v.ensureAvailable(16);
+        v.putLong(8, 1111L);
+        v.close(true);
+
+        final Volume.MappedFileVol v2 = new Volume.MappedFileVol(f);
+        final Thread[] threads = new Thread[8];
+        final long[] results = new long[threads.length];
+        for(int i=0;i<threads.length;i++){
+            final int i2 = i;
+            threads[i] = new Thread(){
+                @Override public void run() {
+                    results[i2] = v2.getLong(8);
+                }
+            };
+        }
+        for(Thread t:threads) t.start();
+        for(Thread t:threads) t.join();
+        for(long r:results) assertEquals(1111L, r);
+        v2.close(true);
+    }
+
+    @Test public void read_only() throws IOException {
+        final File f = newFile();
+        Volume v = new Volume.MappedFileVol(f);
+        v.ensureAvailable(16);
+        v.putLong(8, 1111L);
+        v.close(true);
+
+        for(Volume v2: new Volume[]{
+                new Volume.MappedFileVol(f, 0, RecordStore.BUF_GROWTH, false, false, true),
+                new Volume.FileChannelVol(f, 0, RecordStore.BUF_GROWTH, false, false, true)}){
+            assertTrue(v2.isReadOnly());
+            assertFalse(v2.isEmpty());
+            assertEquals(1111L, v2.getLong(8));
+            v2.ensureAvailable(16);
+            try{
+                v2.ensureAvailable(RecordStore.BUF_GROWTH*2);
+                fail();
+            }catch(IOError e){
+                //expected
+            }
+            v2.close(true);
+        }
+        assertEquals(RecordStore.BUF_GROWTH, f.length());
+    }
+
+    boolean anyDirty(Volume.ByteBufferVol v){
+        for(java.util.concurrent.atomic.AtomicIntegerArray d:v.dirtyRegions){
+            for(int i=0;i<d.length();i++)
+                if(d.get(i)!=0) return true;
+        }
+        return false;
+    }
+
+    @Test public void sync_clears_dirty_regions() throws IOException {
+        final Volume.MappedFileVol v = new Volume.MappedFileVol(newFile());
+        v.ensureAvailable(4<<20);
+        v.sync();
+        assertFalse(anyDirty(v));
+
+        v.putLong((2<<20)+8, 111L);
+        final java.util.concurrent.atomic.AtomicIntegerArray d = v.dirtyRegions[0];
+        assertEquals(0, d.get(0));
+        assertEquals(1, d.get(2));
+        assertEquals(0, d.get(3));
+
+        //data crossing region boundary marks both regions
+        v.putData((1<<20)-2, new byte[]{1,2,3,4}, 0, 4);
+        assertEquals(1, d.get(0));
+        assertEquals(1, d.get(1));
+
+        v.sync();
+        assertFalse(anyDirty(v));
+        assertEquals(111L, v.getLong((2<<20)+8));
+        v.close(true);
+    }
+
+    @Test public void file_channel_sync_only_when_dirty() throws IOException {
+        final Volume.FileChannelVol v = new Volume.FileChannelVol(newFile());
+        v.ensureAvailable(16);
+        assertTrue(v.dirty);
+        v.sync();
+        assertFalse(v.dirty);
+        v.putLong(8, 111L);
+        assertTrue(v.dirty);
+        v.sync();
+        assertFalse(v.dirty);
+        v.close(true);
+    }
+
+    @Test public void sync_after_reopen() throws IOException {
+        final File f = newFile();
+        for(Volume v:new Volume[]{new Volume.MappedFileVol(f), new Volume.FileChannelVol(f)}){
+            v.ensureAvailable(16);
+            v.putLong(8, 1111L);
+            v.sync();
+            v.sync();
+            assertEquals(1111L, v.getLong(8));
+            v.close(true);
+        }
+    }
+
+    @Test public void backup_tracks_modified_pages() throws IOException {
+        for(Volume v:volumes()){
+            v.ensureAvailable(4<<20);
+            //nothing is tracked before backup starts
+            v.putLong(8, 1L);
+            v.backupStart();
+            assertEquals(0, v.backupModifiedCount());
+            v.putLong(8, 2L);
+            v.putByte(3*Volume.BACKUP_PAGE_SIZE, (byte) 1);
+            v.putData(2*Volume.BACKUP_PAGE_SIZE-2, new byte[4], 0, 4);
+            assertEquals(4, v.backupModifiedCount());
+            assertArrayEquals(new long[]{0,1,2,3}, v.backupTakeModified());
+            assertEquals(0, v.backupModifiedCount());
+            //page beyond first segment grows tracking
+            v.backupMark(Volume.BACKUP_PAGES_PER_SEGMENT*(long)Volume.BACKUP_PAGE_SIZE+8, 8);
+            assertArrayEquals(new long[]{Volume.BACKUP_PAGES_PER_SEGMENT}, v.backupTakeModified());
+            v.backupStop();
+            v.putLong(8, 3L);
+            v.close(true);
+        }
+    }
+
+    @Test public void transfer_to() throws IOException {
+        for(Volume v:volumes()){
+            v.ensureAvailable(1000);
+            v.putData(100, new byte[]{1,2,3,4,5}, 0, 5);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            v.transferTo(99, 7, Channels.newChannel(out));
+            assertArrayEquals(new byte[]{0,1,2,3,4,5,0}, out.toByteArray());
+            v.close(true);
+        }
+    }
+}
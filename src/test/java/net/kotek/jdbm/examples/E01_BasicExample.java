@@ -8,7 +8,7 @@ public class E01_BasicExample {
     public static void main(String[] args){
 
         DB db = DBMaker.newFileDB("filename")
-                    .transactionDisable() //transactions are not implemented yet
+                    .transactionDisable() //faster writes, but db.close() must be called
                     .make();
 
         ConcurrentSortedMap<Integer, String> map = db.getTreeMap("treeMap");
@@ -12,7 +12,7 @@ public class E02_HugeInsert {
 
     public static void main(String[] args){
         DB db = DBMaker.newFileDB("/tmp/db")
-                .transactionDisable() //transactions are not implemented yet
+                .transactionDisable() //faster writes, but db.close() must be called
                 .make();
 
         Map<Integer, String> map = db.getTreeMap("map");
@@ -12,7 +12,7 @@ public class E03_HugeRead {
 
     public static void main(String[] args){
     DB db = DBMaker.newFileDB("/tmp/db2")
-            .transactionDisable() //transactions are not implemented yet
+            .transactionDisable() //faster writes, but db.close() must be called
                     //.asyncWriteDisable()
             .make();
 